@@ -0,0 +1,267 @@
+package club.vinnymaker.appfrontend;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * BufferedResponse holds a controller's response body in memory until the controller is done, so that a request
+ * that runs past its deadline can be answered and completed while the controller is still running. Once abandoned,
+ * the controller's changes to the response are dropped and its writes fail, the container may have handed the
+ * underlying response to another request by then. Status and headers go straight to the underlying response.
+ *
+ * Bodies are fully serialized before they're written anyway(see ResponseCache), so buffering them costs a copy.
+ *
+ * @author evinay
+ *
+ */
+class BufferedResponse extends HttpServletResponseWrapper {
+	
+	private static final String ABANDONED_ERROR = "Request has been abandoned";
+	
+	private final HttpServletResponse resp;
+	private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+	private ServletOutputStream out = null;
+	private PrintWriter writer = null;
+	
+	// Guarded by this.
+	private boolean isAbandoned = false;
+	private boolean isCommitted = false;
+	
+	BufferedResponse(HttpServletResponse resp) {
+		super(resp);
+		this.resp = resp;
+	}
+	
+	/**
+	 * Writes the buffered body to the underlying response, unless the response has been abandoned.
+	 *
+	 * @return True if the body was written, false if the response had been abandoned.
+	 */
+	synchronized boolean commit() throws IOException {
+		if (isAbandoned) {
+			return false;
+		}
+		
+		isCommitted = true;
+		if (writer != null) {
+			writer.flush();
+		}
+		if (body.size() > 0) {
+			body.writeTo(resp.getOutputStream());
+		}
+		return true;
+	}
+	
+	/**
+	 * Gives up on the response, nothing the controller does afterwards reaches the underlying response. The
+	 * response is reset so that the caller can send something else, unless it's already been committed.
+	 *
+	 * @return True if the response has been abandoned, false if it had already been committed.
+	 */
+	synchronized boolean abandon() {
+		if (isCommitted) {
+			return false;
+		}
+		
+		isAbandoned = true;
+		if (!resp.isCommitted()) {
+			resp.reset();
+		}
+		return true;
+	}
+	
+	private void check() throws IOException {
+		if (isAbandoned) {
+			throw new IOException(ABANDONED_ERROR);
+		}
+	}
+	
+	@Override
+	public synchronized ServletOutputStream getOutputStream() throws IOException {
+		check();
+		if (out == null) {
+			out = new ServletOutputStream() {
+				@Override
+				public void write(int b) throws IOException {
+					synchronized (BufferedResponse.this) {
+						check();
+						body.write(b);
+					}
+				}
+				
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					synchronized (BufferedResponse.this) {
+						check();
+						body.write(b, off, len);
+					}
+				}
+				
+				@Override
+				public boolean isReady() {
+					return true;
+				}
+				
+				@Override
+				public void setWriteListener(WriteListener listener) {
+					throw new IllegalStateException("Buffered responses are written synchronously");
+				}
+			};
+		}
+		return out;
+	}
+	
+	@Override
+	public synchronized PrintWriter getWriter() throws IOException {
+		if (writer == null) {
+			writer = new PrintWriter(new OutputStreamWriter(getOutputStream(), getCharacterEncoding()));
+		}
+		return writer;
+	}
+	
+	@Override
+	public synchronized boolean isCommitted() {
+		return isCommitted || isAbandoned || resp.isCommitted();
+	}
+	
+	@Override
+	public void flushBuffer() {
+		// Nothing is sent before the controller is done.
+	}
+	
+	@Override
+	public void setBufferSize(int size) {
+		// The whole body is buffered.
+	}
+	
+	@Override
+	public synchronized void resetBuffer() {
+		if (!isAbandoned) {
+			body.reset();
+			super.resetBuffer();
+		}
+	}
+	
+	@Override
+	public synchronized void reset() {
+		if (!isAbandoned) {
+			body.reset();
+			writer = null;
+			out = null;
+			super.reset();
+		}
+	}
+	
+	@Override
+	public synchronized void sendError(int sc, String msg) throws IOException {
+		check();
+		isCommitted = true;
+		super.sendError(sc, msg);
+	}
+	
+	@Override
+	public synchronized void sendError(int sc) throws IOException {
+		check();
+		isCommitted = true;
+		super.sendError(sc);
+	}
+	
+	@Override
+	public synchronized void sendRedirect(String location) throws IOException {
+		check();
+		isCommitted = true;
+		super.sendRedirect(location);
+	}
+	
+	@Override
+	public synchronized void setStatus(int sc) {
+		if (!isAbandoned) {
+			super.setStatus(sc);
+		}
+	}
+	
+	@Override
+	public synchronized void setHeader(String name, String value) {
+		if (!isAbandoned) {
+			super.setHeader(name, value);
+		}
+	}
+	
+	@Override
+	public synchronized void addHeader(String name, String value) {
+		if (!isAbandoned) {
+			super.addHeader(name, value);
+		}
+	}
+	
+	@Override
+	public synchronized void setDateHeader(String name, long date) {
+		if (!isAbandoned) {
+			super.setDateHeader(name, date);
+		}
+	}
+	
+	@Override
+	public synchronized void addDateHeader(String name, long date) {
+		if (!isAbandoned) {
+			super.addDateHeader(name, date);
+		}
+	}
+	
+	@Override
+	public synchronized void setIntHeader(String name, int value) {
+		if (!isAbandoned) {
+			super.setIntHeader(name, value);
+		}
+	}
+	
+	@Override
+	public synchronized void addIntHeader(String name, int value) {
+		if (!isAbandoned) {
+			super.addIntHeader(name, value);
+		}
+	}
+	
+	@Override
+	public synchronized void addCookie(Cookie cookie) {
+		if (!isAbandoned) {
+			super.addCookie(cookie);
+		}
+	}
+	
+	@Override
+	public synchronized void setContentType(String type) {
+		if (!isAbandoned) {
+			super.setContentType(type);
+		}
+	}
+	
+	@Override
+	public synchronized void setContentLength(int len) {
+		if (!isAbandoned) {
+			super.setContentLength(len);
+		}
+	}
+	
+	@Override
+	public synchronized void setContentLengthLong(long len) {
+		if (!isAbandoned) {
+			super.setContentLengthLong(len);
+		}
+	}
+	
+	@Override
+	public synchronized void setCharacterEncoding(String charset) {
+		if (!isAbandoned) {
+			super.setCharacterEncoding(charset);
+		}
+	}
+}
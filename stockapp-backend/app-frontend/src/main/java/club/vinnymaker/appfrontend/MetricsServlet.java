@@ -0,0 +1,43 @@
+package club.vinnymaker.appfrontend;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import club.vinnymaker.metrics.JvmMetrics;
+import club.vinnymaker.metrics.MetricsRegistry;
+import club.vinnymaker.metrics.MetricsServer;
+
+/**
+ * Serves all the metrics of the frontend, its data store's included, in the Prometheus text format at /metrics.
+ * Mapped on its own, so scrapes skip routing, rate limits and the worker pools. Only clients allowed by
+ * MetricsServer.isAllowed() are served, others get a 403.
+ * 
+ * @author evinay
+ *
+ */
+public class MetricsServlet extends HttpServlet {
+	private static final long serialVersionUID = -2716316425094553871L;
+	
+	@Override
+	public void init() throws ServletException {
+		JvmMetrics.register(MetricsRegistry.getInstance());
+	}
+	
+	@Override
+	protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+		// An IP literal, no lookup involved.
+		if (!MetricsServer.isAllowed(InetAddress.getByName(req.getRemoteAddr()))) {
+			resp.sendError(HttpServletResponse.SC_FORBIDDEN);
+			return;
+		}
+		
+		resp.setStatus(HttpServletResponse.SC_OK);
+		resp.setContentType(MetricsRegistry.CONTENT_TYPE);
+		MetricsRegistry.getInstance().write(resp.getWriter());
+	}
+}
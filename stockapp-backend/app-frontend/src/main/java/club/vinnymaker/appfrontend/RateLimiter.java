@@ -0,0 +1,102 @@
+package club.vinnymaker.appfrontend;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock free token bucket rate limiter, implemented as GCRA(generic cell rate algorithm). Instead of a token count
+ * and a refill timestamp, each bucket is a single long, the theoretical arrival time(TAT) of the next request. A
+ * request is admitted if it isn't more than a burst's worth of requests ahead of its TAT, admitting it moves the
+ * TAT one emission interval(1 / rate) ahead. That's a clock read and a CAS per request, no locks and no allocation
+ * for buckets that already exist.
+ *
+ * Buckets are kept for the limiter as a whole and for each client key. Client buckets that have filled up again
+ * are forgotten, so the number of buckets stays proportional to the number of recently active clients.
+ *
+ * @author evinay
+ *
+ */
+class RateLimiter {
+	
+	// Client buckets are swept at most this often, and only when there are this many of them.
+	private static final long SWEEP_INTERVAL_NS = TimeUnit.SECONDS.toNanos(10);
+	private static final int SWEEP_THRESHOLD = 1024;
+	
+	// Time between requests at the sustained rate.
+	private final long intervalNs;
+	
+	// How far ahead of its TAT a request may arrive, i.e., room for a burst of requests after an idle period.
+	private final long toleranceNs;
+	
+	private final AtomicLong globalTat;
+	private final ConcurrentHashMap<String, AtomicLong> clientTats = new ConcurrentHashMap<>();
+	private final AtomicLong nextSweep;
+	
+	/**
+	 * @param perSecond Sustained rate of requests allowed.
+	 * @param burst Largest number of requests allowed at once, after a bucket has been idle.
+	 */
+	RateLimiter(double perSecond, int burst) {
+		intervalNs = (long) (TimeUnit.SECONDS.toNanos(1) / perSecond);
+		toleranceNs = intervalNs * (burst - 1);
+		
+		long now = System.nanoTime();
+		globalTat = new AtomicLong(now);
+		nextSweep = new AtomicLong(now + SWEEP_INTERVAL_NS);
+	}
+	
+	/**
+	 * Takes a token from the limiter's global bucket.
+	 *
+	 * @return 0 if the request is admitted, otherwise nanoseconds until it would be.
+	 */
+	long acquire() {
+		return acquire(globalTat, System.nanoTime());
+	}
+	
+	/**
+	 * Takes a token from the given client's bucket.
+	 *
+	 * @param key Identifies the client, e.g., its address.
+	 *
+	 * @return 0 if the request is admitted, otherwise nanoseconds until it would be.
+	 */
+	long acquire(String key) {
+		long now = System.nanoTime();
+		AtomicLong tat = clientTats.get(key);
+		if (tat == null) {
+			tat = clientTats.computeIfAbsent(key, (k) -> new AtomicLong(now));
+			maybeSweep(now);
+		}
+		return acquire(tat, now);
+	}
+	
+	private long acquire(AtomicLong tat, long now) {
+		while (true) {
+			long current = tat.get();
+			// nanoTime may wrap around, so times are only ever compared through their difference.
+			long next = (current - now > 0 ? current : now) + intervalNs;
+			long wait = next - now - toleranceNs - intervalNs;
+			if (wait > 0) {
+				return wait;
+			}
+			if (tat.compareAndSet(current, next)) {
+				return 0;
+			}
+		}
+	}
+	
+	/**
+	 * Forgets client buckets that are full again, a new bucket for them would be in the same state. A request racing
+	 * with the removal may land on the forgotten bucket and go uncounted, that's one request per sweep at worst.
+	 */
+	private void maybeSweep(long now) {
+		long at = nextSweep.get();
+		if (clientTats.size() < SWEEP_THRESHOLD || now - at < 0
+				|| !nextSweep.compareAndSet(at, now + SWEEP_INTERVAL_NS)) {
+			return;
+		}
+		clientTats.entrySet().removeIf((e) -> e.getValue().get() - now <= 0);
+	}
+}
@@ -0,0 +1,332 @@
+package club.vinnymaker.appfrontend;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import club.vinnymaker.appfrontend.RoutingServlet.APIRoute;
+import club.vinnymaker.appfrontend.controllers.BaseController;
+import club.vinnymaker.metrics.MetricsRegistry;
+
+/**
+ * RequestExecutor runs controllers off the container's threads. Cheap reads and DB/CPU heavy requests are queued on
+ * separate bounded pools, so a burst of slow requests can't hold up the cheap ones. When a pool's queue is full, or a
+ * request waits in it longer than its route's timeout, the request is shed with a 503 instead of piling up.
+ * 
+ * The route's timeout bounds the request as a whole. A controller still running at the deadline(e.g., stuck in 
+ * JDBC) is interrupted and its request completed with a 503 right away, the controller writes to a 
+ * {@link BufferedResponse} so that whatever it does afterwards is dropped. Its worker stays busy until it returns.
+ * 
+ * Heavy requests are also limited globally to a few more than the database connection pool can serve at once,
+ * counting both queued and running ones. Beyond that they would only wait for connections, so they're shed right
+ * away instead.
+ *
+ * @author evinay
+ *
+ */
+class RequestExecutor {
+	
+	/**
+	 * Kind of work a route does, decides the pool its requests run on.
+	 */
+	enum Workload {
+		// Served mostly from memory.
+		READ,
+		// Hits the database or does expensive hashing on most requests.
+		HEAVY,
+		// Long lived requests that manage their own async processing, run directly on the container thread.
+		STREAM
+	}
+	
+	private static final Logger logger = LogManager.getLogger(RequestExecutor.class);
+	
+	private static final int CPUS = Runtime.getRuntime().availableProcessors();
+	private static final int READ_THREADS = 2 * CPUS;
+	private static final int READ_QUEUE_SIZE = 256;
+	private static final int HEAVY_THREADS = CPUS;
+	private static final int HEAVY_QUEUE_SIZE = 64;
+	
+	// Twice the connection pool(see hibernate.cfg.xml), every connection busy with another request lined up for it.
+	private static final int MAX_HEAVY_IN_FLIGHT = 32;
+	
+	private static final String OVERLOADED_ERROR = "Server is overloaded, try again later";
+	private static final String TIMED_OUT_ERROR = "Request took too long, try again later";
+	private static final String RETRY_AFTER_SECS = "1";
+	
+	// States of a single request.
+	private static final int QUEUED = 0;
+	private static final int RUNNING = 1;
+	private static final int EXPIRED = 2;
+	
+	private final ThreadPoolExecutor readPool;
+	private final ThreadPoolExecutor heavyPool;
+	private final ScheduledExecutorService timer;
+	
+	// Heavy requests admitted and not yet done.
+	private final AtomicInteger heavyInFlight = new AtomicInteger();
+	
+	RequestExecutor() {
+		readPool = newPool("read-worker", READ_THREADS, READ_QUEUE_SIZE);
+		heavyPool = newPool("heavy-worker", HEAVY_THREADS, HEAVY_QUEUE_SIZE);
+		ScheduledThreadPoolExecutor t = new ScheduledThreadPoolExecutor(1, platformThreads("request-timer"));
+		// Almost every timeout gets cancelled, don't let them pile up in the queue.
+		t.setRemoveOnCancelPolicy(true);
+		timer = t;
+	}
+	
+	private static ThreadPoolExecutor newPool(String name, int threads, int queueSize) {
+		// AbortPolicy, so that a full queue is reported back to us right away.
+		return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(queueSize), workerThreads(name), new ThreadPoolExecutor.AbortPolicy());
+	}
+	
+	private static ThreadFactory platformThreads(String name) {
+		AtomicInteger count = new AtomicInteger();
+		return (r) -> {
+			Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		};
+	}
+	
+	/**
+	 * Workers spend most of their time blocked on JDBC, so they run on virtual threads when the JVM has them
+	 * (Java 21 onwards). The pools stay bounded either way.
+	 */
+	private static ThreadFactory workerThreads(String name) {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 1L);
+			Method factory = builderClass.getMethod("factory");
+			return (ThreadFactory) factory.invoke(builder);
+		} catch (ReflectiveOperationException e) {
+			return platformThreads(name);
+		}
+	}
+	
+	/**
+	 * Exports gauges of the pools' queues and in flight heavy requests.
+	 */
+	void registerMetrics(MetricsRegistry registry) {
+		String help = "Requests waiting for a worker";
+		registry.gauge("stockapp_http_queued_requests", help, () -> readPool.getQueue().size(), "pool", "read");
+		registry.gauge("stockapp_http_queued_requests", help, () -> heavyPool.getQueue().size(), "pool", "heavy");
+		registry.gauge("stockapp_http_heavy_in_flight", "Heavy requests admitted and not yet done", 
+				heavyInFlight::get);
+	}
+	
+	/**
+	 * Runs the route's controller asynchronously on the pool for its workload. Streaming routes run right away on
+	 * the calling thread.
+	 * 
+	 * @param startNs When the request was routed, as returned by System.nanoTime().
+	 */
+	void execute(APIRoute route, HttpServletRequest req, HttpServletResponse resp, Map<String, String> params, 
+			long startNs) throws IOException {
+		if (route.getWorkload() == Workload.STREAM) {
+			route.getController().view(req, resp, params);
+			route.record(startNs, resp.getStatus());
+			return;
+		}
+		
+		boolean isHeavy = route.getWorkload() == Workload.HEAVY;
+		if (isHeavy && heavyInFlight.incrementAndGet() > MAX_HEAVY_IN_FLIGHT) {
+			heavyInFlight.decrementAndGet();
+			sendOverloaded(resp);
+			route.record(startNs, HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			return;
+		}
+		
+		AsyncContext context = req.startAsync();
+		// Timeouts are enforced by us, the container's would race with a controller that's still running.
+		context.setTimeout(0);
+		
+		ThreadPoolExecutor pool = isHeavy ? heavyPool : readPool;
+		Task task = new Task(route, context, req, resp, params, startNs);
+		try {
+			pool.execute(task);
+		} catch (RejectedExecutionException e) {
+			shed(task);
+			release(task);
+			return;
+		}
+		
+		// The deadline is from routing, time spent waiting in the queue counts.
+		long delayNs = TimeUnit.MILLISECONDS.toNanos(route.getTimeoutMs()) - (System.nanoTime() - startNs);
+		task.timeout = timer.schedule(() -> expire(pool, task), delayNs, TimeUnit.NANOSECONDS);
+	}
+	
+	private static void sendUnavailable(HttpServletResponse resp, String reason) throws IOException {
+		resp.setHeader(RoutingServlet.RETRY_AFTER_HEADER, RETRY_AFTER_SECS);
+		RoutingServlet.sendError(resp, HttpServletResponse.SC_SERVICE_UNAVAILABLE, reason);
+	}
+	
+	private static void sendOverloaded(HttpServletResponse resp) throws IOException {
+		sendUnavailable(resp, OVERLOADED_ERROR);
+	}
+	
+	/**
+	 * Runs at a request's deadline. A queued request is shed, a running one is abandoned and answered with a 503.
+	 */
+	private void expire(ThreadPoolExecutor pool, Task task) {
+		if (task.state.compareAndSet(QUEUED, EXPIRED)) {
+			pool.remove(task);
+			shed(task);
+			release(task);
+			return;
+		}
+		
+		if (!task.abandon()) {
+			// Done, or about to be.
+			return;
+		}
+		logger.warn("Request {} ran past its {} ms deadline, abandoned", task.req.getRequestURI(), 
+				task.route.getTimeoutMs());
+		try {
+			sendUnavailable(task.resp, TIMED_OUT_ERROR);
+		} catch (IOException | IllegalStateException e) {
+			// Client is gone, nothing to tell it.
+		} finally {
+			complete(task);
+		}
+	}
+	
+	private void shed(Task task) {
+		try {
+			sendOverloaded(task.resp);
+		} catch (IOException | IllegalStateException e) {
+			// Client is gone, nothing to tell it.
+		} finally {
+			complete(task);
+		}
+	}
+	
+	// Completes the request, its controller may still be running.
+	private static void complete(Task task) {
+		task.route.record(task.startNs, task.resp.getStatus());
+		task.context.complete();
+	}
+	
+	// Called once the request's controller has returned, or won't run.
+	private void release(Task task) {
+		if (task.route.getWorkload() == Workload.HEAVY) {
+			heavyInFlight.decrementAndGet();
+		}
+	}
+	
+	void shutdown() {
+		timer.shutdownNow();
+		readPool.shutdownNow();
+		heavyPool.shutdownNow();
+	}
+	
+	private class Task implements Runnable {
+		private final APIRoute route;
+		private final AsyncContext context;
+		private final HttpServletRequest req;
+		private final HttpServletResponse resp;
+		private final Map<String, String> params;
+		private final AtomicInteger state = new AtomicInteger(QUEUED);
+		private final long startNs;
+		private final BufferedResponse buffered;
+		private volatile ScheduledFuture<?> timeout;
+		private volatile Thread worker;
+		
+		Task(APIRoute route, AsyncContext context, HttpServletRequest req, HttpServletResponse resp,
+				Map<String, String> params, long startNs) {
+			this.route = route;
+			this.context = context;
+			this.req = req;
+			this.resp = resp;
+			this.params = params;
+			this.startNs = startNs;
+			this.buffered = new BufferedResponse(resp);
+		}
+		
+		/**
+		 * Abandons the running controller's response and interrupts it.
+		 * 
+		 * @return True if abandoned, false if the controller is done and its response is being sent.
+		 */
+		boolean abandon() {
+			synchronized (buffered) {
+				if (!buffered.abandon()) {
+					return false;
+				}
+				// Interrupted while holding the lock, so that finishing up can't miss it and leave the worker's
+				// thread interrupted.
+				Thread t = worker;
+				if (t != null) {
+					t.interrupt();
+				}
+				return true;
+			}
+		}
+		
+		@Override
+		public void run() {
+			if (!state.compareAndSet(QUEUED, RUNNING)) {
+				// Timed out while waiting in the queue, a 503 has already been sent.
+				return;
+			}
+			
+			worker = Thread.currentThread();
+			try {
+				route.getController().view(req, buffered, params);
+			} catch (Exception e) {
+				logger.error("Error processing request " + req.getRequestURI() + " - " + e.getMessage());
+				if (!buffered.isCommitted()) {
+					buffered.reset();
+					buffered.setHeader("Content-Type", "application/json");
+					try {
+						RoutingServlet.sendError(buffered, HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+								BaseController.INTERNAL_SERVER_ERROR);
+					} catch (IOException | IllegalStateException ex) {
+						// Client is gone.
+					}
+				}
+			} finally {
+				finish();
+			}
+		}
+		
+		private void finish() {
+			boolean isSent = false;
+			try {
+				isSent = buffered.commit();
+			} catch (IOException | IllegalStateException e) {
+				// Client is gone.
+				isSent = true;
+			}
+			
+			worker = null;
+			// An abandoned controller may have been interrupted, the pool's thread must not stay that way.
+			Thread.interrupted();
+			release(this);
+			if (isSent) {
+				ScheduledFuture<?> t = timeout;
+				if (t != null) {
+					t.cancel(false);
+				}
+				complete(this);
+			}
+		}
+	}
+}
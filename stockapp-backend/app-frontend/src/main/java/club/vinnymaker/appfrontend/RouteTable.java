@@ -0,0 +1,278 @@
+package club.vinnymaker.appfrontend;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * A routing table compiled into a trie of path segments. Each node has literal children and at most one named
+ * parameter(:name) child, leaves map request methods to handlers. A request path is matched in a single pass over
+ * its characters, literal segments are preferred over parameters and the matcher backtracks when a literal branch
+ * leads nowhere. e.g., with /stocks/search/:substr and /stocks/:exchange/:symbol/members registered,
+ * /stocks/search/NIFTY 50/members matches the second route.
+ *
+ * Routes must all be added before the table is shared between threads, lookups don't modify it.
+ *
+ * @param <T> Type of the route handlers.
+ *
+ * @author evinay
+ *
+ */
+public class RouteTable<T> {
+	
+	private static final char SEPARATOR = '/';
+	private static final char PARAM_PREFIX = ':';
+	
+	private static class Node<T> {
+		private final Map<String, Node<T>> literals = new HashMap<>();
+		private Node<T> param;
+		
+		// Handlers of routes ending at this node, by request method.
+		private final Map<String, Leaf<T>> leaves = new HashMap<>();
+		
+		// Methods of the leaves, sorted. Rebuilt as routes are added, so that matching doesn't allocate it.
+		private Set<String> allowedMethods = Collections.emptySet();
+	}
+	
+	private static class Leaf<T> {
+		private final T handler;
+		
+		// Names of the route's parameters, in the order they appear in its path.
+		private final String[] paramNames;
+		
+		Leaf(T handler, String[] paramNames) {
+			this.handler = handler;
+			this.paramNames = paramNames;
+		}
+	}
+	
+	/**
+	 * Result of matching a request against the table.
+	 */
+	public static class Match<T> {
+		private final T handler;
+		private final Map<String, String> params;
+		private final Set<String> allowedMethods;
+		
+		private Match(T handler, Map<String, String> params, Set<String> allowedMethods) {
+			this.handler = handler;
+			this.params = params;
+			this.allowedMethods = allowedMethods;
+		}
+		
+		/**
+		 * @return Handler of the matching route, or null if the path matched but not for the request's method.
+		 */
+		public T getHandler() {
+			return handler;
+		}
+		
+		/**
+		 * @return Values of the route's named parameters, keyed by their names.
+		 */
+		public Map<String, String> getParams() {
+			return params;
+		}
+		
+		/**
+		 * @return All the methods allowed on the matched path.
+		 */
+		public Set<String> getAllowedMethods() {
+			return allowedMethods;
+		}
+	}
+	
+	private final Node<T> root = new Node<>();
+	private int maxDepth = 0;
+	
+	/**
+	 * Adds a route to the table.
+	 *
+	 * @param method Request method, GET, POST etc...
+	 * @param pattern Path pattern with named parameters, e.g., /stocks/:exchange/:symbol.
+	 * @param handler Handler for requests matching this route.
+	 *
+	 * @throws IllegalArgumentException If the same method and pattern have already been added.
+	 */
+	public void add(String method, String pattern, T handler) {
+		Node<T> node = root;
+		List<String> paramNames = new ArrayList<>();
+		int depth = 0;
+		for (String segment : pattern.split(String.valueOf(SEPARATOR))) {
+			if (segment.isEmpty()) {
+				continue;
+			}
+			
+			depth++;
+			if (segment.charAt(0) == PARAM_PREFIX) {
+				paramNames.add(segment.substring(1));
+				if (node.param == null) {
+					node.param = new Node<>();
+				}
+				node = node.param;
+			} else {
+				node = node.literals.computeIfAbsent(segment, (k) -> new Node<>());
+			}
+		}
+		
+		if (node.leaves.containsKey(method)) {
+			throw new IllegalArgumentException("Duplicate route " + method + " " + pattern);
+		}
+		node.leaves.put(method, new Leaf<>(handler, paramNames.toArray(new String[0])));
+		node.allowedMethods = Collections.unmodifiableSet(new TreeSet<>(node.leaves.keySet()));
+		maxDepth = Math.max(maxDepth, depth);
+	}
+	
+	/**
+	 * Matches a request against the table.
+	 *
+	 * @param method Request method.
+	 * @param path Request path.
+	 *
+	 * @return The match, or null if no route has a matching path.
+	 */
+	public Match<T> match(String method, String path) {
+		if (path == null || path.isEmpty() || path.charAt(0) != SEPARATOR) {
+			return null;
+		}
+		
+		// Start and end offsets, in the path, of the values of parameters along the matched branch.
+		int[] bounds = new int[2 * (maxDepth + 1)];
+		Node<T> node = find(root, path, 1, bounds, 0, method);
+		if (node == null) {
+			// Nothing for this method, see if the path exists at all.
+			node = find(root, path, 1, bounds, 0, null);
+			if (node == null) {
+				return null;
+			}
+			return new Match<>(null, Collections.emptyMap(), node.allowedMethods);
+		}
+		
+		Leaf<T> leaf = node.leaves.get(method);
+		String[] values = new String[leaf.paramNames.length];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = path.substring(bounds[2 * i], bounds[2 * i + 1]);
+		}
+		return new Match<>(leaf.handler, new Params(leaf.paramNames, values), node.allowedMethods);
+	}
+	
+	/**
+	 * Finds the node for the rest of the path, starting at the given offset.
+	 *
+	 * @param numParams Number of parameters matched so far along this branch.
+	 * @param method Only nodes with a route for this method are considered, any route will do if null.
+	 */
+	private Node<T> find(Node<T> node, String path, int start, int[] bounds, int numParams, String method) {
+		int len = path.length();
+		if (start >= len) {
+			// End of the path, with or without a trailing separator.
+			boolean isMatch = method == null ? !node.leaves.isEmpty() : node.leaves.containsKey(method);
+			return isMatch ? node : null;
+		}
+		
+		int end = path.indexOf(SEPARATOR, start);
+		if (end < 0) {
+			end = len;
+		}
+		if (end == start) {
+			// Empty segment, no route has those.
+			return null;
+		}
+		
+		if (!node.literals.isEmpty()) {
+			Node<T> next = node.literals.get(path.substring(start, end));
+			if (next != null) {
+				Node<T> found = find(next, path, end + 1, bounds, numParams, method);
+				if (found != null) {
+					return found;
+				}
+			}
+		}
+		
+		if (node.param != null && 2 * numParams + 1 < bounds.length) {
+			bounds[2 * numParams] = start;
+			bounds[2 * numParams + 1] = end;
+			return find(node.param, path, end + 1, bounds, numParams + 1, method);
+		}
+		return null;
+	}
+	
+	/**
+	 * A read only view over a route's parameter names and the values matched for them. Routes have only a couple
+	 * of parameters, so lookups just scan the names.
+	 */
+	private static class Params extends AbstractMap<String, String> {
+		private final String[] names;
+		private final String[] values;
+		
+		Params(String[] names, String[] values) {
+			this.names = names;
+			this.values = values;
+		}
+		
+		@Override
+		public String get(Object key) {
+			for (int i = 0; i < names.length; i++) {
+				if (names[i].equals(key)) {
+					return values[i];
+				}
+			}
+			return null;
+		}
+		
+		@Override
+		public boolean containsKey(Object key) {
+			for (String name : names) {
+				if (name.equals(key)) {
+					return true;
+				}
+			}
+			return false;
+		}
+		
+		@Override
+		public int size() {
+			return names.length;
+		}
+		
+		@Override
+		public Set<Entry<String, String>> entrySet() {
+			return new AbstractSet<Entry<String, String>>() {
+				@Override
+				public Iterator<Entry<String, String>> iterator() {
+					return new Iterator<Entry<String, String>>() {
+						private int i = 0;
+						
+						@Override
+						public boolean hasNext() {
+							return i < names.length;
+						}
+						
+						@Override
+						public Entry<String, String> next() {
+							if (i >= names.length) {
+								throw new NoSuchElementException();
+							}
+							Entry<String, String> e = new SimpleImmutableEntry<>(names[i], values[i]);
+							i++;
+							return e;
+						}
+					};
+				}
+				
+				@Override
+				public int size() {
+					return names.length;
+				}
+			};
+		}
+	}
+}
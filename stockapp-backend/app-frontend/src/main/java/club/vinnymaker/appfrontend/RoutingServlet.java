@@ -2,61 +2,203 @@ package club.vinnymaker.appfrontend;
 
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import org.bigtesting.routd.NamedParameterElement;
-import org.bigtesting.routd.Route;
-import org.bigtesting.routd.Router;
-import org.bigtesting.routd.TreeRouter;
 import org.json.JSONObject;
 
+import club.vinnymaker.appfrontend.RequestExecutor.Workload;
 import club.vinnymaker.appfrontend.controllers.UserController;
 import club.vinnymaker.appfrontend.controllers.IController;
 import club.vinnymaker.appfrontend.controllers.StockController;
+import club.vinnymaker.appfrontend.controllers.StreamController;
+import club.vinnymaker.appfrontend.controllers.WatchlistController;
+import club.vinnymaker.appfrontend.stream.QuoteFeed;
+import club.vinnymaker.appfrontend.stream.QuoteStreamHub;
+import club.vinnymaker.datastore.DataStoreManager;
+import club.vinnymaker.metrics.Counter;
+import club.vinnymaker.metrics.Histogram;
+import club.vinnymaker.metrics.MetricsRegistry;
+import club.vinnymaker.stockapp.updater.Updater;
 import lombok.Getter;
 
+import static club.vinnymaker.appfrontend.RequestExecutor.Workload.HEAVY;
+import static club.vinnymaker.appfrontend.RequestExecutor.Workload.READ;
+import static club.vinnymaker.appfrontend.RequestExecutor.Workload.STREAM;
+
 public class RoutingServlet extends HttpServlet {
 	private static final long serialVersionUID = 956003895642907877L;
-	private static Router router;
+	private static final RouteTable<APIRoute> routes = new RouteTable<>();
 	
 	public static final String ERROR_CODE_KEY = "errorCode";
 	public static final String INCORRECT_REQUEST_METHOD_ERROR = "Wrong method for this request";
 	public static final String RESOURCE_NOT_FOUND_ERROR = "Resource not found";
+	public static final String TOO_MANY_REQUESTS_ERROR = "Too many requests, slow down";
+	private static final String ALLOW_HEADER = "Allow";
+	static final String RETRY_AFTER_HEADER = "Retry-After";
+	
+	// Not in HttpServletResponse until servlet 4.0.
+	private static final int SC_TOO_MANY_REQUESTS = 429;
+	
+	// Longest time requests of a route may wait for a worker before they're shed.
+	private static final long READ_TIMEOUT_MS = 2000;
+	private static final long HEAVY_TIMEOUT_MS = 5000;
+	
+	// Rate limits, requests per second and burst size. Before authentication the only thing known about a client is
+	// its address, each address gets a bucket on each route. Addresses may be shared(e.g., NAT), so they're allowed
+	// several users' worth. Once authenticated, each user also gets a bucket on each route. Every route has a bucket
+	// shared by all clients too, heavy routes(DB hits and BCrypt checks on every request) a much smaller one.
+	private static final double READ_ADDRESS_RATE = 100;
+	private static final int READ_ADDRESS_BURST = 200;
+	private static final double READ_USER_RATE = 20;
+	private static final int READ_USER_BURST = 40;
+	private static final double READ_ROUTE_RATE = 5000;
+	private static final int READ_ROUTE_BURST = 10000;
+	private static final double HEAVY_ADDRESS_RATE = 20;
+	private static final int HEAVY_ADDRESS_BURST = 50;
+	private static final double HEAVY_USER_RATE = 2;
+	private static final int HEAVY_USER_BURST = 10;
+	private static final double HEAVY_ROUTE_RATE = 200;
+	private static final int HEAVY_ROUTE_BURST = 400;
+	private static final double STREAM_ADDRESS_RATE = 1;
+	private static final int STREAM_ADDRESS_BURST = 20;
+	private static final double STREAM_USER_RATE = 0.2;
+	private static final int STREAM_USER_BURST = 5;
+	private static final double STREAM_ROUTE_RATE = 100;
+	private static final int STREAM_ROUTE_BURST = 1000;
+	
+	// Request attributes, the request's route and how long an authenticated user has to wait if over their limit.
+	private static final String ROUTE_ATTR = "stockapp.route";
+	private static final String USER_WAIT_ATTR = "stockapp.userWaitNs";
+	
+	private RequestExecutor executor;
+	private WarmStartFile warmStart;
+	
+	private static final String DURATION_METRIC = "stockapp_http_request_duration_seconds";
+	private static final String DURATION_HELP = "Time from routing a request to completing its response";
+	private static final String RESPONSES_METRIC = "stockapp_http_responses_total";
+	private static final String RESPONSES_HELP = "Responses sent, by status class";
 	
 	@Getter
-	static class APIRoute extends Route {
-		private final String requestMethod;
+	static class APIRoute {
+		private final String path;
+		private final String method;
 		private final IController controller;
+		private final Workload workload;
+		private final long timeoutMs;
+		private final RateLimiter addressLimiter;
+		private final RateLimiter userLimiter;
+		private final RateLimiter routeLimiter;
+		
+		// Null for streaming routes, whose requests last as long as the client stays.
+		private final Histogram duration;
+		// Responses by status class, 1xx to 5xx.
+		private final Counter[] responses = new Counter[5];
 		
-		public APIRoute(String path, String method,  IController controller) {
-			super(path);
-			requestMethod = method;
+		public APIRoute(String path, String method, IController controller, Workload workload, long timeoutMs) {
+			this.path = path;
+			this.method = method;
 			this.controller = controller;
+			this.workload = workload;
+			this.timeoutMs = timeoutMs;
+			
+			MetricsRegistry registry = MetricsRegistry.getInstance();
+			duration = workload == STREAM ? null : registry.histogram(DURATION_METRIC, DURATION_HELP, "route", path, 
+					"method", method);
+			for (int i = 0; i < responses.length; i++) {
+				responses[i] = registry.counter(RESPONSES_METRIC, RESPONSES_HELP, "route", path, "method", method, 
+						"code", (i + 1) + "xx");
+			}
+			
+			switch (workload) {
+			case HEAVY:
+				addressLimiter = new RateLimiter(HEAVY_ADDRESS_RATE, HEAVY_ADDRESS_BURST);
+				userLimiter = new RateLimiter(HEAVY_USER_RATE, HEAVY_USER_BURST);
+				routeLimiter = new RateLimiter(HEAVY_ROUTE_RATE, HEAVY_ROUTE_BURST);
+				break;
+			case STREAM:
+				addressLimiter = new RateLimiter(STREAM_ADDRESS_RATE, STREAM_ADDRESS_BURST);
+				userLimiter = new RateLimiter(STREAM_USER_RATE, STREAM_USER_BURST);
+				routeLimiter = new RateLimiter(STREAM_ROUTE_RATE, STREAM_ROUTE_BURST);
+				break;
+			default:
+				addressLimiter = new RateLimiter(READ_ADDRESS_RATE, READ_ADDRESS_BURST);
+				userLimiter = new RateLimiter(READ_USER_RATE, READ_USER_BURST);
+				routeLimiter = new RateLimiter(READ_ROUTE_RATE, READ_ROUTE_BURST);
+			}
+		}
+		
+		/**
+		 * Takes a token from the client address's bucket and then from the route's.
+		 * 
+		 * @return 0 if the request may go ahead, otherwise nanoseconds until it could.
+		 */
+		long admit(String address) {
+			long wait = addressLimiter.acquire(address);
+			if (wait == 0) {
+				wait = routeLimiter.acquire();
+			}
+			return wait;
+		}
+		
+		/**
+		 * Records a response sent for this route.
+		 * 
+		 * @param startNs When the request was routed, as returned by System.nanoTime().
+		 * @param status Status code of the response.
+		 */
+		void record(long startNs, int status) {
+			if (duration != null) {
+				duration.recordSince(startNs);
+			}
+			int statusClass = status / 100;
+			if (statusClass >= 1 && statusClass <= responses.length) {
+				responses[statusClass - 1].inc();
+			}
 		}
 	}
 	
-	// All valid URIs are registered here in the router. 
+	private static void addRoute(String path, String[] methods, IController controller, Workload workload, 
+			long timeoutMs) {
+		for (String method : methods) {
+			routes.add(method, path, new APIRoute(path, method, controller, workload, timeoutMs));
+		}
+	}
+	
+	private static void addRoute(String path, String method, IController controller, Workload workload, 
+			long timeoutMs) {
+		addRoute(path, new String[] {method}, controller, workload, timeoutMs);
+	}
+	
+	// All valid URIs are registered here in the routing table. 
 	static {
-		router = new TreeRouter();
-		
 		// User data related requests.
-		router.add(new APIRoute("/users/:username", "GET", UserController::getUser));
-		router.add(new APIRoute("/users", "POST", UserController::createOrUpdateUser));
+		addRoute("/users/:username", "GET", UserController::getUser, HEAVY, HEAVY_TIMEOUT_MS);
+		addRoute("/users", "POST", UserController::createOrUpdateUser, HEAVY, HEAVY_TIMEOUT_MS);
+		addRoute("/users/:username/watchlist", "GET", WatchlistController::getWatchlist, HEAVY, HEAVY_TIMEOUT_MS);
+		addRoute("/users/:username/watchlist", "POST", WatchlistController::updateWatchlist, HEAVY, HEAVY_TIMEOUT_MS);
+		addRoute("/users/:username/watchlist/quotes", "GET", WatchlistController::getWatchlistQuotes, HEAVY, 
+				HEAVY_TIMEOUT_MS);
 		
 		// Stock data related requests.
-		router.add(new APIRoute("/stocks/:exchange/:symbol", "GET", StockController::getItemData));
-		router.add(new APIRoute("/stocks/:exchange/:symbol/members", "GET", StockController::getIndexComponents));
-		router.add(new APIRoute("/stocks/search/:substr", "GET", StockController::getMatches));
+		addRoute("/stocks/:exchange", new String[] {"GET", "POST"}, StockController::getItemsData, READ, 
+				READ_TIMEOUT_MS);
+		addRoute("/stocks/:exchange/:symbol", "GET", StockController::getItemData, READ, READ_TIMEOUT_MS);
+		addRoute("/stocks/:exchange/:symbol/members", "GET", StockController::getIndexComponents, READ, 
+				READ_TIMEOUT_MS);
+		addRoute("/stocks/search/:substr", "GET", StockController::getMatches, HEAVY, HEAVY_TIMEOUT_MS);
+		
+		// Live updates of stock data.
+		addRoute("/stream/:exchange", "GET", StreamController::subscribe, STREAM, 0);
 		
 		// Exchange related requests.
-		router.add(new APIRoute("/exchanges/:exids", "GET", StockController::getExchanges));
-		router.add(new APIRoute("/exchanges/:exid/indexes", "GET", StockController::getIndexes));
+		addRoute("/exchanges/:exids", "GET", StockController::getExchanges, READ, READ_TIMEOUT_MS);
+		addRoute("/exchanges/:exid/indexes", "GET", StockController::getIndexes, READ, READ_TIMEOUT_MS);
 	}
 	
 	private static String errorResponseBody(String errorReason) {
@@ -72,45 +214,114 @@ public class RoutingServlet extends HttpServlet {
 		pw.close();
 	}
 	
-	private static boolean checkRequestAndThrow(HttpServletRequest req, HttpServletResponse resp) throws IOException {
-		Route route = router.route(req.getPathInfo());
+	private static void sendTooManyRequests(HttpServletResponse resp, long waitNs) throws IOException {
+		// Retry-After is in whole seconds, round up so that the retry is admitted.
+		resp.setHeader(RETRY_AFTER_HEADER, String.valueOf(TimeUnit.NANOSECONDS.toSeconds(waitNs - 1) + 1));
+		sendError(resp, SC_TOO_MANY_REQUESTS, TOO_MANY_REQUESTS_ERROR);
+	}
+	
+	/**
+	 * Takes a token from an authenticated user's bucket on the request's route. Controllers call this once the user
+	 * is authenticated, a user name claimed by an unauthenticated request must not be trusted with a bucket of its
+	 * own, or a client could get fresh limits by claiming a new name on every request.
+	 * 
+	 * @return True if the request may go ahead. If not, sendUserLimited() sends the response.
+	 */
+	public static boolean admitUser(HttpServletRequest req, String username) {
+		Object route = req.getAttribute(ROUTE_ATTR);
 		if (!(route instanceof APIRoute)) {
-			sendError(resp, HttpServletResponse.SC_NOT_FOUND, RESOURCE_NOT_FOUND_ERROR);
-			return false;
+			return true;
 		}
 		
-		APIRoute aroute = (APIRoute) route;
-		if (!aroute.getRequestMethod().equals(req.getMethod())) {
-			sendError(resp, HttpServletResponse.SC_FORBIDDEN, INCORRECT_REQUEST_METHOD_ERROR);
+		long waitNs = ((APIRoute) route).userLimiter.acquire(username);
+		if (waitNs > 0) {
+			req.setAttribute(USER_WAIT_ATTR, waitNs);
 			return false;
 		}
-		
 		return true;
 	}
 	
-	/** 
-	 * Returns a dictionary of named parameters in the URI mapped to their values. e.g., for the endpoint
-	 *  /stocks/search/:symbol and a matching request /stocks/search/CEMENT, it returns
-	 *  the map {symbol : CEMENT}.
+	/**
+	 * Sends a 429 if the request's user has been found over their limit by admitUser().
+	 * 
+	 * @return True if the response has been sent.
 	 */
-	private static Map<String, String> getVariableParams(Route route, String path) {
-		Map<String, String> ret = new HashMap<>();
-		for (NamedParameterElement elem : route.getNamedParameterElements()) {
-			String value = route.getNamedParameter(elem.name(), path);
-			ret.put(elem.name(), value);
+	public static boolean sendUserLimited(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+		Object waitNs = req.getAttribute(USER_WAIT_ATTR);
+		if (waitNs == null) {
+			return false;
 		}
-		return ret;
+		sendTooManyRequests(resp, (Long) waitNs);
+		return true;
 	}
 	
-	// Does some sanity checking, set some response headers and call the controller method.
-	private static void handle(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+	// Does some sanity checking, set some response headers and hand the request over to its controller.
+	private void handle(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+		long start = System.nanoTime();
 		resp.setHeader("Content-Type", "application/json");
-		if (!checkRequestAndThrow(req, resp)) {
+		RouteTable.Match<APIRoute> match = routes.match(req.getMethod(), req.getPathInfo());
+		if (match == null) {
+			sendError(resp, HttpServletResponse.SC_NOT_FOUND, RESOURCE_NOT_FOUND_ERROR);
+			return;
+		}
+		
+		if (match.getHandler() == null) {
+			resp.setHeader(ALLOW_HEADER, String.join(", ", match.getAllowedMethods()));
+			sendError(resp, HttpServletResponse.SC_METHOD_NOT_ALLOWED, INCORRECT_REQUEST_METHOD_ERROR);
+			return;
+		}
+		
+		APIRoute route = match.getHandler();
+		long waitNs = route.admit(req.getRemoteAddr());
+		if (waitNs > 0) {
+			sendTooManyRequests(resp, waitNs);
+			route.record(start, SC_TOO_MANY_REQUESTS);
 			return;
 		}
 		
-		APIRoute route = (APIRoute) router.route(req.getPathInfo());
-		route.getController().view(req, resp, getVariableParams(route, req.getPathInfo()));
+		req.setAttribute(ROUTE_ATTR, route);
+
+		executor.execute(route, req, resp, match.getParams(), start);
+	}
+	
+	@Override
+	public void init() throws ServletException {
+		executor = new RequestExecutor();
+		executor.registerMetrics(MetricsRegistry.getInstance());
+		
+		// Hibernate takes seconds to start, it's started alongside loading the warm start file instead of holding it
+		// up. Requests served from memory don't need it.
+		Thread dataStoreInit = new Thread(DataStoreManager::getInstance, "datastore-init");
+		dataStoreInit.setDaemon(true);
+		dataStoreInit.start();
+		
+		// Quotes saved by the previous instance are served until the feed's first poll catches up.
+		warmStart = WarmStartFile.fromProperties();
+		if (warmStart != null) {
+			warmStart.load();
+			warmStart.start();
+		}
+		
+		// Start watching for updated quotes, so that streaming clients get them as soon as they're seen. With the
+		// updater embedded, it's started along with the feed and quotes come straight from it.
+		QuoteStreamHub.getInstance().start();
+		QuoteFeed.getInstance().addListener(QuoteStreamHub.getInstance());
+		if (Boolean.getBoolean(Updater.EMBEDDED_PROPERTY)) {
+			QuoteFeed.getInstance().startEmbedded();
+		} else {
+			QuoteFeed.getInstance().start();
+		}
+	}
+	
+	@Override
+	public void destroy() {
+		QuoteFeed.getInstance().stop();
+		QuoteFeed.getInstance().removeListener(QuoteStreamHub.getInstance());
+		if (warmStart != null) {
+			warmStart.stop();
+		}
+		QuoteStreamHub.getInstance().stop();
+		executor.shutdown();
 	}
 	
 	@Override
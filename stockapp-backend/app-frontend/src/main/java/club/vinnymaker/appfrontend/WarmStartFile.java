@@ -0,0 +1,392 @@
+package club.vinnymaker.appfrontend;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import club.vinnymaker.appfrontend.controllers.StockController;
+import club.vinnymaker.appfrontend.stream.QuoteFeed;
+import club.vinnymaker.data.Exchange;
+import club.vinnymaker.data.MarketData;
+import club.vinnymaker.data.MarketDataType;
+import club.vinnymaker.datastore.MarketSnapshot;
+import club.vinnymaker.datastore.MarketSnapshot.ItemKey;
+import club.vinnymaker.datastore.MarketSnapshots;
+import club.vinnymaker.datastore.StockDataManager;
+
+/**
+ * WarmStartFile saves the frontend's market data every so often to a compact binary file: the latest quote of every
+ * item, the members of every index and the ids of the exchanges. A frontend that starts up loads it back before it
+ * takes any requests, so it serves quotes from memory right away instead of waiting for hibernate to start and the
+ * first full read of the data store. The feed's first poll then only reads what has changed since the file was
+ * saved.
+ *
+ * The file is written next to its final path and moved over it, so it's always either the previous file or the new
+ * one in full. It's read through a memory mapping, and ignored if its checksum doesn't match. Warm starts are off
+ * unless the stockapp.warmstart.file system property gives the file's path. Frontends sharing a path all load the
+ * file, but only the one holding the lock file next to it saves it.
+ *
+ * @author evinay
+ *
+ */
+public class WarmStartFile {
+	
+	private static final Logger logger = LogManager.getLogger(WarmStartFile.class);
+	
+	// Path of the file, warm starts are off unless it's set.
+	public static final String FILE_PROPERTY = "stockapp.warmstart.file";
+	private static final String TEMP_SUFFIX = ".tmp";
+	private static final String LOCK_SUFFIX = ".lock";
+	
+	// Once per update cycle, a frontend that starts up is at most a cycle behind until its first poll.
+	private static final long SAVE_INTERVAL_MS = 60000;
+	private static final String SAVER_THREAD_NAME = "warm-start-saver";
+	
+	private static final int MAGIC = 0x53574d53;
+	private static final int FORMAT_VERSION = 1;
+	
+	// Magic, format and data version.
+	private static final int HEADER_SIZE = 16;
+	
+	// CRC32 of everything before it.
+	private static final int TRAILER_SIZE = 8;
+	
+	private final Path path;
+	private ScheduledExecutorService saver;
+	
+	// Lock files held by this process. A second channel to a lock file mustn't be opened, closing it would release
+	// the lock held through the first one.
+	private static final Set<Path> lockedPaths = ConcurrentHashMap.newKeySet();
+	
+	// Held for as long as this instance saves the file.
+	private Path lockPath;
+	private FileChannel lockChannel;
+	
+	// Version of the snapshot saved last, only used by the saver thread and stop().
+	private long savedVersion = 0;
+	
+	public WarmStartFile(Path path) {
+		this.path = path;
+	}
+	
+	/**
+	 * @return The file given by the stockapp.warmstart.file system property, or null if warm starts are off.
+	 */
+	public static WarmStartFile fromProperties() {
+		String file = System.getProperty(FILE_PROPERTY, "");
+		return file.isEmpty() ? null : new WarmStartFile(Paths.get(file));
+	}
+	
+	/**
+	 * Loads the saved data into the quote feed(and so the quote board and market snapshots), and the exchange ids
+	 * into the stock controller. A missing or corrupt file is skipped, the frontend then just starts cold.
+	 *
+	 * @return True if the data was loaded.
+	 */
+	public boolean load() {
+		long start = System.nanoTime();
+		ByteBuffer buf;
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} catch (NoSuchFileException e) {
+			logger.info("No warm start file at {}, starting cold", path);
+			return false;
+		} catch (IOException e) {
+			logger.error("Error reading the warm start file " + path + " - " + e.getMessage());
+			return false;
+		}
+		
+		try {
+			if (!isIntact(buf)) {
+				logger.warn("Warm start file {} is corrupt, starting cold", path);
+				return false;
+			}
+			
+			long version = buf.getLong(8);
+			buf.position(HEADER_SIZE);
+			
+			Map<String, Integer> exchangeIds = new HashMap<>();
+			int numExchanges = buf.getInt();
+			for (int i = 0; i < numExchanges; i++) {
+				String code = readString(buf);
+				exchangeIds.put(code, buf.getInt());
+			}
+			
+			int numItems = buf.getInt();
+			List<MarketData> items = new ArrayList<>(numItems);
+			for (int i = 0; i < numItems; i++) {
+				items.add(readItem(buf));
+			}
+			
+			Map<ItemKey, List<ItemKey>> listings = new HashMap<>();
+			int numIndexes = buf.getInt();
+			for (int i = 0; i < numIndexes; i++) {
+				ItemKey index = readKey(buf);
+				int numMembers = buf.getInt();
+				List<ItemKey> members = new ArrayList<>(numMembers);
+				for (int j = 0; j < numMembers; j++) {
+					members.add(readKey(buf));
+				}
+				listings.put(index, members);
+			}
+			
+			StockController.addKnownExchangeIds(exchangeIds);
+			if (!QuoteFeed.getInstance().restore(version, items, listings)) {
+				return false;
+			}
+			savedVersion = version;
+			logger.info("Loaded {} items as of {} from the warm start file in {} ms", numItems, new Date(version),
+					TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+			return true;
+		} catch (BufferUnderflowException | IllegalArgumentException e) {
+			logger.warn("Warm start file {} can't be read, starting cold - {}", path, e.getMessage());
+			return false;
+		}
+	}
+	
+	private static boolean isIntact(ByteBuffer buf) {
+		int size = buf.limit();
+		if (size < HEADER_SIZE + TRAILER_SIZE || buf.getInt(0) != MAGIC || buf.getInt(4) != FORMAT_VERSION) {
+			return false;
+		}
+		
+		ByteBuffer content = buf.duplicate();
+		content.position(0).limit(size - TRAILER_SIZE);
+		CRC32 crc = new CRC32();
+		crc.update(content);
+		return crc.getValue() == buf.getLong(size - TRAILER_SIZE);
+	}
+	
+	private static String readString(ByteBuffer buf) {
+		byte[] bytes = new byte[buf.getShort() & 0xffff];
+		buf.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+	
+	private static ItemKey readKey(ByteBuffer buf) {
+		int exchangeId = buf.getInt();
+		return new ItemKey(exchangeId, readString(buf));
+	}
+	
+	private static MarketData readItem(ByteBuffer buf) {
+		MarketData item = new MarketData(readString(buf));
+		item.setId(buf.getInt());
+		item.setExchangeId(buf.getInt());
+		item.setType(MarketDataType.valueOf(readString(buf)));
+		item.setOpen(buf.getDouble());
+		item.setHigh(buf.getDouble());
+		item.setLow(buf.getDouble());
+		item.setLastTradedPrice(buf.getDouble());
+		item.setPreviousClose(buf.getDouble());
+		item.setVolume(buf.getDouble());
+		long updatedAt = buf.getLong();
+		item.setLastUpdatedAt(updatedAt < 0 ? null : new Date(updatedAt));
+		return item;
+	}
+	
+	/**
+	 * Starts saving the data periodically, unless another process is saving to the same file. Calling this on an
+	 * already started file has no effect.
+	 */
+	public synchronized void start() {
+		if (saver != null || !lock()) {
+			return;
+		}
+		
+		saver = Executors.newSingleThreadScheduledExecutor((r) -> {
+			Thread t = new Thread(r, SAVER_THREAD_NAME);
+			t.setDaemon(true);
+			return t;
+		});
+		saver.scheduleWithFixedDelay(this::save, SAVE_INTERVAL_MS, SAVE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Stops saving periodically, and saves the latest data once more for the instance that comes next.
+	 */
+	public synchronized void stop() {
+		if (saver == null) {
+			return;
+		}
+		
+		saver.shutdown();
+		try {
+			saver.awaitTermination(SAVE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		saver = null;
+		save();
+		unlock();
+	}
+	
+	private boolean lock() {
+		Path lockFile = path.resolveSibling(path.getFileName() + LOCK_SUFFIX).toAbsolutePath().normalize();
+		if (!lockedPaths.add(lockFile)) {
+			logger.warn("Warm start file {} is saved by another instance, only loading it", path);
+			return false;
+		}
+		
+		lockPath = lockFile;
+		try {
+			lockChannel = FileChannel.open(lockPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			if (lockChannel.tryLock() != null) {
+				return true;
+			}
+			logger.warn("Warm start file {} is saved by another process, only loading it", path);
+		} catch (IOException e) {
+			logger.error("Error locking the warm start file " + path + ", not saving it - " + e.getMessage());
+		}
+		unlock();
+		return false;
+	}
+	
+	private void unlock() {
+		if (lockPath == null) {
+			return;
+		}
+		if (lockChannel != null) {
+			try {
+				// Releases the lock along with the channel.
+				lockChannel.close();
+			} catch (IOException e) {
+				logger.error("Error unlocking the warm start file " + path + " - " + e.getMessage());
+			}
+			lockChannel = null;
+		}
+		lockedPaths.remove(lockPath);
+		lockPath = null;
+	}
+	
+	/**
+	 * Saves the current market snapshot, unless it's been saved already.
+	 */
+	private void save() {
+		MarketSnapshot snapshot = MarketSnapshots.getInstance().current();
+		if (snapshot == null || snapshot.getVersion() == savedVersion) {
+			return;
+		}
+		
+		try {
+			byte[] content = encode(snapshot);
+			Path temp = path.resolveSibling(path.getFileName() + TEMP_SUFFIX);
+			try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING)) {
+				ByteBuffer buf = ByteBuffer.wrap(content);
+				while (buf.hasRemaining()) {
+					channel.write(buf);
+				}
+				channel.force(true);
+			}
+			Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			savedVersion = snapshot.getVersion();
+		} catch (IOException | RuntimeException e) {
+			// Never let an exception cancel the scheduled save.
+			logger.error("Error saving the warm start file " + path + " - " + e.getMessage());
+		}
+	}
+	
+	private static byte[] encode(MarketSnapshot snapshot) throws IOException {
+		List<MarketData> items = snapshot.getItems();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * items.size() + 4096);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(MAGIC);
+		out.writeInt(FORMAT_VERSION);
+		out.writeLong(snapshot.getVersion());
+		
+		Map<String, Integer> exchangeIds = exchangeIds(items);
+		out.writeInt(exchangeIds.size());
+		for (Map.Entry<String, Integer> e : exchangeIds.entrySet()) {
+			writeString(out, e.getKey());
+			out.writeInt(e.getValue());
+		}
+		
+		out.writeInt(items.size());
+		for (MarketData item : items) {
+			writeString(out, item.getSymbol());
+			out.writeInt(item.getId());
+			out.writeInt(item.getExchangeId());
+			writeString(out, item.getType().name());
+			out.writeDouble(item.getOpen());
+			out.writeDouble(item.getHigh());
+			out.writeDouble(item.getLow());
+			out.writeDouble(item.getLastTradedPrice());
+			out.writeDouble(item.getPreviousClose());
+			out.writeDouble(item.getVolume());
+			out.writeLong(item.getLastUpdatedAt() == null ? -1 : item.getLastUpdatedAt().getTime());
+		}
+		
+		Map<ItemKey, List<ItemKey>> listings = snapshot.getListings();
+		out.writeInt(listings.size());
+		for (Map.Entry<ItemKey, List<ItemKey>> e : listings.entrySet()) {
+			writeKey(out, e.getKey());
+			out.writeInt(e.getValue().size());
+			for (ItemKey member : e.getValue()) {
+				writeKey(out, member);
+			}
+		}
+		out.flush();
+		
+		CRC32 crc = new CRC32();
+		crc.update(bytes.toByteArray());
+		out.writeLong(crc.getValue());
+		return bytes.toByteArray();
+	}
+	
+	/**
+	 * Returns the codes and ids of the items' exchanges. Exchanges the controller has looked up(or loaded from the
+	 * last file) are known already, the data store is only asked for the rest.
+	 */
+	private static Map<String, Integer> exchangeIds(List<MarketData> items) {
+		Map<String, Integer> ids = StockController.getKnownExchangeIds();
+		Set<Integer> unknown = new HashSet<>();
+		for (MarketData item : items) {
+			if (!ids.containsValue(item.getExchangeId())) {
+				unknown.add(item.getExchangeId());
+			}
+		}
+		
+		if (!unknown.isEmpty()) {
+			for (Exchange ex : StockDataManager.getInstance().getExchanges(unknown)) {
+				ids.put(ex.getCode(), ex.getId());
+			}
+		}
+		return ids;
+	}
+	
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeShort(bytes.length);
+		out.write(bytes);
+	}
+	
+	private static void writeKey(DataOutputStream out, ItemKey key) throws IOException {
+		out.writeInt(key.getExchangeId());
+		writeString(out, key.getSymbol());
+	}
+}
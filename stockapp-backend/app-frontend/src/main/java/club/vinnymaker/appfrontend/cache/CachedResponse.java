@@ -0,0 +1,43 @@
+package club.vinnymaker.appfrontend.cache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPOutputStream;
+
+import lombok.Getter;
+
+/**
+ * An immutable, fully serialized response body along with the data version it was built from.
+ *
+ * @author evinay
+ *
+ */
+@Getter
+public class CachedResponse {
+	
+	// Bodies smaller than this aren't worth compressing.
+	private static final int GZIP_MIN_BYTES = 1024;
+	
+	private final long version;
+	private final byte[] body;
+	
+	// Gzip compressed body, null if the body is too small to bother.
+	private final byte[] gzipped;
+	
+	public CachedResponse(long version, byte[] body) {
+		this.version = version;
+		this.body = body;
+		this.gzipped = body.length >= GZIP_MIN_BYTES ? gzip(body) : null;
+	}
+	
+	private static byte[] gzip(byte[] body) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length / 4);
+		try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+			out.write(body);
+		} catch (IOException e) {
+			// Can't happen with an in memory stream.
+			return null;
+		}
+		return bytes.toByteArray();
+	}
+}
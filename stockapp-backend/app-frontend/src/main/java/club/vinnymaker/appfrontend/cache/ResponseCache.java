@@ -0,0 +1,67 @@
+package club.vinnymaker.appfrontend.cache;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * ResponseCache holds serialized response bodies of the hot read endpoints. An entry is only served for the data
+ * version it was built from, so the first request after each update cycle rebuilds it and all the others get the
+ * bytes as they are.
+ *
+ * @author evinay
+ *
+ */
+public class ResponseCache {
+	
+	// Entries are per symbol and per index, so this is far more than we need. It only guards against misuse.
+	private static final int MAX_ENTRIES = 20000;
+	
+	private static final ResponseCache instance = new ResponseCache();
+	
+	private final ConcurrentHashMap<String, CachedResponse> entries = new ConcurrentHashMap<>();
+	
+	private ResponseCache() {
+	}
+	
+	public static ResponseCache getInstance() {
+		return instance;
+	}
+	
+	public static String quoteKey(String exchange, String symbol) {
+		return "quote/" + exchange + "/" + symbol;
+	}
+	
+	public static String membersKey(String exchange, String index) {
+		return "members/" + exchange + "/" + index;
+	}
+	
+	/**
+	 * @return The cached response for the key if it was built from the given data version, null otherwise.
+	 */
+	public CachedResponse get(String key, long version) {
+		CachedResponse entry = entries.get(key);
+		if (entry == null || entry.getVersion() != version) {
+			return null;
+		}
+		return entry;
+	}
+	
+	/**
+	 * Caches a freshly built response body. Bodies built from an unknown(0) data version are never cached.
+	 *
+	 * @return The response to send back to the client.
+	 */
+	public CachedResponse put(String key, long version, byte[] body) {
+		CachedResponse entry = new CachedResponse(version, body);
+		if (version == 0) {
+			return entry;
+		}
+		
+		if (entries.size() >= MAX_ENTRIES) {
+			entries.clear();
+		}
+		
+		// Never replace an entry with one built from older data.
+		entries.merge(key, entry, (old, cur) -> old.getVersion() > cur.getVersion() ? old : cur);
+		return entry;
+	}
+}
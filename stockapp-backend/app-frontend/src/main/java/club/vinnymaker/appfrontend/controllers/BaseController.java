@@ -1,6 +1,7 @@
 package club.vinnymaker.appfrontend.controllers;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.util.Base64;
 
@@ -9,6 +10,8 @@ import javax.servlet.http.HttpServletResponse;
 import org.json.JSONObject;
 
 import club.vinnymaker.appfrontend.RoutingServlet;
+import club.vinnymaker.appfrontend.cache.CachedResponse;
+import club.vinnymaker.appfrontend.stream.QuoteFeed;
 import club.vinnymaker.datastore.UserManager;
 
 /**
@@ -36,6 +39,113 @@ public abstract class BaseController {
 	
 	protected static final JSONObject EMPTY_JSON_OBJ = new JSONObject();
 	
+	private static final String ETAG_HEADER = "ETag";
+	private static final String IF_NONE_MATCH_HEADER = "If-None-Match";
+	private static final String IF_MODIFIED_SINCE_HEADER = "If-Modified-Since";
+	private static final String LAST_MODIFIED_HEADER = "Last-Modified";
+	private static final String CACHE_CONTROL_HEADER = "Cache-Control";
+	private static final String SNAPSHOT_VERSION_HEADER = "X-Snapshot-Version";
+	private static final String WEAK_ETAG_PREFIX = "W/";
+	private static final String VARY_HEADER = "Vary";
+	private static final String ACCEPT_ENCODING_HEADER = "Accept-Encoding";
+	private static final String CONTENT_ENCODING_HEADER = "Content-Encoding";
+	private static final String GZIP_ENCODING = "gzip";
+	
+	/**
+	 * Returns the version of the stock data currently in the data store. Should be called before reading the data
+	 * that goes into a response, so that the version never claims more than what's been read. The version is read
+	 * from the primary, so quotes tagged with it must be too(see UnitOfWork.onPrimary()), replicas may be behind.
+	 * 
+	 * @return Data version, 0 if unknown.
+	 */
+	protected static long dataVersion() {
+		return QuoteFeed.getInstance().getVersion();
+	}
+	
+	/**
+	 * Tells whether data read from the data store may be cached under dataVersion(). Not with an embedded updater, 
+	 * whose data reaches the data store through a write behind persister, minutes after the feed has it if writes
+	 * are being retried. Such data is served, but tagged quotes are read from the market snapshot.
+	 */
+	protected static boolean isStoreCacheable() {
+		return !QuoteFeed.getInstance().isEmbedded();
+	}
+	
+	private static String etag(long version) {
+		return WEAK_ETAG_PREFIX + "\"" + Long.toHexString(version) + "\"";
+	}
+	
+	/**
+	 * Checks the request's validators against the given data version and sends a 304 response if the client's copy
+	 * is still current. This doesn't touch the data store, so it's safe to call before authenticating the request;
+	 * a 304 carries no data.
+	 * 
+	 * @param req Http request.
+	 * @param resp Response, a 304 is sent on it if the client's copy is current.
+	 * @param version Current data version as returned by dataVersion().
+	 * 
+	 * @return True if a 304 has been sent and the request needs no further processing.
+	 */
+	protected static boolean notModified(HttpServletRequest req, HttpServletResponse resp, long version) {
+		if (version == 0 || !"GET".equals(req.getMethod())) {
+			return false;
+		}
+		
+		boolean isCurrent = false;
+		String ifNoneMatch = req.getHeader(IF_NONE_MATCH_HEADER);
+		if (ifNoneMatch != null) {
+			// Weak comparison, as the same data can be sent in different encodings.
+			String tag = etag(version).substring(WEAK_ETAG_PREFIX.length());
+			for (String candidate : ifNoneMatch.split(",")) {
+				candidate = candidate.trim();
+				if (candidate.startsWith(WEAK_ETAG_PREFIX)) {
+					candidate = candidate.substring(WEAK_ETAG_PREFIX.length());
+				}
+				if (candidate.equals("*") || candidate.equals(tag)) {
+					isCurrent = true;
+					break;
+				}
+			}
+		} else {
+			// If-Modified-Since is only looked at when there are no entity tags.
+			try {
+				long since = req.getDateHeader(IF_MODIFIED_SINCE_HEADER);
+				isCurrent = since != -1 && version / 1000 <= since / 1000;
+			} catch (IllegalArgumentException e) {
+				// Malformed date, ignore the header.
+			}
+		}
+		
+		if (!isCurrent) {
+			return false;
+		}
+		
+		setValidators(resp, version);
+		resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+		return true;
+	}
+	
+	/**
+	 * Sets ETag, Last-Modified and Cache-Control headers for a response built from data of the given version. Clients
+	 * may cache the response until the updater is expected to write the next batch of data. Responses are only ever 
+	 * sent to authenticated users, so shared caches must not store them. The version is also sent as is, in the
+	 * X-Snapshot-Version header, for clients to ask for more data of the same market snapshot.
+	 * 
+	 * @param resp Response being constructed.
+	 * @param version Data version as returned by dataVersion() before reading the data.
+	 */
+	protected static void setValidators(HttpServletResponse resp, long version) {
+		if (version == 0) {
+			return;
+		}
+		
+		long maxAge = Math.max(0, (version + QuoteFeed.UPDATE_INTERVAL_MS - System.currentTimeMillis()) / 1000);
+		resp.setHeader(ETAG_HEADER, etag(version));
+		resp.setDateHeader(LAST_MODIFIED_HEADER, version);
+		resp.setHeader(CACHE_CONTROL_HEADER, "private, max-age=" + maxAge);
+		resp.setHeader(SNAPSHOT_VERSION_HEADER, Long.toString(version));
+	}
+	
 	/**
 	 * Constructs a successful response with a body.
 	 * 
@@ -49,7 +159,65 @@ public abstract class BaseController {
 		pw.close();
 	}
 	
-	protected static void authFailure(HttpServletResponse resp) throws IOException {
+	/**
+	 * Constructs a successful response with an already serialized JSON body. The bytes are written as they are,
+	 * straight to the response stream.
+	 * 
+	 * @param resp
+	 * @param body UTF-8 encoded JSON.
+	 */
+	protected static void success(HttpServletResponse resp, byte[] body) throws IOException {
+		resp.setStatus(HttpServletResponse.SC_OK);
+		resp.setContentLength(body.length);
+		OutputStream out = resp.getOutputStream();
+		out.write(body);
+		out.close();
+	}
+	
+	/**
+	 * Constructs a successful response with a cached body, gzip compressed if the client accepts it and a
+	 * compressed version is available.
+	 * 
+	 * @param req
+	 * @param resp
+	 * @param content
+	 */
+	protected static void success(HttpServletRequest req, HttpServletResponse resp, CachedResponse content) 
+			throws IOException {
+		resp.setHeader(VARY_HEADER, ACCEPT_ENCODING_HEADER);
+		if (content.getGzipped() != null && acceptsGzip(req)) {
+			resp.setHeader(CONTENT_ENCODING_HEADER, GZIP_ENCODING);
+			success(resp, content.getGzipped());
+		} else {
+			success(resp, content.getBody());
+		}
+	}
+	
+	private static boolean acceptsGzip(HttpServletRequest req) {
+		String accepted = req.getHeader(ACCEPT_ENCODING_HEADER);
+		if (accepted == null) {
+			return false;
+		}
+		
+		for (String coding : accepted.split(",")) {
+			String[] parts = coding.trim().split(";");
+			if (parts[0].trim().equalsIgnoreCase(GZIP_ENCODING)) {
+				// Only an explicit zero weight rules it out.
+				return parts.length < 2 || !parts[1].trim().matches("q=0(\\.0*)?");
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Sends the response to a request that failed authenticate(), a 429 if the user is over their rate limit and
+	 * a 401 otherwise.
+	 */
+	protected static void authFailure(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+		if (RoutingServlet.sendUserLimited(req, resp)) {
+			return;
+		}
+		
 		resp.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
 		PrintWriter pw = resp.getWriter();
 		JSONObject body = new JSONObject();
@@ -95,7 +263,7 @@ public abstract class BaseController {
 	 * @param req The http request.
 	 * @param username user whose password is to be authenticated.
 	 * 
-	 * @return True if successful, false otherwise.
+	 * @return True if successful and the user is within their rate limit, false otherwise.
 	 */
 	protected static boolean authenticate(HttpServletRequest req, String username) {
 		String authHeader = req.getHeader(AUTH_HEADER_NAME);
@@ -116,6 +284,11 @@ public abstract class BaseController {
 			return false;
 		}
 		
-		return UserManager.getInstance().verifyUserPassword(username, password);
+		if (!UserManager.getInstance().verifyUserPassword(username, password)) {
+			return false;
+		}
+		
+		// Only now is the user known, see authFailure() for the response if they're over their limit.
+		return RoutingServlet.admitUser(req, username);
 	}
 }
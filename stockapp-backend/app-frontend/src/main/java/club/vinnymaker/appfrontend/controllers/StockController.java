@@ -1,21 +1,38 @@
 package club.vinnymaker.appfrontend.controllers;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.json.JSONArray;
 import org.json.JSONObject;
 
+import club.vinnymaker.appfrontend.cache.CachedResponse;
+import club.vinnymaker.appfrontend.cache.ResponseCache;
+import club.vinnymaker.appfrontend.json.MarketDataJsonWriter;
+import club.vinnymaker.appfrontend.stream.QuoteFeed;
+import club.vinnymaker.data.Exchange;
 import club.vinnymaker.data.MarketData;
 import club.vinnymaker.data.MarketDataLite;
+import club.vinnymaker.datastore.MarketSnapshot;
+import club.vinnymaker.datastore.MarketSnapshots;
+import club.vinnymaker.datastore.QuoteBoard;
+import club.vinnymaker.datastore.QuoteBoard.Quote;
 import club.vinnymaker.datastore.StockDataManager;
+import club.vinnymaker.datastore.UnitOfWork;
 
 /**
  * StockController processes stock data requests from clients. All stock controller requests must
@@ -33,16 +50,35 @@ public class StockController extends BaseController {
 	private static final String RESULTS_KEY = "results";
 	private static final String EXCHANGE_IDS_KEY = "exids";
 	private static final String EXCHANGE_ID_KEY = "exid";
+	private static final String SYMBOLS_KEY = "symbols";
+	private static final String ITEMS_KEY = "items";
+	private static final String NOT_FOUND_KEY = "notFound";
+	private static final String VERSION_PARAM = "version";
+	private static final String AS_OF_PARAM = "asOf";
+	private static final String AS_OF_ERROR = "'asOf' must be a time in milliseconds since the epoch";
+	private static final String INDEX_NOT_FOUND_ERROR = "Requested index not found on the exchange.";
+	private static final String SNAPSHOT_UNAVAILABLE_ERROR = "Requested snapshot version is no longer available";
 	
 	private static final int MIN_SEARCH_KEY_SIZE = 2;
 	
+	// Exchanges never change while the frontend runs, so their ids are looked up once.
+	private static final Map<String, Integer> exchangeIds = new ConcurrentHashMap<>();
+	
+	// Quotes are copied off the board into a per thread copy.
+	private static final ThreadLocal<Quote> quotes = ThreadLocal.withInitial(Quote::new);
+	
+	// Upper limit on the number of symbols that can be asked for in a single batch request.
+	private static final int MAX_BATCH_SYMBOLS = 200;
+	private static final String BATCH_SIZE_ERROR = "'symbols' must be a comma separated list of 1 to " 
+			+ MAX_BATCH_SYMBOLS + " symbols";
+	
 	/**
 	 * Authenticate the request using username request header.
 	 * 
 	 * @param req Http request.
 	 * @return True if successfully authenticated, false otherwise.
 	 */
-	private static boolean authenticate(HttpServletRequest req) {
+	static boolean authenticate(HttpServletRequest req) {
 		String unameInHeader = req.getHeader(USERNAME_HEADER);
 		if (unameInHeader == null) {
 			return false;
@@ -51,6 +87,69 @@ public class StockController extends BaseController {
 		return authenticate(req, unameInHeader);
 	}
 	
+	/**
+	 * @return Id of the exchange with the given code, or -1 if there's no such exchange.
+	 */
+	static int exchangeId(String code) {
+		Integer id = exchangeIds.get(code);
+		if (id == null) {
+			Exchange ex = StockDataManager.getInstance().getExchange(code);
+			if (ex == null) {
+				return -1;
+			}
+			id = ex.getId();
+			exchangeIds.put(code, id);
+		}
+		return id;
+	}
+	
+	/**
+	 * @return Ids of the exchanges looked up so far, by their codes.
+	 */
+	public static Map<String, Integer> getKnownExchangeIds() {
+		return new HashMap<>(exchangeIds);
+	}
+	
+	/**
+	 * Adds exchange ids known from elsewhere(e.g., a warm start file), so that they needn't be looked up.
+	 */
+	public static void addKnownExchangeIds(Map<String, Integer> ids) {
+		exchangeIds.putAll(ids);
+	}
+	
+	/**
+	 * Serializes an item's latest quote from the quote board, without going to the database.
+	 * 
+	 * @return UTF-8 encoded JSON of the item, or null if the board doesn't have it(e.g., before the first poll).
+	 */
+	private static byte[] quoteFromBoard(String exchange, String symbol) {
+		int exId = exchangeId(exchange);
+		Quote quote = quotes.get();
+		if (exId < 0 || !QuoteBoard.getInstance().read(exId, symbol, quote)) {
+			return null;
+		}
+		return MarketDataJsonWriter.write(quote);
+	}
+	
+	/**
+	 * Returns the market snapshot a request reads from, the one it asked for with the 'version' parameter or else
+	 * the current one.
+	 * 
+	 * @return The snapshot, or null if none has been published yet or the version asked for isn't available.
+	 */
+	private static MarketSnapshot snapshot(HttpServletRequest req) {
+		String requested = req.getParameter(VERSION_PARAM);
+		if (requested == null) {
+			return MarketSnapshots.getInstance().current();
+		}
+		
+		try {
+			return MarketSnapshots.getInstance().get(Long.parseLong(requested));
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+	
 	private static <T> JSONObject stuffArrayIntoObject(String key, Collection<T> array) {
 		JSONObject ret = new JSONObject();
 		ret.put(key, array);
@@ -67,26 +166,189 @@ public class StockController extends BaseController {
 	 */
 	public static void getItemData(HttpServletRequest req, HttpServletResponse resp, 
 			Map<String, String> namedParams) throws IOException {
+		// Only a specific version is read off a snapshot, the latest quote is on the board.
+		boolean isVersioned = req.getParameter(VERSION_PARAM) != null;
+		MarketSnapshot snapshot = isVersioned ? snapshot(req) : null;
+		if (isVersioned && snapshot == null) {
+			error(resp, HttpServletResponse.SC_GONE, SNAPSHOT_UNAVAILABLE_ERROR);
+			return;
+		}
+		
+		long version = isVersioned ? snapshot.getVersion() : dataVersion();
+		if (notModified(req, resp, version)) {
+			return;
+		}
+		
 		if (!authenticate(req)) {
-			authFailure(resp);
+			authFailure(req, resp);
 			return;
 		}
 		
 		String exchange = namedParams.get(EXCHANGE_PARAM);
 		String symbol = namedParams.get(SYMBOL_PARAM);
 		
-		MarketData itemData = StockDataManager.getInstance().getStockData(exchange, symbol);
-		if (itemData == null) {
-			// Requested item not found.
-			error(resp, HttpServletResponse.SC_NOT_FOUND, RESOURCE_DOESNT_EXIST_ERROR);
+		// The same serialized data is served to everyone until the next update.
+		String key = ResponseCache.quoteKey(exchange, symbol);
+		CachedResponse cached = ResponseCache.getInstance().get(key, version);
+		if (cached == null) {
+			byte[] body = null;
+			if (isVersioned) {
+				MarketData itemData = snapshot.get(exchangeId(exchange), symbol);
+				if (itemData == null) {
+					error(resp, HttpServletResponse.SC_NOT_FOUND, RESOURCE_DOESNT_EXIST_ERROR);
+					return;
+				}
+				body = MarketDataJsonWriter.write(itemData);
+			} else {
+				body = quoteFromBoard(exchange, symbol);
+				if (body != null && !QuoteFeed.getInstance().isCurrent(version)) {
+					// Newer data was being published while the board was read, so the quote may be newer than the
+					// version. The current snapshot is consistent with its own version.
+					snapshot = MarketSnapshots.getInstance().current();
+					MarketData itemData = snapshot == null ? null : snapshot.get(exchangeId(exchange), symbol);
+					body = itemData == null ? null : MarketDataJsonWriter.write(itemData);
+					if (snapshot != null) {
+						version = snapshot.getVersion();
+					}
+				}
+			}
+			boolean isCacheable = true;
+			if (body == null) {
+				MarketData itemData = UnitOfWork.onPrimary(() ->
+						StockDataManager.getInstance().getStockData(exchange, symbol));
+				if (itemData == null) {
+					// Requested item not found.
+					error(resp, HttpServletResponse.SC_NOT_FOUND, RESOURCE_DOESNT_EXIST_ERROR);
+					return;
+				}
+				body = MarketDataJsonWriter.write(itemData);
+				isCacheable = isStoreCacheable();
+			}
+			cached = isCacheable ? ResponseCache.getInstance().put(key, version, body) 
+					: new CachedResponse(version, body);
+		}
+		
+		setValidators(resp, version);
+		success(req, resp, cached);
+	}
+	
+	/**
+	 * Returns data for several items(shares/indexes) of an exchange in one response. Symbols are passed as a
+	 * comma separated 'symbols' parameter, either in the query string(GET) or in the form body(POST) for long
+	 * lists. Symbols not found on the exchange are listed under the 'notFound' key. All the items are from the same
+	 * market snapshot, the current one or the one asked for with the 'version' parameter.
+	 * 
+	 * @param req Http request
+	 * @param resp Response to be sent back to client.
+	 * @param namedParams Any named parameters in the uri.
+	 */
+	public static void getItemsData(HttpServletRequest req, HttpServletResponse resp,
+			Map<String, String> namedParams) throws IOException {
+		MarketSnapshot snapshot = snapshot(req);
+		if (snapshot == null && req.getParameter(VERSION_PARAM) != null) {
+			error(resp, HttpServletResponse.SC_GONE, SNAPSHOT_UNAVAILABLE_ERROR);
+			return;
+		}
+		
+		long version = snapshot == null ? dataVersion() : snapshot.getVersion();
+		if (notModified(req, resp, version)) {
+			return;
+		}
+		
+		if (!authenticate(req)) {
+			authFailure(req, resp);
+			return;
+		}
+		
+		Set<String> symbols = processSymbolParts(req.getParameter(SYMBOLS_KEY));
+		if (symbols == null) {
+			error(resp, HttpServletResponse.SC_BAD_REQUEST, BATCH_SIZE_ERROR);
 			return;
 		}
 		
-		success(resp, new JSONObject(itemData));
+		// Serve whatever we can from the cache, and get the rest from the snapshot(or with a single query if there's
+		// no snapshot yet).
+		String exchange = namedParams.get(EXCHANGE_PARAM);
+		ResponseCache cache = ResponseCache.getInstance();
+		Map<String, byte[]> bodies = new HashMap<>();
+		List<String> misses = new ArrayList<>();
+		for (String symbol : symbols) {
+			CachedResponse cached = cache.get(ResponseCache.quoteKey(exchange, symbol), version);
+			if (cached != null) {
+				bodies.put(symbol, cached.getBody());
+			} else {
+				misses.add(symbol);
+			}
+		}
+		
+		if (!misses.isEmpty()) {
+			Map<String, MarketData> items;
+			if (snapshot == null) {
+				items = UnitOfWork.onPrimary(() -> StockDataManager.getInstance().getStocksData(exchange, misses));
+			} else {
+				int exId = exchangeId(exchange);
+				items = exId < 0 ? null : snapshot.get(exId, misses);
+			}
+			if (items == null) {
+				error(resp, HttpServletResponse.SC_NOT_FOUND, RESOURCE_DOESNT_EXIST_ERROR);
+				return;
+			}
+			
+			boolean isCacheable = snapshot != null || isStoreCacheable();
+			for (MarketData it : items.values()) {
+				byte[] body = MarketDataJsonWriter.write(it);
+				if (isCacheable) {
+					cache.put(ResponseCache.quoteKey(exchange, it.getSymbol()), version, body);
+				}
+				bodies.put(it.getSymbol(), body);
+			}
+		}
+		
+		List<byte[]> found = new ArrayList<>();
+		List<String> notFound = new ArrayList<>();
+		for (String symbol : symbols) {
+			byte[] body = bodies.get(symbol);
+			if (body == null) {
+				notFound.add(symbol);
+			} else {
+				found.add(body);
+			}
+		}
+		
+		byte[] notFoundMember = (JSONObject.quote(NOT_FOUND_KEY) + ":" + new JSONArray(notFound).toString())
+				.getBytes(StandardCharsets.UTF_8);
+		setValidators(resp, version);
+		success(resp, MarketDataJsonWriter.join(ITEMS_KEY, found, notFoundMember));
+	}
+	
+	/**
+	 * Splits a comma separated list of symbols, dropping blanks and duplicates.
+	 * 
+	 * @return Symbols in the order they were given, or null if there are none or too many of them.
+	 */
+	private static Set<String> processSymbolParts(String s) {
+		if (s == null) {
+			return null;
+		}
+		
+		Set<String> symbols = new LinkedHashSet<>();
+		for (String part : s.split(",")) {
+			String symbol = part.trim();
+			if (!symbol.isEmpty()) {
+				symbols.add(symbol);
+			}
+		}
+		
+		if (symbols.isEmpty() || symbols.size() > MAX_BATCH_SYMBOLS) {
+			return null;
+		}
+		return symbols;
 	}
 	
 	/**
-	 * Returns the list of all components(names, type) of an index.
+	 * Returns the list of all components(names, type) of an index. The index and its members are from the same
+	 * market snapshot, the current one or the one asked for with the 'version' parameter. With the 'asOf' parameter
+	 * (time in millis), the members are instead those listed in the index at that time, with their latest data.
 	 * 
 	 * @param req HTTP request
 	 * @param resp Response to be constructed and sent back.
@@ -94,20 +356,78 @@ public class StockController extends BaseController {
 	 */
 	public static void getIndexComponents(HttpServletRequest req, HttpServletResponse resp, Map<String, String> named)
 			throws IOException {
+		if (req.getParameter(AS_OF_PARAM) != null) {
+			getIndexComponentsAsOf(req, resp, named);
+			return;
+		}
+		
+		MarketSnapshot snapshot = snapshot(req);
+		if (snapshot == null && req.getParameter(VERSION_PARAM) != null) {
+			error(resp, HttpServletResponse.SC_GONE, SNAPSHOT_UNAVAILABLE_ERROR);
+			return;
+		}
+		
+		long version = snapshot == null ? dataVersion() : snapshot.getVersion();
+		if (notModified(req, resp, version)) {
+			return;
+		}
+		
 		if (!authenticate(req)) {
-			authFailure(resp);
+			authFailure(req, resp);
 			return;
 		}
 		
 		String exCode = named.get(EXCHANGE_PARAM);
 		String indexName = named.get(SYMBOL_PARAM);
-		Collection<MarketData> items = StockDataManager.getInstance().getAllMembersData(exCode, indexName);
-		if (items == null) {
-			error(resp, HttpServletResponse.SC_NOT_FOUND, "Requested index not found on the exchange.");
+		String key = ResponseCache.membersKey(exCode, indexName);
+		CachedResponse cached = ResponseCache.getInstance().get(key, version);
+		if (cached == null) {
+			Collection<MarketData> items = null;
+			if (snapshot != null) {
+				int exId = exchangeId(exCode);
+				items = exId < 0 ? null : snapshot.getMembers(exId, indexName);
+			}
+			if (items == null && req.getParameter(VERSION_PARAM) == null) {
+				// The snapshot may not have the listings yet, e.g., if they failed to load.
+				items = UnitOfWork.onPrimary(() -> StockDataManager.getInstance().getAllMembersData(exCode, indexName));
+			}
+			if (items == null) {
+				error(resp, HttpServletResponse.SC_NOT_FOUND, INDEX_NOT_FOUND_ERROR);
+				return;
+			}
+			cached = ResponseCache.getInstance().put(key, version, MarketDataJsonWriter.write(ITEMS_KEY, items));
+		}
+		
+		setValidators(resp, version);
+		success(req, resp, cached);
+	}
+	
+	/**
+	 * Returns the components of an index as listed at a past time, read from the listings' history in the data
+	 * store. Neither cached nor versioned, these are for occasional lookups(e.g., backtests).
+	 */
+	private static void getIndexComponentsAsOf(HttpServletRequest req, HttpServletResponse resp, 
+			Map<String, String> named) throws IOException {
+		long asOf;
+		try {
+			asOf = Long.parseLong(req.getParameter(AS_OF_PARAM));
+		} catch (NumberFormatException e) {
+			error(resp, HttpServletResponse.SC_BAD_REQUEST, AS_OF_ERROR);
+			return;
+		}
+		
+		if (!authenticate(req)) {
+			authFailure(req, resp);
 			return;
 		}
 		
-		success(resp, stuffArrayIntoObject("items", items));
+		List<MarketData> items = StockDataManager.getInstance().getMembersAsOf(named.get(EXCHANGE_PARAM), 
+				named.get(SYMBOL_PARAM), new Date(asOf));
+		if (items == null) {
+			error(resp, HttpServletResponse.SC_NOT_FOUND, INDEX_NOT_FOUND_ERROR);
+			return;
+		}
+		success(resp, MarketDataJsonWriter.write(ITEMS_KEY, items));
 	}
 	
 	/**
@@ -119,8 +439,13 @@ public class StockController extends BaseController {
 	 */
 	public static void getMatches(HttpServletRequest req, HttpServletResponse resp, Map<String, String> named)
 		throws IOException {
+		long version = dataVersion();
+		if (notModified(req, resp, version)) {
+			return;
+		}
+		
 		if (!authenticate(req)) {
-			authFailure(resp);
+			authFailure(req, resp);
 			return;
 		}
 		
@@ -133,6 +458,7 @@ public class StockController extends BaseController {
 			Collection<MarketDataLite> results = StockDataManager.getInstance().getSearchMatches(substr.toUpperCase());
 			obj.put(RESULTS_KEY, results);
 		}
+		setValidators(resp, version);
 		success(resp, obj);
 	}
 	
@@ -147,12 +473,18 @@ public class StockController extends BaseController {
 	 */
 	public static void getIndexes(HttpServletRequest req, HttpServletResponse resp, Map<String, String> named)
 		throws IOException {
+		long version = dataVersion();
+		if (notModified(req, resp, version)) {
+			return;
+		}
+		
 		if (!authenticate(req)) {
-			authFailure(resp);
+			authFailure(req, resp);
 			return;
 		}
 		
 		int exId = Integer.parseInt(named.get(EXCHANGE_ID_KEY));
+		setValidators(resp, version);
 		success(resp, stuffArrayIntoObject("indexes", StockDataManager.getInstance().getIndexes(exId)));
 	}
 	
@@ -167,8 +499,13 @@ public class StockController extends BaseController {
 	 */
 	public static void getExchanges(HttpServletRequest req, HttpServletResponse resp, Map<String, String> named)
 		throws IOException {
+		long version = dataVersion();
+		if (notModified(req, resp, version)) {
+			return;
+		}
+		
 		if (!authenticate(req)) {
-			authFailure(resp);
+			authFailure(req, resp);
 			return;
 		}
 		
@@ -178,6 +515,7 @@ public class StockController extends BaseController {
 			return;
 		}
 		
+		setValidators(resp, version);
 		success(resp, stuffArrayIntoObject("exchanges", StockDataManager.getInstance().getExchanges(exIds)));
 	}
 	
@@ -0,0 +1,150 @@
+package club.vinnymaker.appfrontend.controllers;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import club.vinnymaker.appfrontend.stream.QuoteStreamHub;
+import club.vinnymaker.appfrontend.stream.QuoteSubscriber;
+import club.vinnymaker.data.Exchange;
+import club.vinnymaker.data.MarketData;
+import club.vinnymaker.datastore.StockDataManager;
+
+/**
+ * StreamController lets clients subscribe to live updates of symbols and indexes on an exchange, instead of polling
+ * for them. Updates are sent as server sent events, each one carrying a single item's latest data. Authentication
+ * is the same as for {@link StockController}.
+ *
+ * @author evinay
+ *
+ */
+public class StreamController extends BaseController {
+	
+	private static final String EXCHANGE_PARAM = "exchange";
+	private static final String SYMBOLS_KEY = "symbols";
+	private static final String INDEXES_KEY = "indexes";
+	
+	private static final String EVENT_STREAM_CONTENT_TYPE = "text/event-stream";
+	private static final String UTF8 = "UTF-8";
+	
+	// Upper limit on the number of items(including index members) a single client can subscribe to.
+	private static final int MAX_SUBSCRIBED_ITEMS = 500;
+	private static final int SEND_BUFFER_BYTES = 16 * 1024;
+	
+	private static final String SUBSCRIPTION_ERROR = "Subscribe to 1 to " + MAX_SUBSCRIBED_ITEMS
+			+ " items using comma separated 'symbols' and 'indexes' parameters";
+	private static final String TOO_MANY_SUBSCRIBERS_ERROR = "Too many streaming clients, try again later";
+	
+	/**
+	 * Subscribes the client to updates of the given symbols and of all members of the given indexes. The current
+	 * data of all these items is sent right away, followed by every change as soon as it's seen.
+	 *
+	 * @param req Http request
+	 * @param resp Response to stream the events to.
+	 * @param named Any named parameters in the uri.
+	 */
+	public static void subscribe(HttpServletRequest req, HttpServletResponse resp, Map<String, String> named)
+			throws IOException {
+		if (!StockController.authenticate(req)) {
+			authFailure(req, resp);
+			return;
+		}
+		
+		QuoteStreamHub hub = QuoteStreamHub.getInstance();
+		if (hub.isFull()) {
+			error(resp, HttpServletResponse.SC_SERVICE_UNAVAILABLE, TOO_MANY_SUBSCRIBERS_ERROR);
+			return;
+		}
+		
+		String exCode = named.get(EXCHANGE_PARAM);
+		Exchange ex = StockDataManager.getInstance().getExchange(exCode);
+		if (ex == null) {
+			error(resp, HttpServletResponse.SC_NOT_FOUND, RESOURCE_DOESNT_EXIST_ERROR);
+			return;
+		}
+		
+		Set<String> symbols = splitParam(req.getParameter(SYMBOLS_KEY));
+		Set<String> indexes = splitParam(req.getParameter(INDEXES_KEY));
+		if (symbols.size() + indexes.size() > MAX_SUBSCRIBED_ITEMS) {
+			error(resp, HttpServletResponse.SC_BAD_REQUEST, SUBSCRIPTION_ERROR);
+			return;
+		}
+		
+		List<MarketData> initial = new ArrayList<>();
+		Set<String> keys = new HashSet<>();
+		if (!symbols.isEmpty()) {
+			Map<String, MarketData> items = StockDataManager.getInstance().getStocksData(exCode, symbols);
+			if (items != null) {
+				initial.addAll(items.values());
+			}
+			
+			// Symbols not known yet may still show up later, so subscribe to them anyway.
+			for (String symbol : symbols) {
+				keys.add(QuoteStreamHub.key(ex.getId(), symbol));
+			}
+		}
+		
+		for (String index : indexes) {
+			Collection<MarketData> members = StockDataManager.getInstance().getAllMembersData(exCode, index);
+			if (members == null) {
+				error(resp, HttpServletResponse.SC_NOT_FOUND, "Requested index not found on the exchange.");
+				return;
+			}
+			initial.addAll(members);
+		}
+		
+		for (MarketData it : initial) {
+			keys.add(QuoteStreamHub.key(it.getExchangeId(), it.getSymbol()));
+		}
+		
+		if (keys.isEmpty() || keys.size() > MAX_SUBSCRIBED_ITEMS) {
+			error(resp, HttpServletResponse.SC_BAD_REQUEST, SUBSCRIPTION_ERROR);
+			return;
+		}
+		
+		resp.setStatus(HttpServletResponse.SC_OK);
+		resp.setContentType(EVENT_STREAM_CONTENT_TYPE);
+		resp.setCharacterEncoding(UTF8);
+		resp.setHeader("Cache-Control", "no-cache");
+		resp.setBufferSize(SEND_BUFFER_BYTES);
+		
+		// Stream stays open until the client goes away, no container thread is tied to it in the meantime.
+		AsyncContext context = req.startAsync();
+		context.setTimeout(0);
+		QuoteSubscriber sub = hub.subscribe(context, keys);
+		if (sub == null) {
+			// Lost the race for the last slot. Headers are not sent yet, so we can still fail the request.
+			resp.reset();
+			error(resp, HttpServletResponse.SC_SERVICE_UNAVAILABLE, TOO_MANY_SUBSCRIBERS_ERROR);
+			context.complete();
+			return;
+		}
+		
+		for (MarketData it : initial) {
+			sub.offerIfAbsent(QuoteStreamHub.key(it.getExchangeId(), it.getSymbol()), QuoteStreamHub.frame(it));
+		}
+	}
+	
+	private static Set<String> splitParam(String s) {
+		Set<String> ret = new HashSet<>();
+		if (s == null) {
+			return ret;
+		}
+		
+		for (String part : s.split(",")) {
+			String item = part.trim();
+			if (!item.isEmpty()) {
+				ret.add(item);
+			}
+		}
+		return ret;
+	}
+}
@@ -45,7 +45,7 @@ public class UserController extends BaseController {
 		String username = namedParams.get(USERNAME_KEY);
 		if (!authenticate(req, username)) {
 			// send 401.
-			authFailure(resp);
+			authFailure(req, resp);
 			return;
 		}
 		
@@ -93,7 +93,7 @@ public class UserController extends BaseController {
 				
 				// authenticate first.
 				if (!authenticate(req, username)) {
-					authFailure(resp);
+					authFailure(req, resp);
 					return;
 				}
 				
@@ -152,7 +152,7 @@ public class UserController extends BaseController {
 		} else {
 			// Try updating an existing user, after authenticating first.
 			if (!authenticate(req, username)) {
-				authFailure(resp);
+				authFailure(req, resp);
 				return;
 			}
 			
@@ -172,7 +172,4 @@ public class UserController extends BaseController {
 			}
 		}
 	}
-	
-	public static void getUserFavorites(HttpServletRequest req, HttpServletResponse resp, Map<String, String> namedParams) throws IOException {
-	}
 }
@@ -0,0 +1,229 @@
+package club.vinnymaker.appfrontend.controllers;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.json.JSONObject;
+
+import club.vinnymaker.appfrontend.cache.CachedResponse;
+import club.vinnymaker.appfrontend.cache.ResponseCache;
+import club.vinnymaker.appfrontend.json.MarketDataJsonWriter;
+import club.vinnymaker.data.MarketData;
+import club.vinnymaker.data.User;
+import club.vinnymaker.data.WatchlistEntry;
+import club.vinnymaker.datastore.MarketSnapshot;
+import club.vinnymaker.datastore.MarketSnapshots;
+import club.vinnymaker.datastore.StockDataManager;
+import club.vinnymaker.datastore.UnitOfWork;
+import club.vinnymaker.datastore.UserManager;
+import club.vinnymaker.datastore.WatchlistManager;
+import club.vinnymaker.datastore.WatchlistManager.AddResult;
+
+import static club.vinnymaker.datastore.WatchlistManager.MAX_WATCHLIST_ITEMS;
+
+/**
+ * WatchlistController services requests for users' watchlists. Watchlists are private, so these requests must
+ * authenticate as the user whose watchlist they're for.
+ * 
+ * Responses here depend on the watchlist as well as the stock data, so they carry no validators.
+ * 
+ * @author evinay
+ *
+ */
+public class WatchlistController extends BaseController {
+	
+	private static final String USERNAME_KEY = "username";
+	private static final String EXCHANGE_KEY = "exchange";
+	private static final String SYMBOL_KEY = "symbol";
+	private static final String ITEMS_KEY = "items";
+	private static final String USER_NOT_FOUND = "No such user found";
+	private static final String ITEM_NOT_PRESENT_ERROR = "'exchange' and 'symbol' keys are required";
+	private static final String WATCHLIST_FULL_ERROR = "Watchlist can't have more than " + MAX_WATCHLIST_ITEMS 
+			+ " items";
+	
+	/**
+	 * Authenticates the request and loads the user whose watchlist it's for. Sends back an error response if 
+	 * either fails.
+	 * 
+	 * @return The user, or null if an error response has been sent.
+	 */
+	private static User loadAuthenticatedUser(HttpServletRequest req, HttpServletResponse resp, 
+			Map<String, String> namedParams) throws IOException {
+		String username = namedParams.get(USERNAME_KEY);
+		if (!authenticate(req, username)) {
+			authFailure(req, resp);
+			return null;
+		}
+		
+		User user = UserManager.getInstance().loadUser(username);
+		if (user == null) {
+			error(resp, HttpServletResponse.SC_NOT_FOUND, USER_NOT_FOUND);
+		}
+		return user;
+	}
+	
+	/**
+	 * Returns the items(exchange, symbol) on the user's watchlist, in the order they were added.
+	 * 
+	 * @param req HTTP GET request.
+	 * @param resp JSON response with the watched items.
+	 * @param namedParams Route parameters(username) in this request.
+	 */
+	public static void getWatchlist(HttpServletRequest req, HttpServletResponse resp, 
+			Map<String, String> namedParams) throws IOException {
+		User user = loadAuthenticatedUser(req, resp, namedParams);
+		if (user == null) {
+			return;
+		}
+		
+		List<WatchlistEntry> entries = WatchlistManager.getInstance().getWatchlist(user.getId());
+		if (entries == null) {
+			internal_error(resp);
+			return;
+		}
+		
+		JSONObject obj = new JSONObject();
+		obj.put(ITEMS_KEY, entries);
+		success(resp, obj);
+	}
+	
+	/**
+	 * Adds an item to, or removes it from(if 'delete' key is present), the user's watchlist. The item is given by
+	 * its 'exchange' code and 'symbol'.
+	 * 
+	 * @param req HTTP POST request.
+	 * @param resp JSON response with the success status.
+	 * @param namedParams Route parameters(username) in this request.
+	 */
+	public static void updateWatchlist(HttpServletRequest req, HttpServletResponse resp, 
+			Map<String, String> namedParams) throws IOException {
+		String exchange = req.getParameter(EXCHANGE_KEY);
+		String symbol = req.getParameter(SYMBOL_KEY);
+		if (exchange == null || symbol == null) {
+			error(resp, HttpServletResponse.SC_BAD_REQUEST, ITEM_NOT_PRESENT_ERROR);
+			return;
+		}
+		
+		User user = loadAuthenticatedUser(req, resp, namedParams);
+		if (user == null) {
+			return;
+		}
+		
+		MarketData item = StockDataManager.getInstance().getStockData(exchange, symbol);
+		if (item == null) {
+			error(resp, HttpServletResponse.SC_NOT_FOUND, RESOURCE_DOESNT_EXIST_ERROR);
+			return;
+		}
+		
+		WatchlistManager mgr = WatchlistManager.getInstance();
+		if (req.getParameter(DELETE_KEY) != null) {
+			if (!mgr.removeItem(user.getId(), item.getId())) {
+				// Most likely, the item isn't on the watchlist.
+				error(resp, HttpServletResponse.SC_NOT_FOUND, RESOURCE_DOESNT_EXIST_ERROR);
+				return;
+			}
+		} else {
+			AddResult result = mgr.addItem(user.getId(), item);
+			if (result == AddResult.FULL) {
+				error(resp, HttpServletResponse.SC_BAD_REQUEST, WATCHLIST_FULL_ERROR);
+				return;
+			}
+			if (result == AddResult.FAILED) {
+				internal_error(resp);
+				return;
+			}
+		}
+		
+		JSONObject body = new JSONObject();
+		body.put(SUCCESS_KEY, "true");
+		success(resp, body);
+	}
+	
+	/**
+	 * Returns the latest data of all the items on the user's watchlist in one response, in the order they were
+	 * added. Quotes are served from the response cache where possible, the rest are read off the current market 
+	 * snapshot, and those the snapshot doesn't have are fetched with a single query.
+	 * 
+	 * @param req HTTP GET request.
+	 * @param resp JSON response with the items' data.
+	 * @param namedParams Route parameters(username) in this request.
+	 */
+	public static void getWatchlistQuotes(HttpServletRequest req, HttpServletResponse resp, 
+			Map<String, String> namedParams) throws IOException {
+		// Quotes are cached under the version of the snapshot they were read off, like StockController's.
+		MarketSnapshot snapshot = MarketSnapshots.getInstance().current();
+		long version = snapshot == null ? dataVersion() : snapshot.getVersion();
+		User user = loadAuthenticatedUser(req, resp, namedParams);
+		if (user == null) {
+			return;
+		}
+		
+		List<WatchlistEntry> entries = WatchlistManager.getInstance().getWatchlist(user.getId());
+		if (entries == null) {
+			internal_error(resp);
+			return;
+		}
+		
+		ResponseCache cache = ResponseCache.getInstance();
+		Map<Integer, byte[]> bodies = new HashMap<>();
+		Set<Integer> misses = new HashSet<>();
+		for (WatchlistEntry entry : entries) {
+			String key = ResponseCache.quoteKey(entry.getExchange(), entry.getSymbol());
+			CachedResponse cached = cache.get(key, version);
+			if (cached != null) {
+				bodies.put(entry.getStockId(), cached.getBody());
+				continue;
+			}
+			
+			int exId = snapshot == null ? -1 : StockController.exchangeId(entry.getExchange());
+			MarketData item = exId < 0 ? null : snapshot.get(exId, entry.getSymbol());
+			if (item == null) {
+				misses.add(entry.getStockId());
+			} else {
+				byte[] body = MarketDataJsonWriter.write(item);
+				cache.put(key, version, body);
+				bodies.put(entry.getStockId(), body);
+			}
+		}
+		
+		if (!misses.isEmpty()) {
+			List<MarketData> items = UnitOfWork.onPrimary(() ->
+					StockDataManager.getInstance().getStocksDataByIds(misses));
+			if (items == null) {
+				internal_error(resp);
+				return;
+			}
+			
+			for (MarketData it : items) {
+				bodies.put(it.getId(), MarketDataJsonWriter.write(it));
+			}
+			
+			// Cache the fetched quotes under their exchange codes, which only the watchlist entries know.
+			if (isStoreCacheable()) {
+				for (WatchlistEntry entry : entries) {
+					byte[] body = bodies.get(entry.getStockId());
+					if (body != null && misses.contains(entry.getStockId())) {
+						cache.put(ResponseCache.quoteKey(entry.getExchange(), entry.getSymbol()), version, body);
+					}
+				}
+			}
+		}
+		
+		List<byte[]> found = new ArrayList<>(entries.size());
+		for (WatchlistEntry entry : entries) {
+			byte[] body = bodies.get(entry.getStockId());
+			if (body != null) {
+				found.add(body);
+			}
+		}
+		success(resp, MarketDataJsonWriter.join(ITEMS_KEY, found, null));
+	}
+}
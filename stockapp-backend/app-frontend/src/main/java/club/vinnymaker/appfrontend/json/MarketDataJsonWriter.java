@@ -0,0 +1,152 @@
+package club.vinnymaker.appfrontend.json;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.Collection;
+import java.util.Date;
+
+import org.json.JSONObject;
+
+import club.vinnymaker.data.MarketData;
+import club.vinnymaker.data.MarketDataType;
+import club.vinnymaker.datastore.QuoteBoard.Quote;
+
+/**
+ * Serializes {@link MarketData} items straight into JSON text, without going through a {@link JSONObject}. The
+ * output has the same keys and value formats as new JSONObject(item) of an item read from the database, which 
+ * reflects over all the getters of the item every time it's called. Update times are always written in the format
+ * of a {@link Timestamp}, whichever kind of Date the item holds.
+ *
+ * @author evinay
+ *
+ */
+public class MarketDataJsonWriter {
+	
+	// Rough size of a single serialized item, to avoid growing the buffer in most cases.
+	private static final int ITEM_SIZE_HINT = 256;
+	
+	private MarketDataJsonWriter() {
+	}
+	
+	/**
+	 * @return UTF-8 encoded JSON object with the item's data.
+	 */
+	public static byte[] write(MarketData item) {
+		StringBuilder sb = new StringBuilder(ITEM_SIZE_HINT);
+		append(sb, item);
+		return sb.toString().getBytes(StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * @return UTF-8 encoded JSON object with the quote's data, the same as for the MarketData item it was read from.
+	 */
+	public static byte[] write(Quote quote) {
+		StringBuilder sb = new StringBuilder(ITEM_SIZE_HINT);
+		append(sb, quote);
+		return sb.toString().getBytes(StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * @return UTF-8 encoded JSON object with a single key mapped to an array of the items' data.
+	 */
+	public static byte[] write(String key, Collection<MarketData> items) {
+		StringBuilder sb = new StringBuilder(ITEM_SIZE_HINT * (items.size() + 1));
+		sb.append('{').append(JSONObject.quote(key)).append(":[");
+		boolean first = true;
+		for (MarketData item : items) {
+			if (!first) {
+				sb.append(',');
+			}
+			append(sb, item);
+			first = false;
+		}
+		sb.append("]}");
+		return sb.toString().getBytes(StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * Joins already serialized items into a JSON object with a single key mapped to an array of them.
+	 *
+	 * @param key Key of the array.
+	 * @param items UTF-8 encoded JSON values, as returned by write(MarketData).
+	 * @param extra Any other UTF-8 encoded members("key":value) to include in the object, may be null.
+	 */
+	public static byte[] join(String key, Collection<byte[]> items, byte[] extra) {
+		byte[] prefix = ("{" + JSONObject.quote(key) + ":[").getBytes(StandardCharsets.UTF_8);
+		int size = prefix.length + 2 + Math.max(0, items.size() - 1) + (extra == null ? 0 : extra.length + 1);
+		for (byte[] item : items) {
+			size += item.length;
+		}
+		
+		byte[] ret = new byte[size];
+		System.arraycopy(prefix, 0, ret, 0, prefix.length);
+		int pos = prefix.length;
+		boolean first = true;
+		for (byte[] item : items) {
+			if (!first) {
+				ret[pos++] = ',';
+			}
+			System.arraycopy(item, 0, ret, pos, item.length);
+			pos += item.length;
+			first = false;
+		}
+		ret[pos++] = ']';
+		if (extra != null) {
+			ret[pos++] = ',';
+			System.arraycopy(extra, 0, ret, pos, extra.length);
+			pos += extra.length;
+		}
+		ret[pos] = '}';
+		return ret;
+	}
+	
+	private static void append(StringBuilder sb, MarketData item) {
+		// Items from the database have Timestamps, those from the updater, a warm start file or the journal plain 
+		// Dates, whose toString differs.
+		Date updatedAt = item.getLastUpdatedAt();
+		append(sb, item.getId(), item.getSymbol(), item.getOpen(), item.getVolume(), item.getLastTradedPrice(), 
+				item.getPreviousClose(), item.getHigh(), item.getLow(), item.getType(), 
+				updatedAt == null ? null : formatTime(updatedAt.getTime()), item.getExchangeId());
+	}
+	
+	private static void append(StringBuilder sb, Quote quote) {
+		long updatedAt = quote.getLastUpdatedAt();
+		append(sb, quote.getStockId(), quote.getSymbol(), quote.getOpen(), quote.getVolume(), 
+				quote.getLastTradedPrice(), quote.getPreviousClose(), quote.getHigh(), quote.getLow(), quote.getType(), 
+				updatedAt == 0 ? null : formatTime(updatedAt), quote.getExchangeId());
+	}
+	
+	// The JDBC timestamp format(yyyy-mm-dd hh:mm:ss.fffffffff) in the default time zone, which is what JSONObject 
+	// writes for items read from the database.
+	private static String formatTime(long millis) {
+		return new Timestamp(millis).toString();
+	}
+	
+	private static void append(StringBuilder sb, int id, String symbol, double open, double volume, double ltp, 
+			double prevClose, double high, double low, MarketDataType type, String updatedAt, int exchangeId) {
+		sb.append('{');
+		sb.append("\"id\":").append(id);
+		if (symbol != null) {
+			sb.append(",\"symbol\":").append(JSONObject.quote(symbol));
+		}
+		appendNumber(sb, "open", open);
+		appendNumber(sb, "volume", volume);
+		appendNumber(sb, "lastTradedPrice", ltp);
+		appendNumber(sb, "previousClose", prevClose);
+		appendNumber(sb, "high", high);
+		appendNumber(sb, "low", low);
+		appendNumber(sb, "change", ltp - prevClose);
+		if (type != null) {
+			sb.append(",\"type\":").append(JSONObject.quote(type.name()));
+		}
+		if (updatedAt != null) {
+			sb.append(",\"lastUpdatedAt\":").append(JSONObject.quote(updatedAt));
+		}
+		sb.append(",\"exchangeId\":").append(exchangeId);
+		sb.append('}');
+	}
+	
+	private static void appendNumber(StringBuilder sb, String key, double value) {
+		sb.append(",\"").append(key).append("\":").append(JSONObject.numberToString(value));
+	}
+}
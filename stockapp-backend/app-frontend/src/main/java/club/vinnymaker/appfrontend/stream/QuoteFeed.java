@@ -0,0 +1,291 @@
+package club.vinnymaker.appfrontend.stream;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import club.vinnymaker.data.MarketData;
+import club.vinnymaker.data.MarketDataType;
+import club.vinnymaker.datastore.MarketSnapshot;
+import club.vinnymaker.datastore.MarketSnapshot.ItemKey;
+import club.vinnymaker.datastore.MarketSnapshots;
+import club.vinnymaker.datastore.QuoteBoard;
+import club.vinnymaker.datastore.StockDataManager;
+import club.vinnymaker.datastore.UnitOfWork;
+import club.vinnymaker.stockapp.updater.Updater;
+
+/**
+ * QuoteFeed watches the data store for items written by the updater and hands every change to the registered
+ * {@link QuoteListener}s. There is a single poller for the whole frontend, so the cost of detecting changes
+ * doesn't grow with the number of clients. Every change is also written to the {@link QuoteBoard}, the first poll
+ * loads it with all the items, and each batch of changes is published as a new {@link MarketSnapshot}.
+ *
+ * With the updater embedded in the frontend(see startEmbedded()), the data store is only read once at start, after
+ * that the updater hands every cycle's data straight to the feed.
+ *
+ * The feed can also start out with data saved by a previous run, see restore().
+ *
+ * @author evinay
+ *
+ */
+public class QuoteFeed {
+	
+	private static final Logger logger = LogManager.getLogger(QuoteFeed.class);
+	
+	// The updater syncs once a minute, polling a few times as often keeps the added delay small.
+	private static final long POLL_INTERVAL_MS = 5000;
+	
+	/** How often the updater is expected to write new data. */
+	public static final long UPDATE_INTERVAL_MS = 60000;
+	private static final String FEED_THREAD_NAME = "quote-feed";
+	
+	private static final QuoteFeed instance = new QuoteFeed();
+	
+	private final List<QuoteListener> listeners = new CopyOnWriteArrayList<>();
+	private ScheduledExecutorService poller;
+	
+	// Update time of the most recent item seen so far, only written by the poller thread(or the embedded updater's
+	// thread, once the poller is done).
+	private volatile Date lastSeen;
+	// Version being published, set before the board is written and lastSeen moves. Same as lastSeen's time when no
+	// publish is in progress.
+	private volatile long publishing = 0;
+	private volatile boolean isEmbedded = false;
+	
+	private QuoteFeed() {
+	}
+	
+	public static QuoteFeed getInstance() {
+		return instance;
+	}
+	
+	public void addListener(QuoteListener listener) {
+		listeners.add(listener);
+	}
+	
+	public void removeListener(QuoteListener listener) {
+		listeners.remove(listener);
+	}
+	
+	/**
+	 * Returns the version of the data store contents as last seen by this feed, i.e., the time in millis of the most
+	 * recent update. It only moves forward, and changes whenever the updater writes new data. Data read from the 
+	 * store after calling this method is at least as recent as the returned version. It's also the version of the
+	 * current market snapshot.
+	 * 
+	 * @return Latest version seen, or 0 if the feed hasn't seen any data yet.
+	 */
+	public long getVersion() {
+		Date d = lastSeen;
+		return d == null ? 0 : d.getTime();
+	}
+	
+	/**
+	 * @return True if the updater is embedded in this process and hands its data to the feed(see startEmbedded()),
+	 * in which case the data store may be behind the feed.
+	 */
+	public boolean isEmbedded() {
+		return isEmbedded;
+	}
+	
+	/**
+	 * Tells whether the feed hasn't started publishing anything newer than a version, i.e., whether the quote board
+	 * still holds that version. Used like a seqlock's validation: read the version(see getVersion()), read the board,
+	 * then check the version with this method. If it returns false, the board may have been read mid-publish.
+	 * 
+	 * @param version Version read before reading the board.
+	 * 
+	 * @return True if the data read off the board is exactly the given version.
+	 */
+	public boolean isCurrent(long version) {
+		return publishing == version;
+	}
+	
+	/**
+	 * Loads the feed with data saved by an earlier run(see WarmStartFile), so that it can be served before the data
+	 * store is even reachable. The first poll then only reads what's changed since. Must be called before the feed
+	 * is started.
+	 * 
+	 * @param version Version of the saved data.
+	 * @param items All the items, as of the version.
+	 * @param listings Members of every index.
+	 * 
+	 * @return True if the data was loaded, false if the feed already has data.
+	 */
+	public synchronized boolean restore(long version, List<MarketData> items, Map<ItemKey, List<ItemKey>> listings) {
+		if (poller != null || lastSeen != null || items.isEmpty()) {
+			return false;
+		}
+		
+		apply(items, new Date(version), listings, false);
+		return true;
+	}
+	
+	/**
+	 * Starts polling the data store. Calling this on an already started feed has no effect.
+	 */
+	public synchronized void start() {
+		if (poller != null) {
+			return;
+		}
+		
+		poller = Executors.newSingleThreadScheduledExecutor((r) -> {
+			Thread t = new Thread(r, FEED_THREAD_NAME);
+			t.setDaemon(true);
+			return t;
+		});
+		poller.scheduleWithFixedDelay(this::poll, 0, POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Starts the feed with an updater embedded in this process. All the data is loaded from the data store once,
+	 * then the updater is started and every cycle it completes is published as is, without reading it back from
+	 * the data store. Calling this on an already started feed has no effect.
+	 */
+	public synchronized void startEmbedded() {
+		if (poller != null) {
+			return;
+		}
+		
+		poller = Executors.newSingleThreadScheduledExecutor((r) -> {
+			Thread t = new Thread(r, FEED_THREAD_NAME);
+			t.setDaemon(true);
+			return t;
+		});
+		isEmbedded = true;
+		poller.execute(() -> {
+			poll();
+			Updater.startEmbedded(this::onCycle);
+		});
+	}
+	
+	public synchronized void stop() {
+		if (poller != null) {
+			poller.shutdownNow();
+			poller = null;
+		}
+		if (isEmbedded) {
+			Updater.stopEmbedded();
+			isEmbedded = false;
+		}
+	}
+	
+	private void poll() {
+		try {
+			UnitOfWork.onPrimary(this::pollPrimary);
+		} catch (RuntimeException e) {
+			// Never let an exception cancel the scheduled poll.
+			logger.error("Error polling for updated quotes - " + e.getMessage());
+		}
+	}
+	
+	// The version is read off the primary, and so are the data versioned with it. A replica may be behind the version,
+	// or two replicas behind by different amounts.
+	private Void pollPrimary() {
+		boolean isFirstPoll = lastSeen == null;
+		List<MarketData> changed = StockDataManager.getInstance().getStocksUpdatedSince(lastSeen);
+		if (changed.isEmpty()) {
+			return null;
+		}
+		
+		Date latest = lastSeen;
+		for (MarketData it : changed) {
+			if (latest == null || it.getLastUpdatedAt().after(latest)) {
+				latest = it.getLastUpdatedAt();
+			}
+		}
+		
+		// Listings are reloaded as a whole, they only change with an update cycle. The first poll only
+		// establishes where we are, there are no changes to report yet.
+		apply(changed, latest, StockDataManager.getInstance().getIndexListings(), !isFirstPoll);
+		return null;
+	}
+	
+	/**
+	 * Publishes the data of an embedded updater's cycle. The updater still owns the items it fetched, so copies are
+	 * published, with the ids of items already known. Ids of the others are looked up in the data store, items the
+	 * updater hasn't written yet are published without ids and looked up again with the next cycle. Indexes are
+	 * listed with exactly the items fetched for them.
+	 */
+	private void onCycle(List<List<MarketData>> indexes) {
+		MarketSnapshot prev = MarketSnapshots.getInstance().current();
+		List<MarketData> changed = new ArrayList<>();
+		Map<ItemKey, List<ItemKey>> listings = new HashMap<>();
+		Map<ItemKey, MarketData> unknown = new HashMap<>();
+		long latest = getVersion();
+		for (List<MarketData> items : indexes) {
+			ItemKey index = null;
+			List<ItemKey> members = new ArrayList<>();
+			for (MarketData it : items) {
+				MarketData item = it.copy();
+				MarketData known = prev == null ? null : prev.get(it.getExchangeId(), it.getSymbol());
+				ItemKey key = new ItemKey(it.getExchangeId(), it.getSymbol());
+				if (known != null && known.getId() != 0) {
+					item.setId(known.getId());
+				} else {
+					unknown.put(key, item);
+				}
+				changed.add(item);
+				
+				members.add(key);
+				if (it.getType() == MarketDataType.INDEX) {
+					index = key;
+				}
+				latest = Math.max(latest, it.getLastUpdatedAt().getTime());
+			}
+			if (index != null) {
+				listings.put(index, members);
+			}
+		}
+		
+		if (!unknown.isEmpty()) {
+			// Rarely any, e.g., a stock new to an index. The updater writes to the primary.
+			Map<ItemKey, Integer> ids = UnitOfWork.onPrimary(() ->
+					StockDataManager.getInstance().getStockIds(unknown.keySet()));
+			if (ids != null) {
+				ids.forEach((key, id) -> unknown.get(key).setId(id));
+			}
+		}
+		
+		if (!changed.isEmpty()) {
+			// The version must move forward, even if the clock didn't.
+			apply(changed, new Date(Math.max(latest, getVersion() + 1)), listings, true);
+		}
+	}
+	
+	/**
+	 * Publishes a batch of changes. The board and the snapshot must have the changes before the new version is
+	 * published, see getVersion(), and readers of the board must be able to tell that they're being changed, see
+	 * isCurrent().
+	 */
+	private void apply(List<MarketData> changed, Date latest, Map<ItemKey, List<ItemKey>> listings, 
+			boolean notify) {
+		publishing = latest.getTime();
+		QuoteBoard.getInstance().update(changed);
+		MarketSnapshots.getInstance().publish(latest.getTime(), changed, listings);
+		lastSeen = latest;
+		if (notify) {
+			publish(changed);
+		}
+	}
+	
+	private void publish(Collection<MarketData> changed) {
+		for (QuoteListener listener : listeners) {
+			try {
+				listener.onQuotes(changed);
+			} catch (RuntimeException e) {
+				logger.error("Quote listener failed - " + e.getMessage());
+			}
+		}
+	}
+}
@@ -0,0 +1,22 @@
+package club.vinnymaker.appfrontend.stream;
+
+import java.util.Collection;
+
+import club.vinnymaker.data.MarketData;
+
+/**
+ * A QuoteListener is notified by the {@link QuoteFeed} whenever a sync finds items that have changed since
+ * the previous one.
+ *
+ * @author evinay
+ *
+ */
+public interface QuoteListener {
+	/**
+	 * Called once per sync with all the items that changed in it. Implementations must be quick, this runs
+	 * on the feed's only thread.
+	 *
+	 * @param changed Items updated since the last sync.
+	 */
+	public void onQuotes(Collection<MarketData> changed);
+}
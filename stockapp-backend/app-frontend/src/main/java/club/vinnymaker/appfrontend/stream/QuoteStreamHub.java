@@ -0,0 +1,173 @@
+package club.vinnymaker.appfrontend.stream;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.AsyncContext;
+
+import club.vinnymaker.appfrontend.json.MarketDataJsonWriter;
+import club.vinnymaker.data.MarketData;
+
+/**
+ * QuoteStreamHub keeps track of all the streaming clients and the symbols each one is interested in. Every change
+ * reported by the {@link QuoteFeed} is serialized once and then handed to all the subscribers of that symbol.
+ *
+ * @author evinay
+ *
+ */
+public class QuoteStreamHub implements QuoteListener {
+	
+	// Upper limit on the number of concurrently connected streaming clients.
+	public static final int MAX_SUBSCRIBERS = 10000;
+	
+	// Writes are non-blocking, so a couple of threads can serve all the subscribers.
+	private static final int WRITER_THREADS = 2;
+	private static final long HEARTBEAT_INTERVAL_MS = 15000;
+	private static final String HEARTBEAT_KEY = "";
+	private static final byte[] HEARTBEAT_FRAME = ": keepalive\n\n".getBytes(StandardCharsets.UTF_8);
+	private static final byte[] QUOTE_EVENT_PREFIX = "event: quote\ndata: ".getBytes(StandardCharsets.UTF_8);
+	private static final byte[] EVENT_SUFFIX = "\n\n".getBytes(StandardCharsets.UTF_8);
+	
+	private static final QuoteStreamHub instance = new QuoteStreamHub();
+	
+	// Subscribers of each key. A key identifies a single item on an exchange, see key().
+	private final ConcurrentHashMap<String, Set<QuoteSubscriber>> subscribersByKey = new ConcurrentHashMap<>();
+	private final Set<QuoteSubscriber> subscribers = ConcurrentHashMap.newKeySet();
+	private final AtomicInteger numSubscribers = new AtomicInteger();
+	
+	private ExecutorService writers;
+	private ScheduledExecutorService heartbeats;
+	
+	private QuoteStreamHub() {
+	}
+	
+	public static QuoteStreamHub getInstance() {
+		return instance;
+	}
+	
+	public static String key(int exchangeId, String symbol) {
+		return exchangeId + ":" + symbol;
+	}
+	
+	/**
+	 * Constructs a server sent event carrying the given item's data.
+	 */
+	public static byte[] frame(MarketData item) {
+		byte[] data = MarketDataJsonWriter.write(item);
+		byte[] ret = new byte[QUOTE_EVENT_PREFIX.length + data.length + EVENT_SUFFIX.length];
+		System.arraycopy(QUOTE_EVENT_PREFIX, 0, ret, 0, QUOTE_EVENT_PREFIX.length);
+		System.arraycopy(data, 0, ret, QUOTE_EVENT_PREFIX.length, data.length);
+		System.arraycopy(EVENT_SUFFIX, 0, ret, QUOTE_EVENT_PREFIX.length + data.length, EVENT_SUFFIX.length);
+		return ret;
+	}
+	
+	private static ThreadFactory daemonThreads(String name) {
+		AtomicInteger count = new AtomicInteger();
+		return (r) -> {
+			Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		};
+	}
+	
+	public synchronized void start() {
+		if (writers != null) {
+			return;
+		}
+		
+		writers = Executors.newFixedThreadPool(WRITER_THREADS, daemonThreads("stream-writer"));
+		heartbeats = Executors.newSingleThreadScheduledExecutor(daemonThreads("stream-heartbeat"));
+		heartbeats.scheduleAtFixedRate(this::heartbeat, HEARTBEAT_INTERVAL_MS, HEARTBEAT_INTERVAL_MS,
+				TimeUnit.MILLISECONDS);
+	}
+	
+	public synchronized void stop() {
+		if (writers == null) {
+			return;
+		}
+		
+		heartbeats.shutdownNow();
+		for (QuoteSubscriber sub : subscribers) {
+			sub.close();
+		}
+		writers.shutdownNow();
+		writers = null;
+		heartbeats = null;
+	}
+	
+	public boolean isFull() {
+		return numSubscribers.get() >= MAX_SUBSCRIBERS;
+	}
+	
+	/**
+	 * Registers a new streaming client interested in the given keys. The request must already be in async mode.
+	 *
+	 * @param context Async context of the client's request.
+	 * @param keys Keys of all the items this client is subscribing to.
+	 *
+	 * @return The new subscriber, or null if the hub is already at capacity.
+	 */
+	public QuoteSubscriber subscribe(AsyncContext context, Set<String> keys) throws IOException {
+		if (numSubscribers.incrementAndGet() > MAX_SUBSCRIBERS) {
+			numSubscribers.decrementAndGet();
+			return null;
+		}
+		
+		QuoteSubscriber sub = new QuoteSubscriber(this, context, keys, writers);
+		subscribers.add(sub);
+		for (String key : keys) {
+			subscribersByKey.computeIfAbsent(key, (k) -> ConcurrentHashMap.newKeySet()).add(sub);
+		}
+		sub.open();
+		return sub;
+	}
+	
+	void unsubscribe(QuoteSubscriber sub) {
+		if (!subscribers.remove(sub)) {
+			return;
+		}
+		
+		numSubscribers.decrementAndGet();
+		for (String key : sub.getKeys()) {
+			Set<QuoteSubscriber> subs = subscribersByKey.get(key);
+			if (subs != null) {
+				subs.remove(sub);
+			}
+		}
+	}
+	
+	@Override
+	public void onQuotes(Collection<MarketData> changed) {
+		for (MarketData item : changed) {
+			String key = key(item.getExchangeId(), item.getSymbol());
+			Set<QuoteSubscriber> subs = subscribersByKey.get(key);
+			if (subs == null || subs.isEmpty()) {
+				continue;
+			}
+			
+			byte[] frame = frame(item);
+			for (QuoteSubscriber sub : subs) {
+				sub.offer(key, frame);
+			}
+		}
+	}
+	
+	/**
+	 * Periodically writes a comment to every client. Keeps proxies from closing idle connections and lets us
+	 * notice clients that went away.
+	 */
+	private void heartbeat() {
+		for (QuoteSubscriber sub : subscribers) {
+			sub.offer(HEARTBEAT_KEY, HEARTBEAT_FRAME);
+		}
+	}
+}
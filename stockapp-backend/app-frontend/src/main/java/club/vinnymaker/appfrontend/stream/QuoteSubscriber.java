@@ -0,0 +1,209 @@
+package club.vinnymaker.appfrontend.stream;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+/**
+ * A single streaming client. Frames waiting to be sent are kept per key(symbol), so a client that can't keep up
+ * only ever has the latest frame of each of its symbols pending, and the backlog can never grow beyond the
+ * number of symbols it subscribed to. All writes are non-blocking, no thread is held while the client is idle
+ * or slow.
+ *
+ * @author evinay
+ *
+ */
+public class QuoteSubscriber implements WriteListener, AsyncListener {
+	
+	private final QuoteStreamHub hub;
+	private final AsyncContext context;
+	private final ServletOutputStream out;
+	private final Set<String> keys;
+	private final Executor executor;
+	
+	// Latest unsent frame for each key.
+	private final Map<String, byte[]> pending = new ConcurrentHashMap<>();
+	
+	// Set while a drain task is queued, so bursts of offers schedule only one task.
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+	
+	// Only one thread writes to the stream at a time, either a writer thread or the container.
+	private final AtomicBoolean draining = new AtomicBoolean();
+	
+	// Set by the container when the stream becomes writable again, after isReady() last returned false. Cleared by
+	// every isReady() check, see isReady().
+	private final AtomicBoolean writePossible = new AtomicBoolean();
+	
+	private volatile boolean closed = false;
+	
+	QuoteSubscriber(QuoteStreamHub hub, AsyncContext context, Set<String> keys, Executor executor) throws IOException {
+		this.hub = hub;
+		this.context = context;
+		this.keys = Collections.unmodifiableSet(keys);
+		this.executor = executor;
+		this.out = context.getResponse().getOutputStream();
+	}
+	
+	/**
+	 * Registers this subscriber with the container. Writing starts once the container calls onWritePossible.
+	 */
+	void open() {
+		context.addListener(this);
+		out.setWriteListener(this);
+	}
+	
+	public Set<String> getKeys() {
+		return keys;
+	}
+	
+	/**
+	 * Queues a frame for sending, replacing any unsent frame with the same key.
+	 */
+	void offer(String key, byte[] frame) {
+		if (closed) {
+			return;
+		}
+		pending.put(key, frame);
+		schedule();
+	}
+	
+	/**
+	 * Queues a frame only if there's nothing pending for the key, so it never replaces a more recent update.
+	 */
+	public void offerIfAbsent(String key, byte[] frame) {
+		if (closed) {
+			return;
+		}
+		pending.putIfAbsent(key, frame);
+		schedule();
+	}
+	
+	private void schedule() {
+		if (scheduled.compareAndSet(false, true)) {
+			executor.execute(() -> {
+				scheduled.set(false);
+				drain();
+			});
+		}
+	}
+	
+	/**
+	 * Writes out pending frames for as long as the stream accepts them without blocking. When it stops accepting
+	 * them, the container calls onWritePossible once the client catches up.
+	 */
+	private void drain() {
+		while (true) {
+			if (!draining.compareAndSet(false, true)) {
+				// The thread currently writing picks these frames up before it lets go.
+				return;
+			}
+			
+			boolean blocked = false;
+			try {
+				blocked = !writePending();
+			} catch (IOException | IllegalStateException e) {
+				draining.set(false);
+				close();
+				return;
+			}
+			draining.set(false);
+			
+			if (closed || pending.isEmpty()) {
+				return;
+			}
+			
+			// The container may have called onWritePossible while we were still holding the stream. In that case
+			// it's writable again and nobody else is going to drain it.
+			if (blocked && !writePossible.getAndSet(false)) {
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * @return False if the stream stopped accepting data before all pending frames were written.
+	 */
+	private boolean writePending() throws IOException {
+		if (!isReady()) {
+			return false;
+		}
+		
+		for (Map.Entry<String, byte[]> entry : pending.entrySet()) {
+			if (!pending.remove(entry.getKey(), entry.getValue())) {
+				// Replaced by a newer frame in the meantime, that one is sent in a later round.
+				continue;
+			}
+			
+			out.write(entry.getValue());
+			if (!isReady()) {
+				return false;
+			}
+		}
+		out.flush();
+		return isReady();
+	}
+	
+	/**
+	 * Checks whether the stream accepts more data. Any onWritePossible call seen so far is stale once the stream is
+	 * checked again, it only counts if it comes after a check that returned false. So the flag is cleared first, an
+	 * onWritePossible racing with the check sets it again.
+	 */
+	private boolean isReady() {
+		writePossible.set(false);
+		return out.isReady();
+	}
+	
+	void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		pending.clear();
+		hub.unsubscribe(this);
+		try {
+			context.complete();
+		} catch (IllegalStateException e) {
+			// Already completed by the container.
+		}
+	}
+	
+	@Override
+	public void onWritePossible() throws IOException {
+		writePossible.set(true);
+		drain();
+	}
+	
+	@Override
+	public void onError(Throwable t) {
+		close();
+	}
+	
+	@Override
+	public void onComplete(AsyncEvent event) throws IOException {
+		close();
+	}
+	
+	@Override
+	public void onTimeout(AsyncEvent event) throws IOException {
+		close();
+	}
+	
+	@Override
+	public void onError(AsyncEvent event) throws IOException {
+		close();
+	}
+	
+	@Override
+	public void onStartAsync(AsyncEvent event) throws IOException {
+	}
+}
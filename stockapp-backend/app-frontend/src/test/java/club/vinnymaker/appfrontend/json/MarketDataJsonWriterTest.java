@@ -0,0 +1,47 @@
+package club.vinnymaker.appfrontend.json;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.Date;
+
+import org.json.JSONObject;
+
+import club.vinnymaker.data.MarketData;
+import club.vinnymaker.data.MarketDataType;
+import junit.framework.TestCase;
+
+/**
+ * Update times must be written the same way whichever kind of Date an item holds.
+ *
+ * @author evinay
+ *
+ */
+public class MarketDataJsonWriterTest extends TestCase {
+	
+	private static final long UPDATED_AT = 1500000000000L;
+	
+	private static MarketData item(Date updatedAt) {
+		MarketData item = new MarketData("INFY");
+		item.setType(MarketDataType.STOCK);
+		item.setExchangeId(1);
+		item.setLastUpdatedAt(updatedAt);
+		return item;
+	}
+	
+	private static String updatedAt(byte[] json) {
+		return new JSONObject(new String(json, StandardCharsets.UTF_8)).getString("lastUpdatedAt");
+	}
+	
+	public void testDateWrittenAsTimestamp() {
+		String fromDatabase = updatedAt(MarketDataJsonWriter.write(item(new Timestamp(UPDATED_AT))));
+		String fromUpdater = updatedAt(MarketDataJsonWriter.write(item(new Date(UPDATED_AT))));
+		
+		assertEquals(new Timestamp(UPDATED_AT).toString(), fromDatabase);
+		assertEquals(fromDatabase, fromUpdater);
+	}
+	
+	public void testNoUpdateTime() {
+		String json = new String(MarketDataJsonWriter.write(item(null)), StandardCharsets.UTF_8);
+		assertFalse(new JSONObject(json).has("lastUpdatedAt"));
+	}
+}
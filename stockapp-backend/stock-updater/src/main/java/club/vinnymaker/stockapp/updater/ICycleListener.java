@@ -0,0 +1,23 @@
+package club.vinnymaker.stockapp.updater;
+
+import java.util.List;
+
+import club.vinnymaker.data.MarketData;
+
+/**
+ * An ICycleListener gets the data of every update cycle of an updater embedded in another process, e.g., the
+ * frontend, as soon as it's fetched and before it's written to the data store.
+ * 
+ * @author evinay
+ *
+ */
+public interface ICycleListener {
+	/**
+	 * Called on the updater thread at the end of every update cycle. The items must not be modified, they're still
+	 * being written to the data store.
+	 * 
+	 * @param indexes Items fetched for each index in the cycle, the index itself included. Indexes that couldn't be 
+	 * fetched have no items.
+	 */
+	public void onCycle(List<List<MarketData>> indexes);
+}
@@ -20,6 +20,13 @@ public interface IExchangeDataIndexer {
 	 */
 	public Exchange getExchange();
 	
+	/**
+	 * Get the code of the exchange indexed by this indexer, without looking it up in the data store.
+	 * 
+	 * @return Exchange code.
+	 */
+	public String getExchangeCode();
+	
 	/**
 	 * Get the list of indexes managed by this indexer.
 	 * 
@@ -35,10 +42,13 @@ public interface IExchangeDataIndexer {
 	List<MarketData> getMarketDataItems(String index);
 	
 	/**
-	 * Synchronizes the recently fetched stock data(of a single index) to the data store.
+	 * Synchronizes the recently fetched stock data of one or more indexes to the data store, all at once.
 	 * 
 	 * @param exchangeCode Code for this exchange.
-	 * @param items Recently fetched stock data.
+	 * @param indexes Recently fetched stock data, of each index.
+	 * 
+	 * @return Number of indexes written, or StockDataManager.UPDATE_FAILED if nothing was written but may be if tried
+	 * again, or StockDataManager.UPDATE_REJECTED if nothing was written and trying the same data again won't help.
 	 */
-	public void syncToDataStore(String exchangeCode, Collection<MarketData> items);
+	public int syncToDataStore(String exchangeCode, Collection<? extends Collection<MarketData>> indexes);
 }
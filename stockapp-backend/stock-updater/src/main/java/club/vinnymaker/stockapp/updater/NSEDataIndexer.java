@@ -20,6 +20,10 @@ import club.vinnymaker.data.Exchange;
 import club.vinnymaker.data.MarketData;
 import club.vinnymaker.data.MarketDataType;
 import club.vinnymaker.datastore.StockDataManager;
+import club.vinnymaker.metrics.Counter;
+import club.vinnymaker.metrics.Histogram;
+import club.vinnymaker.metrics.MetricsRegistry;
+import club.vinnymaker.metrics.Trace;
 
 /**
  * NSEDataIndexer maintains the data for NSE. For this indexer, we rely on the live watch page published 
@@ -50,10 +54,27 @@ public class NSEDataIndexer implements IExchangeDataIndexer {
 	private static final String HIGH_KEY = "high";
 	private static final String LOW_KEY = "low";
 	
+	// Stages and counts of the running cycle's trace.
+	private static final String STAGE_FETCH = "fetch";
+	private static final String STAGE_PARSE = "parse";
+	private static final String STAGE_EXCHANGE_LOOKUP = "exchange_lookup";
+	private static final String BYTES_FETCHED = "bytes_fetched";
+	private static final String ITEMS_FETCHED = "items";
+	
 	private static NSEDataIndexer instance = null;
 	
 	private static final Logger logger = LogManager.getLogger(NSEDataIndexer.class); 
 	
+	private static final Histogram fetchDuration = MetricsRegistry.getInstance().histogram(
+			"stockapp_updater_fetch_duration_seconds", "Time taken to fetch an index page", "exchange", 
+			EXCHANGE_CODE_NSE);
+	private static final Counter fetchFailures = MetricsRegistry.getInstance().counter(
+			"stockapp_updater_fetch_failures_total", "Index pages that couldn't be fetched or parsed", "exchange", 
+			EXCHANGE_CODE_NSE);
+	private static final Counter itemsFetched = MetricsRegistry.getInstance().counter(
+			"stockapp_updater_items_fetched_total", "Items(stocks/indexes) read from index pages", "exchange", 
+			EXCHANGE_CODE_NSE);
+	
 	private NSEDataIndexer() {
 	}
 	
@@ -62,6 +83,11 @@ public class NSEDataIndexer implements IExchangeDataIndexer {
 		return StockDataManager.getInstance().getExchange(EXCHANGE_CODE_NSE);
 	}
 	
+	@Override
+	public String getExchangeCode() {
+		return EXCHANGE_CODE_NSE;
+	}
+	
 	public static NSEDataIndexer getInstance() {
 		if (instance == null) {
 			instance = new NSEDataIndexer();
@@ -107,31 +133,67 @@ public class NSEDataIndexer implements IExchangeDataIndexer {
 	 */
 	private List<MarketData> readItemsFromIndexPage(String suffix) {
 		String url = NSE_LIVE_DATA_URL_PREFIX + suffix;
+		long start = System.nanoTime();
 		Date now = new Date();
 		List<MarketData> items = new ArrayList<>();
 		try {
-			Content content = Request.Get(url).execute().returnContent();
-			JSONObject obj = new JSONObject(content.asString());
-
-			// First, get the index item itself.
-			JSONObject latestIndexData = (JSONObject) (((JSONArray)obj.get(LATEST_DATA_KEY)).get(0));
-			// Insert into latestIndexData a few keys that're present in the outer object.
-			latestIndexData.put(INDEX_VOL_KEY, obj.get(INDEX_VOL_KEY));
-			items.add(getMarketDataFromJson(latestIndexData, now, true));
-
-			// Next, get all the component stocks.
-			for (Object elem : (JSONArray) obj.get(DATA_KEY) ) {
-				items.add(getMarketDataFromJson((JSONObject) elem, now, false));
+			String page;
+			try (Trace.Stage s = Trace.stage(STAGE_FETCH)) {
+				Content content = Request.Get(url).execute().returnContent();
+				Trace.count(BYTES_FETCHED, content.asBytes().length);
+				page = content.asString();
+			}
+			int exchangeId;
+			try (Trace.Stage s = Trace.stage(STAGE_EXCHANGE_LOOKUP)) {
+				exchangeId = getExchange().getId();
+			}
+			try (Trace.Stage s = Trace.stage(STAGE_PARSE)) {
+				items = parseIndexPage(page, now, exchangeId);
 			}
-		} catch (IOException e) {
+			Trace.count(ITEMS_FETCHED, items.size());
+			itemsFetched.add(items.size());
+		} catch (IOException | RuntimeException e) {
+			// Parse errors(bad JSON, missing keys or numbers) fail the page just like network errors.
 			logger.debug("Error retrieving items from data source " + e.getMessage());
+			fetchFailures.inc();
+			items.clear();
+		} finally {
+			fetchDuration.recordSince(start);
+		}
+		return items;
+	}
+	
+	/**
+	 * Reads the index and its component stocks from the json of an NSE live watch page.
+	 * 
+	 * @param content Json text of the page.
+	 * @param now The approx time when the page was fetched.
+	 * @param exchangeId Id of the NSE exchange.
+	 * 
+	 * @return List of MarketData objects, the index first and then its stocks.
+	 * 
+	 * @throws RuntimeException if the json is malformed or lacks any of the expected keys.
+	 */
+	public List<MarketData> parseIndexPage(String content, Date now, int exchangeId) {
+		List<MarketData> items = new ArrayList<>();
+		JSONObject obj = new JSONObject(content);
+
+		// First, get the index item itself.
+		JSONObject latestIndexData = (JSONObject) (((JSONArray)obj.get(LATEST_DATA_KEY)).get(0));
+		// Insert into latestIndexData a few keys that're present in the outer object.
+		latestIndexData.put(INDEX_VOL_KEY, obj.get(INDEX_VOL_KEY));
+		items.add(getMarketDataFromJson(latestIndexData, now, exchangeId, true));
+
+		// Next, get all the component stocks.
+		for (Object elem : (JSONArray) obj.get(DATA_KEY) ) {
+			items.add(getMarketDataFromJson((JSONObject) elem, now, exchangeId, false));
 		}
 		return items;
 	}
 
 	@Override
-	public void syncToDataStore(String exchangeCode, Collection<MarketData> items) {
-		StockDataManager.getInstance().updateIndexStocks(exchangeCode, items);
+	public int syncToDataStore(String exchangeCode, Collection<? extends Collection<MarketData>> indexes) {
+		return StockDataManager.getInstance().updateIndexesStocks(exchangeCode, indexes);
 	}
 
 	private double parseDouble(String number) {
@@ -144,11 +206,12 @@ public class NSEDataIndexer implements IExchangeDataIndexer {
 	 * 
 	 * @param obj The json object with the data.
 	 * @param now The approx time when this data was fetched.
+	 * @param exchangeId Id of the exchange the item belongs to.
 	 * @param isIndex Whether this in an index.
 	 * 
 	 * @return MarketData object filled with the given data.
 	 */
-	private MarketData getMarketDataFromJson(JSONObject obj, Date now, boolean isIndex) {
+	private MarketData getMarketDataFromJson(JSONObject obj, Date now, int exchangeId, boolean isIndex) {
 		MarketData item = new MarketData((String) obj.get(isIndex ? INDEX_NAME_KEY : SYMBOL_KEY));
 		item.setType(isIndex ? MarketDataType.INDEX : MarketDataType.STOCK);
 		item.setOpen(parseDouble((String) obj.get(OPEN_KEY)));
@@ -158,7 +221,7 @@ public class NSEDataIndexer implements IExchangeDataIndexer {
 		item.setLow(parseDouble((String) obj.get(LOW_KEY)));
 		item.setPreviousClose(item.getLastTradedPrice() - parseDouble((String) obj.get(isIndex ? INDEX_CHG_KEY : STOCK_CHG_KEY)));
 		item.setLastUpdatedAt(now);
-		item.setExchangeId(getExchange().getId());
+		item.setExchangeId(exchangeId);
 		return item;
 	}
 }
@@ -0,0 +1,510 @@
+package club.vinnymaker.stockapp.updater;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import club.vinnymaker.data.MarketData;
+import club.vinnymaker.data.MarketDataType;
+import club.vinnymaker.metrics.Counter;
+import club.vinnymaker.metrics.Histogram;
+import club.vinnymaker.metrics.MetricsRegistry;
+import lombok.Getter;
+
+/**
+ * SnapshotJournal is an append only file of the index snapshots the updater has fetched, so that they survive the
+ * updater dying before they're written to the data store. Every snapshot gets a sequence number, and is
+ * acknowledged once it's in the data store. On start, the snapshots that were never acknowledged are read back
+ * and written again.
+ *
+ * Each record is framed by its length and CRC32, a record that's cut short or corrupted(e.g., by a crash during a
+ * write) ends the journal, it and anything after it is dropped.
+ *
+ * Appends are group committed: a record is written and forced to disk along with every other record appended
+ * meanwhile, by whichever appender gets there first. Acknowledgments don't wait for the disk, losing one only means
+ * a snapshot is written to the data store twice. The same goes for a snapshot whose append failed: whatever part of
+ * its group reached the file is cut off, and its record is tried again with the next group, but it's never
+ * acknowledged. Replaying such snapshots is harmless, the data store skips an index's snapshot unless it's newer
+ * than the stored data(see StockDataManager.updateIndexesStocks()).
+ *
+ * The journal only needs the latest snapshot of each index, it's rewritten with just those whenever it grows past
+ * a limit. A lock file in the journal's directory keeps a second updater from opening the same journal.
+ *
+ * @author evinay
+ *
+ */
+public class SnapshotJournal implements Closeable {
+	
+	private static final Logger logger = LogManager.getLogger(SnapshotJournal.class);
+	
+	private static final String FILE_NAME = "updater.journal";
+	private static final String COMPACT_FILE_NAME = "updater.journal.compact";
+	private static final String LOCK_FILE_NAME = "updater.journal.lock";
+	
+	// Lock files held by this process. A second channel to a lock file mustn't be opened, closing it would release
+	// the lock held through the first one.
+	private static final Set<Path> lockedPaths = ConcurrentHashMap.newKeySet();
+	
+	// Rewritten with only the latest snapshots past this size. A cycle of the NSE indexes is ~10KB.
+	private static final long MAX_SIZE = 8L << 20;
+	
+	// Length and CRC32 of a record.
+	private static final int FRAME_HEADER_SIZE = 8;
+	
+	private static final byte SNAPSHOT_RECORD = 1;
+	private static final byte ACK_RECORD = 2;
+	
+	private static final Histogram commitDuration = MetricsRegistry.getInstance().histogram(
+			"stockapp_journal_commit_duration_seconds", "Time taken to write and force a group of journal records");
+	private static final Counter recordsCommitted = MetricsRegistry.getInstance().counter(
+			"stockapp_journal_records_total", "Records written to the updater journal");
+	private static final Counter groupsCommitted = MetricsRegistry.getInstance().counter(
+			"stockapp_journal_commits_total", "Group commits of the updater journal");
+	
+	/**
+	 * A snapshot of an index, as journaled.
+	 */
+	public static class Entry {
+		@Getter
+		private final long seq;
+		@Getter
+		private final String exchangeCode;
+		@Getter
+		private final String index;
+		@Getter
+		private final List<MarketData> items;
+		
+		// Framed record, to rewrite the journal with.
+		private final byte[] frame;
+		private boolean isAcknowledged = false;
+		
+		private Entry(long seq, String exchangeCode, String index, List<MarketData> items, byte[] frame) {
+			this.seq = seq;
+			this.exchangeCode = exchangeCode;
+			this.index = index;
+			this.items = items;
+			this.frame = frame;
+		}
+	}
+	
+	private final Path dir;
+	private final Path lockPath;
+	private FileChannel channel;
+	private FileChannel lockChannel;
+	
+	// All guarded by this. Frames appended but not yet written, and the tickets of the last one appended and the
+	// last one forced to disk.
+	private final List<byte[]> queued = new ArrayList<>();
+	private long queuedTicket = 0;
+	private long durableTicket = 0;
+	private boolean isCommitting = false;
+	private long nextSeq = 1;
+	
+	// Latest snapshot of every index by exchange and index name.
+	private final Map<String, Entry> latest = new LinkedHashMap<>();
+	
+	private SnapshotJournal(Path dir) {
+		this.dir = dir;
+		this.lockPath = dir.resolve(LOCK_FILE_NAME).toAbsolutePath().normalize();
+	}
+	
+	private static String key(String exchangeCode, String index) {
+		return exchangeCode + "/" + index;
+	}
+	
+	/**
+	 * Opens the journal in the given directory, creating it if needed, and reads back whatever it has.
+	 *
+	 * @throws IOException if the journal can't be read or written, or another process has it open.
+	 */
+	public static SnapshotJournal open(Path dir) throws IOException {
+		Files.createDirectories(dir);
+		SnapshotJournal journal = new SnapshotJournal(dir);
+		journal.lock();
+		try {
+			journal.replay();
+			journal.compact();
+		} catch (IOException e) {
+			journal.unlock();
+			throw e;
+		}
+		return journal;
+	}
+	
+	private void lock() throws IOException {
+		if (!lockedPaths.add(lockPath)) {
+			throw new IOException("Journal in " + dir + " is in use by another updater");
+		}
+		
+		boolean isLocked = false;
+		try {
+			lockChannel = FileChannel.open(lockPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			isLocked = lockChannel.tryLock() != null;
+		} finally {
+			if (!isLocked) {
+				unlock();
+			}
+		}
+		if (!isLocked) {
+			throw new IOException("Journal in " + dir + " is in use by another process");
+		}
+	}
+	
+	private void unlock() throws IOException {
+		try {
+			if (lockChannel != null) {
+				// Releases the lock along with the channel.
+				lockChannel.close();
+			}
+		} finally {
+			lockedPaths.remove(lockPath);
+		}
+	}
+	
+	private void replay() throws IOException {
+		Path path = dir.resolve(FILE_NAME);
+		if (!Files.exists(path)) {
+			return;
+		}
+		
+		long start = System.currentTimeMillis();
+		byte[] content = Files.readAllBytes(path);
+		ByteBuffer buf = ByteBuffer.wrap(content);
+		int records = 0;
+		while (buf.remaining() >= FRAME_HEADER_SIZE) {
+			int at = buf.position();
+			int length = buf.getInt();
+			int crc = buf.getInt();
+			if (length < 0 || length > buf.remaining()) {
+				logger.warn("Journal record at {} is cut short, dropping the rest of the journal", at);
+				break;
+			}
+			
+			CRC32 checksum = new CRC32();
+			checksum.update(content, buf.position(), length);
+			if ((int) checksum.getValue() != crc) {
+				logger.warn("Journal record at {} is corrupt, dropping the rest of the journal", at);
+				break;
+			}
+			
+			byte[] frame = new byte[FRAME_HEADER_SIZE + length];
+			System.arraycopy(content, at, frame, 0, frame.length);
+			read(new DataInputStream(new ByteArrayInputStream(content, buf.position(), length)), frame);
+			buf.position(buf.position() + length);
+			records++;
+		}
+		logger.info("Replayed {} journal records in {}ms, {} snapshots not acknowledged", records,
+				System.currentTimeMillis() - start, unacknowledged().size());
+	}
+	
+	private void read(DataInputStream in, byte[] frame) throws IOException {
+		byte type = in.readByte();
+		long seq = in.readLong();
+		String exchangeCode = in.readUTF();
+		String index = in.readUTF();
+		nextSeq = Math.max(nextSeq, seq + 1);
+		
+		String key = key(exchangeCode, index);
+		if (type == ACK_RECORD) {
+			Entry entry = latest.get(key);
+			if (entry != null && entry.seq <= seq) {
+				entry.isAcknowledged = true;
+			}
+			return;
+		}
+		
+		int n = in.readInt();
+		List<MarketData> items = new ArrayList<>(n);
+		for (int i = 0; i < n; i++) {
+			MarketData item = new MarketData(in.readUTF());
+			item.setId(in.readInt());
+			item.setExchangeId(in.readInt());
+			item.setType(MarketDataType.valueOf(in.readUTF()));
+			item.setOpen(in.readDouble());
+			item.setHigh(in.readDouble());
+			item.setLow(in.readDouble());
+			item.setLastTradedPrice(in.readDouble());
+			item.setPreviousClose(in.readDouble());
+			item.setVolume(in.readDouble());
+			long updatedAt = in.readLong();
+			item.setLastUpdatedAt(updatedAt < 0 ? null : new Date(updatedAt));
+			items.add(item);
+		}
+		latest.put(key, new Entry(seq, exchangeCode, index, items, frame));
+	}
+	
+	/**
+	 * @return Latest snapshot of each index, of those that haven't been acknowledged.
+	 */
+	public synchronized List<Entry> unacknowledged() {
+		List<Entry> entries = new ArrayList<>();
+		for (Entry e : latest.values()) {
+			if (!e.isAcknowledged) {
+				entries.add(e);
+			}
+		}
+		return entries;
+	}
+	
+	private static byte[] frame(ByteArrayOutputStream payload) {
+		byte[] bytes = payload.toByteArray();
+		CRC32 checksum = new CRC32();
+		checksum.update(bytes);
+		ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_SIZE + bytes.length);
+		frame.putInt(bytes.length).putInt((int) checksum.getValue()).put(bytes);
+		return frame.array();
+	}
+	
+	private static ByteArrayOutputStream header(byte type, long seq, String exchangeCode, String index)
+			throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(type);
+		out.writeLong(seq);
+		out.writeUTF(exchangeCode);
+		out.writeUTF(index);
+		return bytes;
+	}
+	
+	/**
+	 * Appends a snapshot of an index, and waits until it's on disk.
+	 *
+	 * @param items Items fetched for the index, they must not be modified after.
+	 *
+	 * @return Sequence number of the snapshot, to acknowledge it with.
+	 * @throws IOException if the snapshot couldn't be written.
+	 */
+	public long append(String exchangeCode, String index, List<MarketData> items) throws IOException {
+		long seq;
+		synchronized (this) {
+			seq = nextSeq++;
+		}
+		
+		ByteArrayOutputStream bytes = header(SNAPSHOT_RECORD, seq, exchangeCode, index);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(items.size());
+		for (MarketData item : items) {
+			out.writeUTF(item.getSymbol());
+			out.writeInt(item.getId());
+			out.writeInt(item.getExchangeId());
+			out.writeUTF(item.getType().name());
+			out.writeDouble(item.getOpen());
+			out.writeDouble(item.getHigh());
+			out.writeDouble(item.getLow());
+			out.writeDouble(item.getLastTradedPrice());
+			out.writeDouble(item.getPreviousClose());
+			out.writeDouble(item.getVolume());
+			out.writeLong(item.getLastUpdatedAt() == null ? -1 : item.getLastUpdatedAt().getTime());
+		}
+		byte[] frame = frame(bytes);
+		
+		long ticket;
+		synchronized (this) {
+			latest.put(key(exchangeCode, index), new Entry(seq, exchangeCode, index, items, frame));
+			queued.add(frame);
+			ticket = ++queuedTicket;
+		}
+		commit(ticket);
+		return seq;
+	}
+	
+	/**
+	 * Marks a snapshot(and any older ones of its index) as written to the data store. Doesn't wait for the disk.
+	 */
+	public void acknowledge(String exchangeCode, String index, long seq) {
+		try {
+			byte[] frame = frame(header(ACK_RECORD, seq, exchangeCode, index));
+			synchronized (this) {
+				Entry entry = latest.get(key(exchangeCode, index));
+				if (entry != null && entry.seq <= seq) {
+					entry.isAcknowledged = true;
+				}
+				queued.add(frame);
+				queuedTicket++;
+			}
+		} catch (IOException e) {
+			// Only from writing to memory, can't happen.
+			logger.error("Error framing journal acknowledgment - " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Waits until the record with the given ticket is on disk. If no one is writing, writes out everything queued
+	 * so far, the records of all the appenders waiting meanwhile go to disk with a single write and force.
+	 */
+	private void commit(long ticket) throws IOException {
+		List<byte[]> group;
+		long groupTicket;
+		synchronized (this) {
+			while (isCommitting && durableTicket < ticket) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted waiting for the journal");
+				}
+			}
+			if (durableTicket >= ticket) {
+				return;
+			}
+			
+			isCommitting = true;
+			group = new ArrayList<>(queued);
+			groupTicket = queuedTicket;
+			queued.clear();
+		}
+		
+		long start = System.nanoTime();
+		long sizeBefore = -1;
+		boolean isWritten = false;
+		try {
+			int size = 0;
+			for (byte[] frame : group) {
+				size += frame.length;
+			}
+			ByteBuffer buf = ByteBuffer.allocate(size);
+			for (byte[] frame : group) {
+				buf.put(frame);
+			}
+			buf.flip();
+			sizeBefore = channel.size();
+			while (buf.hasRemaining()) {
+				channel.write(buf);
+			}
+			channel.force(false);
+			isWritten = true;
+			commitDuration.recordSince(start);
+			recordsCommitted.add(group.size());
+			groupsCommitted.inc();
+			
+			if (channel.size() > MAX_SIZE) {
+				groupTicket = compact();
+			}
+		} finally {
+			if (!isWritten && sizeBefore >= 0) {
+				truncate(sizeBefore);
+			}
+			synchronized (this) {
+				isCommitting = false;
+				if (isWritten) {
+					durableTicket = groupTicket;
+				} else {
+					// Whoever commits next tries these again.
+					queued.addAll(0, group);
+				}
+				notifyAll();
+			}
+		}
+	}
+	
+	/**
+	 * Cuts off whatever part of a failed group made it to the file, so that the group isn't there twice once it's
+	 * tried again, nor a torn record ahead of it that would end the journal on replay.
+	 */
+	private void truncate(long size) {
+		try {
+			channel.truncate(size);
+		} catch (IOException e) {
+			logger.error("Error truncating journal after a failed write - " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Rewrites the journal with just the latest snapshot of each index. Only called while no one else writes to it.
+	 * The records queued meanwhile are already reflected in the latest snapshots, so they're taken out of the queue
+	 * and are on disk along with the rewritten journal, instead of being appended to it a second time.
+	 *
+	 * @return Ticket of the last record the rewritten journal has.
+	 */
+	private long compact() throws IOException {
+		List<byte[]> frames = new ArrayList<>();
+		List<byte[]> absorbed;
+		long ticket;
+		synchronized (this) {
+			for (Entry e : latest.values()) {
+				frames.add(e.frame);
+				if (e.isAcknowledged) {
+					frames.add(frame(header(ACK_RECORD, e.seq, e.exchangeCode, e.index)));
+				}
+			}
+			absorbed = new ArrayList<>(queued);
+			ticket = queuedTicket;
+			queued.clear();
+		}
+		
+		boolean isCompacted = false;
+		try {
+			rewrite(frames);
+			isCompacted = true;
+		} finally {
+			if (!isCompacted) {
+				synchronized (this) {
+					queued.addAll(0, absorbed);
+				}
+			}
+		}
+		return ticket;
+	}
+	
+	private void rewrite(List<byte[]> frames) throws IOException {
+		Path compacted = dir.resolve(COMPACT_FILE_NAME);
+		try (FileChannel out = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			for (byte[] frame : frames) {
+				ByteBuffer buf = ByteBuffer.wrap(frame);
+				while (buf.hasRemaining()) {
+					out.write(buf);
+				}
+			}
+			out.force(false);
+		}
+		
+		if (channel != null) {
+			channel.close();
+		}
+		Path path = dir.resolve(FILE_NAME);
+		Files.move(compacted, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		logger.debug("Compacted journal to {} snapshots", frames.size());
+	}
+	
+	/**
+	 * Writes out any acknowledgments not yet on disk, and closes the journal.
+	 */
+	@Override
+	public void close() throws IOException {
+		long ticket;
+		synchronized (this) {
+			ticket = queuedTicket;
+		}
+		try {
+			commit(ticket);
+		} finally {
+			try {
+				channel.close();
+			} finally {
+				unlock();
+			}
+		}
+	}
+}
@@ -1,7 +1,11 @@
 package club.vinnymaker.stockapp.updater;
 
 import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -9,10 +13,27 @@ import org.apache.logging.log4j.Logger;
 import club.vinnymaker.data.Exchange;
 import club.vinnymaker.data.MarketData;
 import club.vinnymaker.datastore.DataStoreManager;
+import club.vinnymaker.metrics.Counter;
+import club.vinnymaker.metrics.Histogram;
+import club.vinnymaker.metrics.JvmMetrics;
+import club.vinnymaker.metrics.MetricsRegistry;
+import club.vinnymaker.metrics.MetricsServer;
+import club.vinnymaker.metrics.Trace;
 
 /**
  * Main executable in the stock updater module. All {@link Exchange} objects are properly
  * initialized and their data is periodically refreshed and synced to the data store.
+ * 
+ * Metrics are served at /metrics on the port in the stockapp.metrics.port system property(9101 by default, 0 to
+ * turn off), to the clients MetricsServer allows. Every cycle is traced stage by stage(fetch, parse, exchange
+ * lookups), and so is every write to the datastore(load, diff and commit). Cycles slower than
+ * stockapp.updater.slowCycleMs(10s by default) are logged with their trace.
+ * 
+ * Fetched data is written to the data store in the background by a {@link WriteBehindPersister}, so a slow
+ * database never holds up fetching. It's first appended to a {@link SnapshotJournal} in the directory given by the
+ * stockapp.updater.journalDir system property(no journal unless it's set), so that data not yet written when the
+ * updater stops is written on the next start. The updater can also run embedded in another
+ * process, see startEmbedded(). Fetched data is then also handed straight to that process.
  * @author evinay
  *
  */
@@ -27,14 +48,56 @@ public class Updater {
 	private static final String UPDATER = "updater";
 	private static final String CLOSER = "closer";
 	
+	/** Set to true to run the updater inside the frontend, instead of as a process of its own. */
+	public static final String EMBEDDED_PROPERTY = "stockapp.updater.embedded";
+	
 	private static Thread updateThread;
 	private static Thread closerThread;
 	
+	private static WriteBehindPersister persister;
+	private static SnapshotJournal journal;
+	
+	// Directory of the journal, the updater runs without one unless it's set.
+	public static final String JOURNAL_DIR_PROPERTY = "stockapp.updater.journalDir";
+	
+	private static final int DEFAULT_METRICS_PORT = 9101;
+	
+	private static final Counter cycles = MetricsRegistry.getInstance().counter("stockapp_updater_cycles_total", 
+			"Update cycles completed");
+	private static final Histogram cycleDuration = MetricsRegistry.getInstance().histogram(
+			"stockapp_updater_cycle_duration_seconds", "Time taken to fetch and sync all indexes of all exchanges");
+	private static final Counter slowCycles = MetricsRegistry.getInstance().counter(
+			"stockapp_updater_slow_cycles_total", "Update cycles that took longer than the slow cycle threshold");
+	
+	// Each cycle is traced, with a child trace per index. Stages are added by the indexers and the datastore.
+	private static final String CYCLE_TRACE = "cycle";
+	private static final String INDEX_TRACE = "index";
+	private static final String STAGE_EXCHANGE_LOOKUP = "exchange_lookup";
+	private static final String STAGE_PUBLISH = "publish";
+	private static final String STAGE_JOURNAL = "journal";
+	private static final String SLOW_CYCLE_EVENT = "slow_cycle";
+	private static final String STAGE_DURATION_METRIC = "stockapp_updater_stage_duration_seconds";
+	private static final String STAGE_DURATION_HELP = "Time spent in each stage of update cycles and data store writes";
+	private static final String TRACE_COUNT_METRIC = "stockapp_updater_traced_total";
+	private static final String TRACE_COUNT_HELP = "Items, bytes and rows handled by update cycles";
+	
+	// Cycles longer than this(in ms) are logged with their trace, see recordTrace().
+	public static final String SLOW_CYCLE_PROPERTY = "stockapp.updater.slowCycleMs";
+	private static final long DEFAULT_SLOW_CYCLE_MS = 10000;
+	
 	public static void main(String[] args) throws IOException {
 		
 		logger.info("Entering Updater executable");
+		
+		MetricsServer metricsServer = null;
+		int metricsPort = Integer.getInteger(MetricsServer.PORT_PROPERTY, DEFAULT_METRICS_PORT);
+		if (metricsPort > 0) {
+			JvmMetrics.register(MetricsRegistry.getInstance());
+			metricsServer = MetricsServer.start(metricsPort, MetricsRegistry.getInstance());
+		}
 	
-		updateThread = new Thread(Updater::update);
+		startPersistence(null);
+		updateThread = new Thread(() -> update(null));
 		updateThread.setName(UPDATER);
 		updateThread.start();
 		
@@ -47,6 +110,11 @@ public class Updater {
 		} catch (InterruptedException e) {
 			logger.error("Update thread interrupted - " + e.getMessage());
 		}
+		stopPersistence();
+		
+		if (metricsServer != null) {
+			metricsServer.stop();
+		}
 		
 		LogManager.shutdown();
 		
@@ -54,7 +122,124 @@ public class Updater {
 		DataStoreManager.getInstance().shutdown();
 	}
 	
+	/**
+	 * Starts running update cycles in this process, on a daemon thread. Every cycle's data is handed to the listener
+	 * as soon as it's fetched, while it's written to the data store in the background. Unlike the standalone 
+	 * updater, this runs until stopEmbedded() is called. Calling this when the updater is already running has no
+	 * effect.
+	 * 
+	 * @param listener Gets the data of every cycle, on the update thread.
+	 */
+	public static synchronized void startEmbedded(ICycleListener listener) {
+		if (updateThread != null) {
+			return;
+		}
+		
+		startPersistence(listener);
+		updateThread = new Thread(() -> update(listener));
+		updateThread.setName(UPDATER);
+		updateThread.setDaemon(true);
+		updateThread.start();
+		logger.info("Started embedded updater");
+	}
+	
+	/**
+	 * Stops an updater started with startEmbedded(), after waiting for a while for pending writes to the data store.
+	 */
+	public static synchronized void stopEmbedded() {
+		if (updateThread == null) {
+			return;
+		}
+		
+		updateThread.interrupt();
+		try {
+			updateThread.join(WAIT_TIME_MS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		stopPersistence();
+		updateThread = null;
+	}
+	
+	/**
+	 * Opens the journal(unless it's turned off) and starts the persister. Snapshots the last run fetched but didn't
+	 * get to write are handed to the persister again, and to the listener if any, as they're more recent than what's
+	 * in the data store.
+	 */
+	private static void startPersistence(ICycleListener listener) {
+		journal = null;
+		String dir = System.getProperty(JOURNAL_DIR_PROPERTY, "");
+		if (!dir.isEmpty()) {
+			try {
+				journal = SnapshotJournal.open(Paths.get(dir));
+			} catch (IOException e) {
+				logger.error("Error opening the journal, running without one - " + e.getMessage());
+			}
+		}
+		
+		persister = new WriteBehindPersister(journal);
+		if (journal == null) {
+			return;
+		}
+		
+		List<List<MarketData>> replayed = new ArrayList<>();
+		for (SnapshotJournal.Entry e : journal.unacknowledged()) {
+			IExchangeDataIndexer indexer = null;
+			for (IExchangeDataIndexer it : KNOWN_INDEXERS) {
+				if (it.getExchangeCode().equals(e.getExchangeCode())) {
+					indexer = it;
+				}
+			}
+			if (indexer == null) {
+				logger.warn("No indexer for journaled exchange {}, skipping it", e.getExchangeCode());
+				continue;
+			}
+			persister.offer(indexer, e.getExchangeCode(), e.getIndex(), e.getItems(), e.getSeq());
+			replayed.add(e.getItems());
+		}
+		
+		if (listener != null && !replayed.isEmpty()) {
+			listener.onCycle(replayed);
+		}
+	}
+	
+	private static void stopPersistence() {
+		persister.stop(PERSIST_TIMEOUT_MS);
+		persister = null;
+		if (journal != null) {
+			try {
+				journal.close();
+			} catch (IOException e) {
+				logger.error("Error closing the journal - " + e.getMessage());
+			}
+			journal = null;
+		}
+	}
+	
+	/**
+	 * Appends an index's items to the journal, if there's one. Items that can't be journaled are still written to
+	 * the data store, they're just not safe from a crash.
+	 * 
+	 * @return Sequence number of the items in the journal, -1 if they aren't journaled.
+	 */
+	private static long appendToJournal(String exchangeCode, String index, List<MarketData> items) {
+		if (journal == null) {
+			return -1;
+		}
+		
+		try (Trace.Stage s = Trace.stage(STAGE_JOURNAL)) {
+			return journal.append(exchangeCode, index, items);
+		} catch (IOException e) {
+			logger.error("Error journaling index " + index + " - " + e.getMessage());
+			return -1;
+		}
+	}
+	
 	private static final long WAIT_TIME_MS = 60000;
+	
+	// How long to wait for pending data to be written when stopping.
+	private static final long PERSIST_TIMEOUT_MS = 30000;
+	
 	private static final long CLOSE_TIME_MS = 200000;
 	
 	private static void closer() {
@@ -66,21 +251,64 @@ public class Updater {
 		}
 	}
 	
-	private static void update() {
+	/**
+	 * Runs update cycles until interrupted.
+	 * 
+	 * @param listener Gets the data of every cycle, null if there's no one to hand it to.
+	 */
+	private static void update(ICycleListener listener) {
 		while (true) {
+			long start = System.nanoTime();
+			Trace cycle = Trace.begin(CYCLE_TRACE);
+			List<List<MarketData>> fetched = new ArrayList<>();
 			for (IExchangeDataIndexer indexer : KNOWN_INDEXERS) {
 				if (Thread.interrupted()) {
+					cycle.end();
 					logger.info("Update thread interrupted, exiting");
 					return;
 				}
 				
+				// The exchange doesn't change within a cycle, look it up once rather than for every index.
+				Exchange exchange;
+				try (Trace.Stage s = Trace.stage(STAGE_EXCHANGE_LOOKUP)) {
+					exchange = indexer.getExchange();
+				}
+				if (exchange == null) {
+					// Nothing to sync to, and an embedded updater must keep running for the other exchanges.
+					logger.error("Exchange of indexer {} not found in the data store",
+							indexer.getClass().getSimpleName());
+					continue;
+				}
+				String exchangeCode = exchange.getCode();
+				
 				List<String> indexes = indexer.getExchangeIndexes();
 				for (String index : indexes) {
-					List<MarketData> items = indexer.getMarketDataItems(index);
-					indexer.syncToDataStore(indexer.getExchange().getCode(), items);
+					Trace indexTrace = Trace.begin(INDEX_TRACE).set("exchange", exchangeCode).set("index", index);
+					try {
+						List<MarketData> items = indexer.getMarketDataItems(index);
+						fetched.add(items);
+						if (!items.isEmpty()) {
+							long seq = appendToJournal(exchangeCode, index, items);
+							persister.offer(indexer, exchangeCode, index, items, seq);
+						}
+					} finally {
+						indexTrace.end();
+					}
 				}
 			}
 			
+			if (listener != null) {
+				try (Trace.Stage s = Trace.stage(STAGE_PUBLISH)) {
+					listener.onCycle(fetched);
+				} catch (RuntimeException e) {
+					logger.error("Cycle listener failed - " + e.getMessage());
+				}
+			}
+			cycle.end();
+			cycleDuration.recordSince(start);
+			cycles.inc();
+			recordTrace(cycle);
+			
 			try {
 				Thread.sleep(WAIT_TIME_MS);
 			} catch (InterruptedException e) {
@@ -89,4 +317,39 @@ public class Updater {
 			}
 		}
 	}
+	
+	/**
+	 * Records the stages and counts of a cycle's trace into metrics, and logs the trace. A slow cycle's trace is
+	 * logged as a warning, with a slow_cycle event, so that where the time went is right there in the log.
+	 */
+	private static void recordTrace(Trace cycle) {
+		recordTraceMetrics(cycle);
+		for (Trace index : cycle.getChildren()) {
+			recordTraceMetrics(index);
+		}
+		
+		long slowCycleMs = Long.getLong(SLOW_CYCLE_PROPERTY, DEFAULT_SLOW_CYCLE_MS);
+		if (cycle.getDurationNanos() > TimeUnit.MILLISECONDS.toNanos(slowCycleMs)) {
+			cycle.event(SLOW_CYCLE_EVENT);
+			slowCycles.inc();
+			logger.warn("Slow update cycle {}", cycle);
+		} else {
+			logger.debug("Update cycle {}", cycle);
+		}
+	}
+	
+	/**
+	 * Records the stages and counts of a trace(not of its children) into metrics. Used for the traces of cycles and
+	 * of writes to the data store.
+	 */
+	static void recordTraceMetrics(Trace trace) {
+		MetricsRegistry registry = MetricsRegistry.getInstance();
+		for (Map.Entry<String, Long> e : trace.getStageNanos().entrySet()) {
+			registry.histogram(STAGE_DURATION_METRIC, STAGE_DURATION_HELP, "stage", e.getKey())
+					.recordNanos(e.getValue());
+		}
+		for (Map.Entry<String, Long> e : trace.getCounts().entrySet()) {
+			registry.counter(TRACE_COUNT_METRIC, TRACE_COUNT_HELP, "count", e.getKey()).add(e.getValue());
+		}
+	}
 }
@@ -0,0 +1,340 @@
+package club.vinnymaker.stockapp.updater;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import club.vinnymaker.data.MarketData;
+import club.vinnymaker.datastore.StockDataManager;
+import club.vinnymaker.metrics.Counter;
+import club.vinnymaker.metrics.Histogram;
+import club.vinnymaker.metrics.MetricsRegistry;
+import club.vinnymaker.metrics.Trace;
+
+/**
+ * WriteBehindPersister writes fetched index data to the data store in the background, so that the update thread
+ * never waits on the database. Indexers' data is handed over with offer(), which returns right away.
+ *
+ * Every index has at most one snapshot(its items as fetched in a cycle) waiting to be written, a newer snapshot
+ * replaces the one waiting since it has the latest data of every member. Whatever is waiting is written in one
+ * transaction per exchange. If a write fails, e.g., while the database is down, its snapshots are tried again with
+ * a growing delay, unless newer ones have come in by then, up to MAX_ATTEMPTS times. If the database refuses an
+ * exchange's data instead, e.g., it violates a constraint, its indexes are written one at a time so that only the
+ * index at fault is held back, and that index's snapshot is dropped since writing it again won't help. Snapshots
+ * from a {@link SnapshotJournal} are acknowledged to it once they're written or refused, snapshots given up on after
+ * MAX_ATTEMPTS are left in the journal to be tried again on the next start.
+ *
+ * @author evinay
+ *
+ */
+public class WriteBehindPersister {
+	
+	private static final Logger logger = LogManager.getLogger(WriteBehindPersister.class);
+	
+	private static final String THREAD_NAME = "persister";
+	
+	// Far more indexes than are updated, snapshots are only dropped if something's badly wrong.
+	private static final int MAX_PENDING = 256;
+	
+	private static final long MIN_RETRY_DELAY_MS = 1000;
+	private static final long MAX_RETRY_DELAY_MS = 30000;
+	// About 8 minutes of retries with the delays above.
+	private static final int MAX_ATTEMPTS = 20;
+	
+	private static final String PERSIST_TRACE = "persist";
+	private static final String SNAPSHOTS_METRIC = "stockapp_persister_snapshots_total";
+	private static final String SNAPSHOTS_HELP = "Index snapshots handed to the persister, by what became of them";
+	private static final String BATCHES_METRIC = "stockapp_persister_batches_total";
+	private static final String BATCHES_HELP = "Batches of snapshots written to the data store";
+	
+	private final Counter accepted = MetricsRegistry.getInstance().counter(SNAPSHOTS_METRIC, SNAPSHOTS_HELP,
+			"result", "accepted");
+	private final Counter coalesced = MetricsRegistry.getInstance().counter(SNAPSHOTS_METRIC, SNAPSHOTS_HELP,
+			"result", "coalesced");
+	private final Counter dropped = MetricsRegistry.getInstance().counter(SNAPSHOTS_METRIC, SNAPSHOTS_HELP,
+			"result", "dropped");
+	private final Counter written = MetricsRegistry.getInstance().counter(SNAPSHOTS_METRIC, SNAPSHOTS_HELP,
+			"result", "written");
+	private final Counter rejected = MetricsRegistry.getInstance().counter(SNAPSHOTS_METRIC, SNAPSHOTS_HELP,
+			"result", "rejected");
+	private final Counter abandoned = MetricsRegistry.getInstance().counter(SNAPSHOTS_METRIC, SNAPSHOTS_HELP,
+			"result", "abandoned");
+	private final Counter batchesWritten = MetricsRegistry.getInstance().counter(BATCHES_METRIC, BATCHES_HELP,
+			"result", "ok");
+	private final Counter batchesFailed = MetricsRegistry.getInstance().counter(BATCHES_METRIC, BATCHES_HELP,
+			"result", "failed");
+	private final Histogram batchDuration = MetricsRegistry.getInstance().histogram(
+			"stockapp_persister_batch_duration_seconds", "Time taken to write a batch of snapshots");
+	
+	// An index's items from one cycle, waiting to be written.
+	private static class Snapshot {
+		private final String key;
+		private final IExchangeDataIndexer indexer;
+		private final String exchangeCode;
+		private final String index;
+		private final List<MarketData> items;
+		private final long seq;
+		private final long acceptedAtNanos;
+		// Failed attempts to write this snapshot, newer snapshots of the index start over. Only used by the thread.
+		private int failures = 0;
+		
+		Snapshot(IExchangeDataIndexer indexer, String exchangeCode, String index, List<MarketData> items, long seq,
+				long acceptedAtNanos) {
+			this.key = key(exchangeCode, index);
+			this.indexer = indexer;
+			this.exchangeCode = exchangeCode;
+			this.index = index;
+			this.items = items;
+			this.seq = seq;
+			this.acceptedAtNanos = acceptedAtNanos;
+		}
+	}
+	
+	// Snapshots waiting to be written by exchange and index, oldest first. Guarded by this.
+	private final LinkedHashMap<String, Snapshot> pending = new LinkedHashMap<>();
+	private boolean isStopping = false;
+	private final Thread thread;
+	private final SnapshotJournal journal;
+	
+	/**
+	 * @param journal Journal to acknowledge written snapshots to, null if snapshots aren't journaled.
+	 */
+	public WriteBehindPersister(SnapshotJournal journal) {
+		this.journal = journal;
+		thread = new Thread(this::run, THREAD_NAME);
+		thread.setDaemon(true);
+		thread.start();
+		
+		MetricsRegistry registry = MetricsRegistry.getInstance();
+		registry.gauge("stockapp_persister_pending", "Index snapshots waiting to be written", this::numPending);
+		registry.gauge("stockapp_persister_lag_seconds", "Age of the oldest snapshot waiting to be written",
+				this::lagSeconds);
+	}
+	
+	private static String key(String exchangeCode, String index) {
+		return exchangeCode + "/" + index;
+	}
+	
+	private synchronized double numPending() {
+		return pending.size();
+	}
+	
+	private synchronized double lagSeconds() {
+		long oldest = Long.MAX_VALUE;
+		for (Snapshot s : pending.values()) {
+			oldest = Math.min(oldest, s.acceptedAtNanos);
+		}
+		return oldest == Long.MAX_VALUE ? 0 : (System.nanoTime() - oldest) / (double) TimeUnit.SECONDS.toNanos(1);
+	}
+	
+	/**
+	 * Hands an index's items over to be written, replacing any of its items still waiting. Never blocks.
+	 *
+	 * @param indexer Indexer that fetched the items, and writes them to the data store.
+	 * @param exchangeCode Code of the index's exchange.
+	 * @param index Name of the index.
+	 * @param items Items fetched for the index, the index itself included. They must not be modified after.
+	 * @param seq Sequence number of the items in the journal, -1 if they aren't journaled.
+	 *
+	 * @return True if the items will be written, false if too many indexes are waiting already.
+	 */
+	public synchronized boolean offer(IExchangeDataIndexer indexer, String exchangeCode, String index,
+			List<MarketData> items, long seq) {
+		String key = key(exchangeCode, index);
+		Snapshot snapshot = new Snapshot(indexer, exchangeCode, index, items, seq, System.nanoTime());
+		Snapshot old = pending.get(key);
+		if (old == null && pending.size() >= MAX_PENDING) {
+			dropped.inc();
+			logger.warn("Too many snapshots waiting to be written, dropped {}", key);
+			return false;
+		}
+		
+		accepted.inc();
+		if (old != null) {
+			// Keeps its place in the queue, but with the latest data. It's been waiting since the old one came in.
+			coalesced.inc();
+			snapshot = new Snapshot(indexer, exchangeCode, index, items, seq, old.acceptedAtNanos);
+		}
+		pending.put(key, snapshot);
+		notifyAll();
+		return true;
+	}
+	
+	/**
+	 * Stops the persister after it's written everything waiting, or the timeout runs out.
+	 *
+	 * @return True if everything was written.
+	 */
+	public boolean stop(long timeoutMs) {
+		synchronized (this) {
+			isStopping = true;
+			notifyAll();
+		}
+		
+		try {
+			thread.join(timeoutMs);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		thread.interrupt();
+		
+		synchronized (this) {
+			if (!pending.isEmpty()) {
+				logger.warn("Persister stopped with {} snapshots not written", pending.size());
+				return false;
+			}
+			return true;
+		}
+	}
+	
+	private void run() {
+		long retryDelayMs = MIN_RETRY_DELAY_MS;
+		try {
+			while (true) {
+				List<Snapshot> batch;
+				synchronized (this) {
+					while (pending.isEmpty() && !isStopping) {
+						wait();
+					}
+					if (pending.isEmpty()) {
+						return;
+					}
+					batch = new ArrayList<>(pending.values());
+					pending.clear();
+				}
+				
+				List<Snapshot> failed = write(batch);
+				if (failed.isEmpty()) {
+					retryDelayMs = MIN_RETRY_DELAY_MS;
+					continue;
+				}
+				
+				synchronized (this) {
+					// Newer snapshots that came in while writing win over the failed ones.
+					LinkedHashMap<String, Snapshot> retries = new LinkedHashMap<>();
+					for (Snapshot s : failed) {
+						retries.put(s.key, s);
+					}
+					for (Snapshot s : pending.values()) {
+						if (retries.put(s.key, s) != null) {
+							coalesced.inc();
+						}
+					}
+					pending.clear();
+					pending.putAll(retries);
+					
+					// Stopping only waits for the database while there's time left, see stop().
+					wait(retryDelayMs);
+				}
+				retryDelayMs = Math.min(2 * retryDelayMs, MAX_RETRY_DELAY_MS);
+			}
+		} catch (InterruptedException e) {
+			logger.info("Persister interrupted, exiting");
+		}
+	}
+	
+	/**
+	 * Writes a batch of snapshots, one transaction per exchange. If an exchange's data is refused, its indexes are
+	 * written one at a time.
+	 *
+	 * @return Snapshots that couldn't be written and are to be tried again.
+	 */
+	private List<Snapshot> write(List<Snapshot> batch) {
+		Map<String, List<Snapshot>> byExchange = new LinkedHashMap<>();
+		for (Snapshot s : batch) {
+			byExchange.computeIfAbsent(s.exchangeCode, (k) -> new ArrayList<>()).add(s);
+		}
+		
+		List<Snapshot> failed = new ArrayList<>();
+		for (List<Snapshot> snapshots : byExchange.values()) {
+			int result = sync(snapshots);
+			if (result == StockDataManager.UPDATE_REJECTED && snapshots.size() > 1) {
+				for (Snapshot s : snapshots) {
+					List<Snapshot> single = Collections.singletonList(s);
+					onWritten(single, sync(single), failed);
+				}
+			} else {
+				onWritten(snapshots, result, failed);
+			}
+		}
+		return failed;
+	}
+	
+	/**
+	 * Writes snapshots of an exchange in one transaction.
+	 * 
+	 * @return Result of IExchangeDataIndexer.syncToDataStore().
+	 */
+	private int sync(List<Snapshot> snapshots) {
+		List<List<MarketData>> indexes = new ArrayList<>();
+		for (Snapshot s : snapshots) {
+			indexes.add(s.items);
+		}
+		
+		long start = System.nanoTime();
+		Trace trace = Trace.begin(PERSIST_TRACE);
+		int result;
+		try {
+			Snapshot first = snapshots.get(0);
+			result = first.indexer.syncToDataStore(first.exchangeCode, indexes);
+		} catch (RuntimeException e) {
+			logger.error("Error writing snapshots - " + e.getMessage());
+			result = StockDataManager.UPDATE_FAILED;
+		} finally {
+			trace.end();
+			batchDuration.recordSince(start);
+		}
+		
+		if (result >= 0) {
+			batchesWritten.inc();
+			Updater.recordTraceMetrics(trace);
+		} else {
+			batchesFailed.inc();
+		}
+		return result;
+	}
+	
+	// Acknowledges or drops snapshots as per the result of writing them, adds the ones to try again to retries.
+	private void onWritten(List<Snapshot> snapshots, int result, List<Snapshot> retries) {
+		if (result >= 0) {
+			written.add(snapshots.size());
+			acknowledge(snapshots);
+			return;
+		}
+		
+		if (result == StockDataManager.UPDATE_REJECTED) {
+			for (Snapshot s : snapshots) {
+				logger.error("Data store refused the snapshot of {}, dropped it", s.key);
+			}
+			rejected.add(snapshots.size());
+			acknowledge(snapshots);
+			return;
+		}
+		
+		for (Snapshot s : snapshots) {
+			if (++s.failures < MAX_ATTEMPTS) {
+				retries.add(s);
+				continue;
+			}
+			logger.error("Couldn't write the snapshot of {} after {} attempts, dropped it", s.key, s.failures);
+			abandoned.inc();
+		}
+	}
+	
+	private void acknowledge(List<Snapshot> snapshots) {
+		if (journal == null) {
+			return;
+		}
+		for (Snapshot s : snapshots) {
+			if (s.seq >= 0) {
+				journal.acknowledge(s.exchangeCode, s.index, s.seq);
+			}
+		}
+	}
+}
@@ -0,0 +1,156 @@
+package club.vinnymaker.stockapp.updater;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import club.vinnymaker.data.MarketData;
+import club.vinnymaker.data.MarketDataType;
+import junit.framework.TestCase;
+
+/**
+ * Replay of the updater's journal, in particular of journals a crash left behind.
+ *
+ * @author evinay
+ *
+ */
+public class SnapshotJournalTest extends TestCase {
+	
+	private static final String FILE_NAME = "updater.journal";
+	private static final String EXCHANGE = "NSE";
+	
+	private Path dir;
+	
+	@Override
+	protected void setUp() throws IOException {
+		dir = Files.createTempDirectory("journal-test");
+	}
+	
+	@Override
+	protected void tearDown() throws IOException {
+		for (Path p : Files.newDirectoryStream(dir)) {
+			Files.delete(p);
+		}
+		Files.delete(dir);
+	}
+	
+	private static List<MarketData> items(String index, String... symbols) {
+		List<MarketData> items = new ArrayList<>();
+		items.add(item(index, MarketDataType.INDEX));
+		for (String symbol : symbols) {
+			items.add(item(symbol, MarketDataType.STOCK));
+		}
+		return items;
+	}
+	
+	private static MarketData item(String symbol, MarketDataType type) {
+		MarketData item = new MarketData(symbol);
+		item.setType(type);
+		item.setExchangeId(1);
+		item.setLastTradedPrice(101.5);
+		item.setLastUpdatedAt(new Date(1500000000000L));
+		return item;
+	}
+	
+	// Appends a snapshot of each of the two indexes, and returns the size of the journal after the first.
+	private long writeTwoSnapshots() throws IOException {
+		try (SnapshotJournal journal = SnapshotJournal.open(dir)) {
+			journal.append(EXCHANGE, "NIFTY", items("NIFTY", "INFY", "TCS"));
+			long size = Files.size(dir.resolve(FILE_NAME));
+			journal.append(EXCHANGE, "BANKNIFTY", items("BANKNIFTY", "HDFC"));
+			return size;
+		}
+	}
+	
+	private List<SnapshotJournal.Entry> replay() throws IOException {
+		try (SnapshotJournal journal = SnapshotJournal.open(dir)) {
+			return journal.unacknowledged();
+		}
+	}
+	
+	public void testReplaysUnacknowledged() throws IOException {
+		try (SnapshotJournal journal = SnapshotJournal.open(dir)) {
+			long seq = journal.append(EXCHANGE, "NIFTY", items("NIFTY", "INFY", "TCS"));
+			journal.append(EXCHANGE, "BANKNIFTY", items("BANKNIFTY", "HDFC"));
+			journal.acknowledge(EXCHANGE, "NIFTY", seq);
+		}
+		
+		List<SnapshotJournal.Entry> entries = replay();
+		assertEquals(1, entries.size());
+		SnapshotJournal.Entry entry = entries.get(0);
+		assertEquals("BANKNIFTY", entry.getIndex());
+		assertEquals(2, entry.getItems().size());
+		MarketData item = entry.getItems().get(1);
+		assertEquals("HDFC", item.getSymbol());
+		assertEquals(MarketDataType.STOCK, item.getType());
+		assertEquals(101.5, item.getLastTradedPrice(), 0);
+		assertEquals(1500000000000L, item.getLastUpdatedAt().getTime());
+	}
+	
+	public void testTornLastRecordIsDropped() throws IOException {
+		writeTwoSnapshots();
+		Path path = dir.resolve(FILE_NAME);
+		try (RandomAccessFile f = new RandomAccessFile(path.toFile(), "rw")) {
+			// A crash halfway through writing the last record.
+			f.setLength(f.length() - 10);
+		}
+		
+		List<SnapshotJournal.Entry> entries = replay();
+		assertEquals(1, entries.size());
+		assertEquals("NIFTY", entries.get(0).getIndex());
+		assertEquals(3, entries.get(0).getItems().size());
+	}
+	
+	public void testCorruptRecordEndsTheJournal() throws IOException {
+		long firstSize = writeTwoSnapshots();
+		Path path = dir.resolve(FILE_NAME);
+		try (RandomAccessFile f = new RandomAccessFile(path.toFile(), "rw")) {
+			// Flip a byte in the second record's payload, past its length and CRC.
+			long at = firstSize + 12;
+			f.seek(at);
+			int b = f.read();
+			f.seek(at);
+			f.write(b ^ 0xff);
+		}
+		
+		List<SnapshotJournal.Entry> entries = replay();
+		assertEquals(1, entries.size());
+		assertEquals("NIFTY", entries.get(0).getIndex());
+	}
+	
+	public void testAppendsAfterDroppedTail() throws IOException {
+		writeTwoSnapshots();
+		Path path = dir.resolve(FILE_NAME);
+		try (RandomAccessFile f = new RandomAccessFile(path.toFile(), "rw")) {
+			f.setLength(f.length() - 1);
+		}
+		
+		// The journal is rewritten on open, so the torn record doesn't hide what's appended after it.
+		try (SnapshotJournal journal = SnapshotJournal.open(dir)) {
+			journal.append(EXCHANGE, "NIFTYIT", items("NIFTYIT", "WIPRO"));
+		}
+		List<SnapshotJournal.Entry> entries = replay();
+		assertEquals(2, entries.size());
+		assertEquals("NIFTY", entries.get(0).getIndex());
+		assertEquals("NIFTYIT", entries.get(1).getIndex());
+	}
+	
+	public void testOpenedByOneUpdaterAtATime() throws IOException {
+		try (SnapshotJournal journal = SnapshotJournal.open(dir)) {
+			journal.append(EXCHANGE, "NIFTY", items("NIFTY", "INFY"));
+			try {
+				SnapshotJournal.open(dir).close();
+				fail("Journal opened twice");
+			} catch (IOException e) {
+				// Expected, the first one still has it.
+			}
+		}
+		
+		// And is free again once closed.
+		assertEquals(1, replay().size());
+	}
+}
@@ -0,0 +1,45 @@
+package club.vinnymaker.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.mindrot.jbcrypt.BCrypt;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Password verification, as UserManager does it for every authenticated request once the user has been loaded: a
+ * bcrypt check against a hash made with the default cost, which is what UserManager hashes passwords with.
+ *
+ * @author evinay
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AuthBenchmark {
+	
+	private static final String PASSWORD = "correct horse battery staple";
+	
+	private String hash;
+	
+	@Setup
+	public void setup() {
+		hash = BCrypt.hashpw(PASSWORD, BCrypt.gensalt());
+	}
+	
+	@Benchmark
+	public boolean verifyPassword() {
+		return BCrypt.checkpw(PASSWORD, hash);
+	}
+}
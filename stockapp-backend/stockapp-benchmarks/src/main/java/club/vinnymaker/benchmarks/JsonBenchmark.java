@@ -0,0 +1,85 @@
+package club.vinnymaker.benchmarks;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import club.vinnymaker.appfrontend.json.MarketDataJsonWriter;
+import club.vinnymaker.data.MarketData;
+import club.vinnymaker.data.MarketDataLite;
+
+/**
+ * Serialization of response bodies: MarketData items with {@link MarketDataJsonWriter}, as the stock controller
+ * does, and with JSONObject's reflection for comparison, and search results(MarketDataLite) with JSONObject, as
+ * the search route does.
+ *
+ * @author evinay
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JsonBenchmark {
+	
+	private static final String ITEMS_KEY = "items";
+	private static final String RESULTS_KEY = "results";
+	
+	// Typical number of matches of a search.
+	private static final int NUM_RESULTS = 10;
+	
+	private MarketData item;
+	private List<MarketData> items;
+	private List<MarketDataLite> results;
+	
+	@Setup
+	public void setup() throws IOException {
+		items = Resources.niftyItems();
+		item = items.get(1);
+		results = new ArrayList<>();
+		for (int i = 0; i < NUM_RESULTS; i++) {
+			results.add(items.get(i + 1).liteWeightVersion());
+		}
+	}
+	
+	@Benchmark
+	public byte[] writeItem() {
+		return MarketDataJsonWriter.write(item);
+	}
+	
+	@Benchmark
+	public byte[] jsonObjectItem() {
+		return new JSONObject(item).toString().getBytes(StandardCharsets.UTF_8);
+	}
+	
+	@Benchmark
+	public byte[] writeIndexPage() {
+		return MarketDataJsonWriter.write(ITEMS_KEY, items);
+	}
+	
+	@Benchmark
+	public byte[] jsonObjectIndexPage() {
+		return new JSONObject().put(ITEMS_KEY, items).toString().getBytes(StandardCharsets.UTF_8);
+	}
+	
+	@Benchmark
+	public byte[] jsonObjectSearchResults() {
+		return new JSONObject().put(RESULTS_KEY, results).toString().getBytes(StandardCharsets.UTF_8);
+	}
+}
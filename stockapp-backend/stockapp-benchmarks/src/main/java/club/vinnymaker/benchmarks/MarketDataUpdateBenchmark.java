@@ -0,0 +1,58 @@
+package club.vinnymaker.benchmarks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import club.vinnymaker.data.MarketData;
+
+/**
+ * Copying fresh data into stored items with {@link MarketData#update(MarketData)}, for a whole index page at a time
+ * as the updater syncs it to the datastore.
+ *
+ * @author evinay
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MarketDataUpdateBenchmark {
+	
+	private List<MarketData> fresh;
+	private List<MarketData> stored;
+	
+	@Setup
+	public void setup() throws IOException {
+		fresh = Resources.niftyItems();
+		stored = new ArrayList<>();
+		for (MarketData item : fresh) {
+			MarketData old = new MarketData(item.getSymbol());
+			old.setType(item.getType());
+			old.setExchangeId(item.getExchangeId());
+			stored.add(old);
+		}
+	}
+	
+	@Benchmark
+	public List<MarketData> updatePage() {
+		for (int i = 0; i < fresh.size(); i++) {
+			fresh.get(i).update(stored.get(i));
+		}
+		return stored;
+	}
+}
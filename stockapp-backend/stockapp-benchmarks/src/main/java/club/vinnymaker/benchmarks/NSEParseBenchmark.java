@@ -0,0 +1,52 @@
+package club.vinnymaker.benchmarks;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import club.vinnymaker.data.MarketData;
+import club.vinnymaker.stockapp.updater.NSEDataIndexer;
+
+/**
+ * Parsing of an NSE live watch page, the NIFTY 50 page with its 50 stocks, into MarketData items. This is what the
+ * updater does for every index page on every cycle, after the page has been fetched.
+ *
+ * @author evinay
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class NSEParseBenchmark {
+	
+	private static final int EXCHANGE_ID = 1;
+	
+	private String page;
+	private Date now;
+	
+	@Setup
+	public void setup() throws IOException {
+		page = Resources.read(Resources.NIFTY_PAGE);
+		now = new Date();
+	}
+	
+	@Benchmark
+	public List<MarketData> parseIndexPage() {
+		return NSEDataIndexer.getInstance().parseIndexPage(page, now, EXCHANGE_ID);
+	}
+}
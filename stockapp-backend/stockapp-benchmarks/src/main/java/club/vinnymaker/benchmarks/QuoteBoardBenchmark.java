@@ -0,0 +1,82 @@
+package club.vinnymaker.benchmarks;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import club.vinnymaker.data.MarketData;
+import club.vinnymaker.datastore.QuoteBoard;
+import club.vinnymaker.datastore.QuoteBoard.Quote;
+
+/**
+ * Reading quotes off the {@link QuoteBoard}, alone and while a writer keeps updating a page of items. Reads should
+ * allocate nothing.
+ *
+ * @author evinay
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class QuoteBoardBenchmark {
+	
+	private List<MarketData> items;
+	private int[] ids;
+	
+	@State(Scope.Thread)
+	public static class Reader {
+		private final Quote quote = new Quote();
+		private int next = 0;
+	}
+	
+	@Setup
+	public void setup() throws IOException {
+		items = Resources.niftyItems();
+		QuoteBoard.getInstance().update(items);
+		ids = new int[items.size()];
+		for (int i = 0; i < ids.length; i++) {
+			MarketData item = items.get(i);
+			ids[i] = QuoteBoard.getInstance().idOf(item.getExchangeId(), item.getSymbol());
+		}
+	}
+	
+	private double read(Reader reader) {
+		int id = ids[reader.next];
+		reader.next = (reader.next + 1) % ids.length;
+		QuoteBoard.getInstance().read(id, reader.quote);
+		return reader.quote.getLastTradedPrice();
+	}
+	
+	@Benchmark
+	public double readQuote(Reader reader) {
+		return read(reader);
+	}
+	
+	@Benchmark
+	@Group("readWhileWriting")
+	public double reader(Reader reader) {
+		return read(reader);
+	}
+	
+	@Benchmark
+	@Group("readWhileWriting")
+	public long writer() {
+		QuoteBoard.getInstance().update(items);
+		return QuoteBoard.getInstance().getVersion();
+	}
+}
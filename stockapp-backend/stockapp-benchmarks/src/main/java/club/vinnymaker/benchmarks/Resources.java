@@ -0,0 +1,48 @@
+package club.vinnymaker.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.List;
+
+import club.vinnymaker.data.MarketData;
+import club.vinnymaker.stockapp.updater.NSEDataIndexer;
+
+/**
+ * Sample data shared by the benchmarks.
+ *
+ * @author evinay
+ *
+ */
+class Resources {
+	
+	// A NIFTY 50 live watch page as published by NSE, with made up prices.
+	static final String NIFTY_PAGE = "/niftyStockWatch.json";
+	
+	private Resources() {
+	}
+	
+	static String read(String name) throws IOException {
+		try (InputStream in = Resources.class.getResourceAsStream(name)) {
+			if (in == null) {
+				throw new IOException("Missing resource " + name);
+			}
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buf = new byte[8192];
+			int n;
+			while ((n = in.read(buf)) > 0) {
+				out.write(buf, 0, n);
+			}
+			return new String(out.toByteArray(), StandardCharsets.UTF_8);
+		}
+	}
+	
+	/**
+	 * @return Items of the sample NIFTY 50 page, the index first and then its stocks.
+	 */
+	static List<MarketData> niftyItems() throws IOException {
+		return NSEDataIndexer.getInstance().parseIndexPage(read(NIFTY_PAGE), new Date(), 1);
+	}
+}
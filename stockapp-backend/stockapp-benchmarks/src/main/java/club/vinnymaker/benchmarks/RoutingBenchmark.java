@@ -0,0 +1,111 @@
+package club.vinnymaker.benchmarks;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.bigtesting.routd.NamedParameterElement;
+import org.bigtesting.routd.Route;
+import org.bigtesting.routd.TreeRouter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import club.vinnymaker.appfrontend.RouteTable;
+
+/**
+ * Routing of request paths to their routes and named parameters, with the {@link RouteTable} RoutingServlet uses
+ * and, for comparison, with routd's TreeRouter which it used before. Each invocation routes one path, cycling over
+ * a mix of the app's requests.
+ *
+ * @author evinay
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class RoutingBenchmark {
+	
+	private static final String GET = "GET";
+	
+	// Same routes as RoutingServlet's.
+	private static final String[][] ROUTES = new String[][] {
+		{"GET", "/users/:username"},
+		{"POST", "/users"},
+		{"GET", "/users/:username/watchlist"},
+		{"POST", "/users/:username/watchlist"},
+		{"GET", "/users/:username/watchlist/quotes"},
+		{"GET", "/stocks/:exchange"},
+		{"POST", "/stocks/:exchange"},
+		{"GET", "/stocks/:exchange/:symbol"},
+		{"GET", "/stocks/:exchange/:symbol/members"},
+		{"GET", "/stocks/search/:substr"},
+		{"GET", "/stream/:exchange"},
+		{"GET", "/exchanges/:exids"},
+		{"GET", "/exchanges/:exid/indexes"},
+	};
+	
+	// Leaves out /exchanges/:exid/indexes, routd never finds it behind /exchanges/:exids.
+	private static final String[] PATHS = new String[] {
+		"/stocks/1/RELIANCE",
+		"/stocks/1",
+		"/stocks/1/NIFTY 50/members",
+		"/stocks/search/INF",
+		"/users/vinay/watchlist/quotes",
+		"/users/vinay",
+		"/exchanges/1,2",
+	};
+	
+	private final RouteTable<String> table = new RouteTable<>();
+	private final TreeRouter router = new TreeRouter();
+	private int next = 0;
+	
+	@Setup
+	public void setup() {
+		Map<String, Route> added = new HashMap<>();
+		for (String[] route : ROUTES) {
+			table.add(route[0], route[1], route[1]);
+			// routd knows nothing of methods, each path is added once.
+			added.computeIfAbsent(route[1], (path) -> {
+				Route r = new Route(path);
+				router.add(r);
+				return r;
+			});
+		}
+	}
+	
+	private String nextPath() {
+		String path = PATHS[next];
+		next = (next + 1) % PATHS.length;
+		return path;
+	}
+	
+	@Benchmark
+	public Map<String, String> routeTable() {
+		return table.match(GET, nextPath()).getParams();
+	}
+	
+	/**
+	 * Routes the way RoutingServlet did with routd, looking the route up and then extracting each named parameter.
+	 */
+	@Benchmark
+	public Map<String, String> routdTreeRouter() {
+		String path = nextPath();
+		Route route = router.route(path);
+		Map<String, String> params = new HashMap<>();
+		for (NamedParameterElement elem : route.getNamedParameterElements()) {
+			params.put(elem.name(), route.getNamedParameter(elem.name(), path));
+		}
+		return params;
+	}
+}
@@ -0,0 +1,76 @@
+package club.vinnymaker.benchmarks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import club.vinnymaker.data.MarketData;
+import club.vinnymaker.data.MarketDataLite;
+import club.vinnymaker.data.MarketDataType;
+
+/**
+ * Matching search keys against symbols. Searches run in the database(a LIKE '%key%' on stocks.symbol), this is the
+ * same match done in memory over an exchange's worth of symbols, the cost anything serving searches without the
+ * database has to beat. The query itself is measured by the load harness.
+ *
+ * @author evinay
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class SearchBenchmark {
+	
+	// Roughly the number of symbols listed on NSE.
+	private static final int NUM_SYMBOLS = 1600;
+	private static final String[] KEYS = new String[] {"inf", "BANK", "tata", "Nifty", "zz"};
+	
+	private final List<MarketDataLite> symbols = new ArrayList<>();
+	private int next = 0;
+	
+	@Setup
+	public void setup() throws IOException {
+		for (MarketData item : Resources.niftyItems()) {
+			symbols.add(item.liteWeightVersion());
+		}
+		
+		Random random = new Random(NUM_SYMBOLS);
+		while (symbols.size() < NUM_SYMBOLS) {
+			char[] symbol = new char[4 + random.nextInt(7)];
+			for (int i = 0; i < symbol.length; i++) {
+				symbol[i] = (char) ('A' + random.nextInt(26));
+			}
+			symbols.add(new MarketDataLite(1, new String(symbol), MarketDataType.STOCK));
+		}
+	}
+	
+	@Benchmark
+	public List<MarketDataLite> scanMatches() {
+		String key = KEYS[next].toUpperCase();
+		next = (next + 1) % KEYS.length;
+		
+		List<MarketDataLite> matches = new ArrayList<>();
+		for (MarketDataLite item : symbols) {
+			if (item.getFullName().contains(key)) {
+				matches.add(item);
+			}
+		}
+		return matches;
+	}
+}
@@ -0,0 +1,103 @@
+package club.vinnymaker.benchmarks.load;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import lombok.Getter;
+
+/**
+ * Settings of a load run, given on the command line as key=value arguments. Anything not given takes its default.
+ *
+ * <pre>
+ *   exchanges=2        Exchanges to seed.
+ *   indexes=5          Indexes per exchange.
+ *   symbols=500        Stocks per exchange.
+ *   members=50         Stocks per index.
+ *   users=200          Users to seed, requests are spread over them at random.
+ *   watchlist=20       Items in each user's watchlist.
+ *   passwordCost=10    BCrypt cost of the users' password hashes, UserManager hashes with 10.
+ *   concurrency=1,2,4,8,16,32  Concurrent clients of each step, a step is run for each.
+ *   warmup=5           Seconds of load before each step is measured.
+ *   duration=20        Seconds each step is measured for.
+ *   mix=quote:40,...   Relative weights of the requests in the mix, see RequestMix.
+ *   port=0             Port to serve on, any free port if 0.
+ * </pre>
+ *
+ * @author evinay
+ *
+ */
+@Getter
+public class LoadConfig {
+	
+	private static final String DEFAULT_MIX = "quote:40,quotes:20,members:10,search:10,indexes:5,exchanges:5,"
+			+ "watchlist:10";
+	
+	private final int exchanges;
+	private final int indexes;
+	private final int symbols;
+	private final int members;
+	private final int users;
+	private final int watchlist;
+	private final int passwordCost;
+	private final List<Integer> concurrency;
+	private final int warmupSeconds;
+	private final int durationSeconds;
+	private final Map<String, Integer> mix;
+	private final int port;
+	
+	private LoadConfig(Map<String, String> args) {
+		exchanges = intArg(args, "exchanges", 2);
+		indexes = intArg(args, "indexes", 5);
+		symbols = intArg(args, "symbols", 500);
+		members = Math.min(symbols, intArg(args, "members", 50));
+		users = intArg(args, "users", 200);
+		watchlist = Math.min(symbols, intArg(args, "watchlist", 20));
+		passwordCost = intArg(args, "passwordCost", 10);
+		warmupSeconds = intArg(args, "warmup", 5);
+		durationSeconds = intArg(args, "duration", 20);
+		port = intArg(args, "port", 0);
+		
+		concurrency = new ArrayList<>();
+		for (String level : args.getOrDefault("concurrency", "1,2,4,8,16,32").split(",")) {
+			concurrency.add(Integer.parseInt(level.trim()));
+		}
+		
+		mix = new LinkedHashMap<>();
+		for (String entry : args.getOrDefault("mix", DEFAULT_MIX).split(",")) {
+			String[] parts = entry.split(":");
+			if (parts.length != 2) {
+				throw new IllegalArgumentException("Bad mix entry " + entry + ", expected name:weight");
+			}
+			mix.put(parts[0].trim(), Integer.parseInt(parts[1].trim()));
+		}
+	}
+	
+	private static int intArg(Map<String, String> args, String key, int defaultValue) {
+		String value = args.get(key);
+		return value == null ? defaultValue : Integer.parseInt(value.trim());
+	}
+	
+	/**
+	 * @throws IllegalArgumentException if an argument isn't of the form key=value or its value isn't valid.
+	 */
+	public static LoadConfig parse(String[] argv) {
+		Map<String, String> args = new HashMap<>();
+		for (String arg : argv) {
+			int eq = arg.indexOf('=');
+			if (eq <= 0) {
+				throw new IllegalArgumentException("Bad argument " + arg + ", expected key=value");
+			}
+			args.put(arg.substring(0, eq), arg.substring(eq + 1));
+		}
+		return new LoadConfig(args);
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("%d exchanges, %d indexes and %d stocks each, %d members per index, %d users with %d "
+				+ "watched items, mix %s", exchanges, indexes, symbols, members, users, watchlist, mix);
+	}
+}
@@ -0,0 +1,217 @@
+package club.vinnymaker.benchmarks.load;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.Wrapper;
+import org.apache.catalina.startup.Tomcat;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+
+import club.vinnymaker.appfrontend.RoutingServlet;
+import club.vinnymaker.appfrontend.WarmStartFile;
+import club.vinnymaker.datastore.DataStoreManager;
+import club.vinnymaker.datastore.SchemaMigrator;
+import club.vinnymaker.metrics.Histogram;
+import club.vinnymaker.metrics.MetricsRegistry;
+
+/**
+ * An end to end load test of the frontend on a single box. RoutingServlet is served by an embedded tomcat, over an
+ * in-memory H2 database in PostgreSQL mode seeded with generated exchanges, indexes, stocks and users. Then a mix of
+ * requests is sent by an increasing number of concurrent clients, each sending its next request as soon as the
+ * previous one completes. For every step, throughput and latency percentiles are reported per route, the step
+ * where throughput stops growing and latency starts to is the knee of the route.
+ *
+ * Run it with, e.g.,
+ *   java -cp stockapp-benchmarks/target/benchmarks.jar club.vinnymaker.benchmarks.load.LoadHarness concurrency=1,4,16
+ * see LoadConfig for all the settings.
+ *
+ * The database is H2, not Postgres, so database bound routes(search especially) are only indicative. Limits the
+ * frontend enforces still apply: rate limited or shed requests are reported separately from errors. All clients
+ * share the loopback address, so the per address limits cap the whole run, spreading the load over more users only
+ * raises the per user limits.
+ *
+ * @author evinay
+ *
+ */
+public class LoadHarness {
+	
+	private static final String DB_CONFIG = "hibernate-loadtest.cfg.xml";
+	private static final String DURATION_METRIC = "stockapp_load_request_duration_seconds";
+	private static final String DURATION_HELP = "Latency of requests sent by the load harness, as seen by the client";
+	
+	private static final int SC_TOO_MANY_REQUESTS = 429;
+	private static final int SC_SERVICE_UNAVAILABLE = 503;
+	
+	/**
+	 * Results of a route in a single step.
+	 */
+	private static class RouteStats {
+		private final Histogram latency;
+		private final LongAdder errors = new LongAdder();
+		private final LongAdder limited = new LongAdder();
+		
+		RouteStats(Histogram latency) {
+			this.latency = latency;
+		}
+		
+		void record(long startNs, int status) {
+			latency.recordSince(startNs);
+			if (status == SC_TOO_MANY_REQUESTS || status == SC_SERVICE_UNAVAILABLE) {
+				limited.increment();
+			} else if (status >= 400 || status < 0) {
+				errors.increment();
+			}
+		}
+	}
+	
+	private final LoadConfig config;
+	
+	private LoadHarness(LoadConfig config) {
+		this.config = config;
+	}
+	
+	/**
+	 * Points the datastore at the in-memory database, it must be done before the datastore is first used.
+	 */
+	private static void useInMemoryDatabase() {
+		System.setProperty(DataStoreManager.CONFIG_PROPERTY, DB_CONFIG);
+		System.setProperty(SchemaMigrator.MIGRATE_PROPERTY, "false");
+		
+		// Every run seeds a fresh database, data saved by an earlier run doesn't match it.
+		System.setProperty(WarmStartFile.FILE_PROPERTY, "");
+	}
+	
+	private Tomcat startServer() throws IOException, LifecycleException {
+		File baseDir = Files.createTempDirectory("stockapp-load").toFile();
+		baseDir.deleteOnExit();
+		
+		Tomcat tomcat = new Tomcat();
+		tomcat.setBaseDir(baseDir.getAbsolutePath());
+		tomcat.setPort(config.getPort());
+		
+		// Same servlet setup as web.xml's.
+		Context ctx = tomcat.addContext("", baseDir.getAbsolutePath());
+		Wrapper routing = Tomcat.addServlet(ctx, "routing", new RoutingServlet());
+		routing.setAsyncSupported(true);
+		routing.setLoadOnStartup(1);
+		ctx.addServletMappingDecoded("/*", "routing");
+		
+		tomcat.getConnector();
+		tomcat.start();
+		return tomcat;
+	}
+	
+	/**
+	 * Runs a single step with the given number of concurrent clients.
+	 * 
+	 * @return Results by route, of the measured part of the step.
+	 */
+	private Map<String, RouteStats> runStep(RequestMix mix, CloseableHttpClient client, int concurrency) 
+			throws InterruptedException {
+		Map<String, RouteStats> stats = new LinkedHashMap<>();
+		for (String route : mix.getRoutes()) {
+			stats.put(route, new RouteStats(MetricsRegistry.getInstance().histogram(DURATION_METRIC, DURATION_HELP, 
+					"route", route, "concurrency", String.valueOf(concurrency))));
+		}
+		
+		long warmupEnd = System.nanoTime() + TimeUnit.SECONDS.toNanos(config.getWarmupSeconds());
+		long end = warmupEnd + TimeUnit.SECONDS.toNanos(config.getDurationSeconds());
+		CountDownLatch done = new CountDownLatch(concurrency);
+		for (int i = 0; i < concurrency; i++) {
+			Thread t = new Thread(() -> {
+				try {
+					long now;
+					while ((now = System.nanoTime()) < end) {
+						RequestMix.Request req = mix.next();
+						int status = send(client, req);
+						if (now >= warmupEnd) {
+							stats.get(req.getRoute()).record(now, status);
+						}
+					}
+				} finally {
+					done.countDown();
+				}
+			}, "load-client-" + i);
+			t.setDaemon(true);
+			t.start();
+		}
+		done.await();
+		return stats;
+	}
+	
+	/**
+	 * @return Status of the response, -1 if the request failed.
+	 */
+	private static int send(CloseableHttpClient client, RequestMix.Request req) {
+		try (CloseableHttpResponse resp = client.execute(req.getGet())) {
+			EntityUtils.consume(resp.getEntity());
+			return resp.getStatusLine().getStatusCode();
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+	
+	private void report(int concurrency, Map<String, RouteStats> stats) {
+		String format = "%-40s %9s %9s %7s %7s %9s %9s %9s %9s%n";
+		System.out.printf("%nConcurrency %d, %ds measured%n", concurrency, config.getDurationSeconds());
+		System.out.printf(format, "route", "requests", "req/s", "errors", "limited", "p50 ms", "p90 ms", "p99 ms", 
+				"max ms");
+		long total = 0;
+		for (Map.Entry<String, RouteStats> e : stats.entrySet()) {
+			RouteStats s = e.getValue();
+			long count = s.latency.getCount();
+			total += count;
+			System.out.printf(format, e.getKey(), count, String.format("%.1f", rate(count)), s.errors.sum(), 
+					s.limited.sum(), millis(s.latency, 0.5), millis(s.latency, 0.9), millis(s.latency, 0.99), 
+					millis(s.latency, 1.0));
+		}
+		System.out.printf(format, "all", total, String.format("%.1f", rate(total)), "", "", "", "", "", "");
+	}
+	
+	private double rate(long count) {
+		return count / (double) config.getDurationSeconds();
+	}
+	
+	private static String millis(Histogram h, double quantile) {
+		return String.format("%.2f", h.getValueAtQuantile(quantile) / 1000.0);
+	}
+	
+	private void run() throws IOException, LifecycleException, InterruptedException {
+		useInMemoryDatabase();
+		System.out.println("Seeding " + config);
+		Seeder seeder = new Seeder(config);
+		seeder.seed(DataStoreManager.getInstance().getFactory());
+		
+		Tomcat tomcat = startServer();
+		int maxConcurrency = config.getConcurrency().stream().mapToInt(Integer::intValue).max().orElse(1);
+		try (CloseableHttpClient client = HttpClients.custom().setMaxConnTotal(maxConcurrency)
+				.setMaxConnPerRoute(maxConcurrency).build()) {
+			String baseUrl = "http://localhost:" + tomcat.getConnector().getLocalPort();
+			RequestMix mix = new RequestMix(baseUrl, seeder, config.getMix());
+			System.out.println("Serving at " + baseUrl);
+			
+			for (int concurrency : config.getConcurrency()) {
+				report(concurrency, runStep(mix, client, concurrency));
+			}
+		} finally {
+			tomcat.stop();
+			tomcat.destroy();
+			DataStoreManager.getInstance().shutdown();
+		}
+	}
+	
+	public static void main(String[] args) throws Exception {
+		new LoadHarness(LoadConfig.parse(args)).run();
+	}
+}
@@ -0,0 +1,185 @@
+package club.vinnymaker.benchmarks.load;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
+
+import org.apache.http.client.methods.HttpGet;
+
+/**
+ * A weighted mix of the frontend's requests over the seeded data. Each request is made as a random seeded user,
+ * for random items. Requests in the mix, by name:
+ *
+ * <pre>
+ *   quote      GET /stocks/:exchange/:symbol
+ *   quotes     GET /stocks/:exchange?symbols=... with 10 symbols
+ *   members    GET /stocks/:exchange/:symbol/members of an index
+ *   search     GET /stocks/search/:substr with a 2 or 3 letter part of a symbol
+ *   indexes    GET /exchanges/:exid/indexes
+ *   exchanges  GET /exchanges/:exids with all the exchanges
+ *   watchlist  GET /users/:username/watchlist/quotes
+ * </pre>
+ *
+ * @author evinay
+ *
+ */
+public class RequestMix {
+	
+	private static final String USERNAME_HEADER = "Username";
+	private static final String AUTH_HEADER = "Authorization";
+	private static final int BATCH_SYMBOLS = 10;
+	
+	/**
+	 * A request to send, with the route it's for.
+	 */
+	public static class Request {
+		private final String route;
+		private final HttpGet get;
+		
+		Request(String route, HttpGet get) {
+			this.route = route;
+			this.get = get;
+		}
+		
+		public String getRoute() {
+			return route;
+		}
+		
+		public HttpGet getGet() {
+			return get;
+		}
+	}
+	
+	private static class Kind {
+		private final String route;
+		private final Function<String, String> path;
+		
+		Kind(String route, Function<String, String> path) {
+			this.route = route;
+			this.path = path;
+		}
+	}
+	
+	private final String baseUrl;
+	private final Seeder data;
+	private final Map<String, Kind> kinds = new HashMap<>();
+	
+	// Kinds of the mix, each repeated as many times as its weight.
+	private final List<Kind> weighted = new ArrayList<>();
+	
+	/**
+	 * @throws IllegalArgumentException if the mix names an unknown request.
+	 */
+	public RequestMix(String baseUrl, Seeder data, Map<String, Integer> mix) {
+		this.baseUrl = baseUrl;
+		this.data = data;
+		
+		kinds.put("quote", new Kind("GET /stocks/:exchange/:symbol", (user) -> {
+			int ex = randomExchange();
+			return "/stocks/" + code(ex) + "/" + randomSymbol(ex);
+		}));
+		kinds.put("quotes", new Kind("GET /stocks/:exchange", (user) -> {
+			int ex = randomExchange();
+			StringJoiner symbols = new StringJoiner(",");
+			for (int i = 0; i < BATCH_SYMBOLS; i++) {
+				symbols.add(randomSymbol(ex));
+			}
+			return "/stocks/" + code(ex) + "?symbols=" + symbols;
+		}));
+		kinds.put("members", new Kind("GET /stocks/:exchange/:symbol/members", (user) -> {
+			int ex = randomExchange();
+			return "/stocks/" + code(ex) + "/" + encode(randomElement(data.getIndexNames().get(ex))) + "/members";
+		}));
+		kinds.put("search", new Kind("GET /stocks/search/:substr", (user) -> {
+			String symbol = randomSymbol(randomExchange());
+			int len = Math.min(symbol.length(), 2 + ThreadLocalRandom.current().nextInt(2));
+			int start = ThreadLocalRandom.current().nextInt(symbol.length() - len + 1);
+			return "/stocks/search/" + symbol.substring(start, start + len).toLowerCase();
+		}));
+		kinds.put("indexes", new Kind("GET /exchanges/:exid/indexes", 
+				(user) -> "/exchanges/" + (randomExchange() + 1) + "/indexes"));
+		kinds.put("exchanges", new Kind("GET /exchanges/:exids", (user) -> {
+			StringJoiner ids = new StringJoiner(",");
+			for (int ex = 1; ex <= data.getExchangeCodes().size(); ex++) {
+				ids.add(String.valueOf(ex));
+			}
+			return "/exchanges/" + ids;
+		}));
+		kinds.put("watchlist", new Kind("GET /users/:username/watchlist/quotes", 
+				(user) -> "/users/" + user + "/watchlist/quotes"));
+		
+		for (Map.Entry<String, Integer> e : mix.entrySet()) {
+			Kind kind = kinds.get(e.getKey());
+			if (kind == null) {
+				throw new IllegalArgumentException("Unknown request " + e.getKey() + " in the mix, known ones are " 
+						+ kinds.keySet());
+			}
+			for (int i = 0; i < e.getValue(); i++) {
+				weighted.add(kind);
+			}
+		}
+		if (weighted.isEmpty()) {
+			throw new IllegalArgumentException("Empty mix");
+		}
+	}
+	
+	/**
+	 * @return Routes of the requests in the mix.
+	 */
+	public List<String> getRoutes() {
+		List<String> ret = new ArrayList<>();
+		for (Kind kind : weighted) {
+			if (!ret.contains(kind.route)) {
+				ret.add(kind.route);
+			}
+		}
+		return ret;
+	}
+	
+	/**
+	 * Makes the next request, picked at random by weight.
+	 */
+	public Request next() {
+		Kind kind = randomElement(weighted);
+		String user = randomElement(data.getUsernames());
+		HttpGet get = new HttpGet(baseUrl + kind.path.apply(user));
+		get.setHeader(USERNAME_HEADER, user);
+		String credentials = user + ":" + Seeder.PASSWORD;
+		get.setHeader(AUTH_HEADER, "Basic " 
+				+ Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.UTF_8)));
+		return new Request(kind.route, get);
+	}
+	
+	private static <T> T randomElement(List<T> list) {
+		return list.get(ThreadLocalRandom.current().nextInt(list.size()));
+	}
+	
+	// Exchanges are numbered from 0 here, ids start at 1.
+	private int randomExchange() {
+		return ThreadLocalRandom.current().nextInt(data.getExchangeCodes().size());
+	}
+	
+	private String code(int ex) {
+		return data.getExchangeCodes().get(ex);
+	}
+	
+	private String randomSymbol(int ex) {
+		return randomElement(data.getSymbols().get(ex));
+	}
+	
+	private static String encode(String segment) {
+		try {
+			return URLEncoder.encode(segment, StandardCharsets.UTF_8.name()).replace("+", "%20");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
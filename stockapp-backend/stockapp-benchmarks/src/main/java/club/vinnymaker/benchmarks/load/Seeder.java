@@ -0,0 +1,228 @@
+package club.vinnymaker.benchmarks.load;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.mindrot.jbcrypt.BCrypt;
+
+import club.vinnymaker.data.MarketDataType;
+import lombok.Getter;
+
+/**
+ * Seeds the database with exchanges, their indexes and stocks, and users with watchlists, as configured. Rows are
+ * written with plain batched inserts, seeding thousands of items through hibernate would take longer than the
+ * load run. Everything is generated from a fixed seed, so runs with the same settings see the same data.
+ *
+ * @author evinay
+ *
+ */
+@Getter
+public class Seeder {
+	
+	public static final String PASSWORD = "loadtest-password";
+	
+	private static final long RANDOM_SEED = 42;
+	
+	private static final String INSERT_EXCHANGE_QRY = "INSERT INTO exchanges (exchange_id, code, title) "
+			+ "VALUES (?, ?, ?)";
+	private static final String INSERT_STOCK_QRY = "INSERT INTO stocks (stock_id, symbol, open, volume, ltp, "
+			+ "prev_close, high, low, item_type, last_update_time, exchange_id) "
+			+ "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+	private static final String INSERT_INDEX_QRY = "INSERT INTO stock_indexes (stock_index_id, exchange_id, "
+			+ "index_name) VALUES (?, ?, ?)";
+	private static final String INSERT_LISTING_QRY = "INSERT INTO index_listings (index_id, stock_id) VALUES (?, ?)";
+	// The schema is created from the mappings, which don't have the listings' periods(see V6__listing_periods).
+	private static final String[] ADD_LISTING_PERIOD_QRYS = {
+		"ALTER TABLE index_listings ADD COLUMN valid_from timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP",
+		"ALTER TABLE index_listings ADD COLUMN valid_to timestamp",
+	};
+	private static final String INSERT_USER_QRY = "INSERT INTO users (user_id, username, password_hash, password_salt, "
+			+ "date_created) VALUES (?, ?, ?, ?, ?)";
+	private static final String INSERT_WATCHLIST_ITEM_QRY = "INSERT INTO watchlist_items (watchlist_item_id, user_id, "
+			+ "stock_id, date_added) VALUES (?, ?, ?, ?)";
+	private static final String RESTART_SEQUENCE_QRY = "ALTER SEQUENCE %s RESTART WITH %d";
+	
+	private final LoadConfig config;
+	
+	// Seeded data, for building requests. Lists are indexed by exchange id - 1.
+	private final List<String> exchangeCodes = new ArrayList<>();
+	private final List<List<String>> symbols = new ArrayList<>();
+	private final List<List<String>> indexNames = new ArrayList<>();
+	private final List<String> usernames = new ArrayList<>();
+	
+	private final Random random = new Random(RANDOM_SEED);
+	
+	public Seeder(LoadConfig config) {
+		this.config = config;
+	}
+	
+	/**
+	 * Writes all the data in a single transaction.
+	 * 
+	 * @throws HibernateException if any of it couldn't be written.
+	 */
+	public void seed(SessionFactory factory) {
+		Session session = null;
+		Transaction tx = null;
+		try {
+			session = factory.openSession();
+			tx = session.beginTransaction();
+			session.doWork(this::insertAll);
+			tx.commit();
+		} catch (HibernateException e) {
+			if (tx != null) {
+				tx.rollback();
+			}
+			throw e;
+		} finally {
+			if (session != null) {
+				session.close();
+			}
+		}
+	}
+	
+	private void insertAll(Connection conn) throws SQLException {
+		Timestamp now = new Timestamp(System.currentTimeMillis());
+		int stockId = 0;
+		int indexId = 0;
+		List<Integer> allStockIds = new ArrayList<>();
+		
+		try (Statement stmt = conn.createStatement()) {
+			for (String qry : ADD_LISTING_PERIOD_QRYS) {
+				stmt.execute(qry);
+			}
+		}
+		
+		try (PreparedStatement exchanges = conn.prepareStatement(INSERT_EXCHANGE_QRY);
+				PreparedStatement stocks = conn.prepareStatement(INSERT_STOCK_QRY);
+				PreparedStatement indexes = conn.prepareStatement(INSERT_INDEX_QRY);
+				PreparedStatement listings = conn.prepareStatement(INSERT_LISTING_QRY)) {
+			for (int ex = 1; ex <= config.getExchanges(); ex++) {
+				String code = "EX" + ex;
+				exchangeCodes.add(code);
+				exchanges.setInt(1, ex);
+				exchanges.setString(2, code);
+				exchanges.setString(3, "Exchange " + ex);
+				exchanges.addBatch();
+				
+				List<String> exSymbols = new ArrayList<>(randomSymbols(config.getSymbols()));
+				List<Integer> exStockIds = new ArrayList<>();
+				for (String symbol : exSymbols) {
+					addStock(stocks, ++stockId, symbol, MarketDataType.STOCK, ex, now);
+					exStockIds.add(stockId);
+				}
+				symbols.add(exSymbols);
+				allStockIds.addAll(exStockIds);
+				
+				List<String> exIndexes = new ArrayList<>();
+				for (int i = 1; i <= config.getIndexes(); i++) {
+					String name = "INDEX " + i;
+					exIndexes.add(name);
+					addStock(stocks, ++stockId, name, MarketDataType.INDEX, ex, now);
+					indexes.setInt(1, ++indexId);
+					indexes.setInt(2, ex);
+					indexes.setString(3, name);
+					indexes.addBatch();
+					
+					Collections.shuffle(exStockIds, random);
+					for (int m = 0; m < config.getMembers(); m++) {
+						listings.setInt(1, indexId);
+						listings.setInt(2, exStockIds.get(m));
+						listings.addBatch();
+					}
+				}
+				indexNames.add(exIndexes);
+			}
+			
+			// Parents before children, the stocks reference their exchange and listings both.
+			exchanges.executeBatch();
+			stocks.executeBatch();
+			indexes.executeBatch();
+			listings.executeBatch();
+		}
+		
+		// Every user has the same password, hashing it once keeps seeding quick whatever the cost.
+		String salt = BCrypt.gensalt(config.getPasswordCost());
+		String hash = BCrypt.hashpw(PASSWORD, salt);
+		int itemId = 0;
+		try (PreparedStatement users = conn.prepareStatement(INSERT_USER_QRY);
+				PreparedStatement items = conn.prepareStatement(INSERT_WATCHLIST_ITEM_QRY)) {
+			for (int u = 1; u <= config.getUsers(); u++) {
+				String username = "loaduser" + u;
+				usernames.add(username);
+				users.setLong(1, u);
+				users.setString(2, username);
+				users.setString(3, hash);
+				users.setString(4, salt);
+				users.setTimestamp(5, now);
+				users.addBatch();
+				
+				Collections.shuffle(allStockIds, random);
+				for (int i = 0; i < config.getWatchlist(); i++) {
+					items.setLong(1, ++itemId);
+					items.setLong(2, u);
+					items.setInt(3, allStockIds.get(i));
+					items.setTimestamp(4, now);
+					items.addBatch();
+				}
+			}
+			users.executeBatch();
+			items.executeBatch();
+		}
+		
+		// Anything created later, e.g., by the updater, gets ids after the seeded ones.
+		try (Statement stmt = conn.createStatement()) {
+			stmt.execute(String.format(RESTART_SEQUENCE_QRY, "exchanges_exchange_id_seq", config.getExchanges() + 1));
+			stmt.execute(String.format(RESTART_SEQUENCE_QRY, "stocks_stock_id_seq", stockId + 1));
+			stmt.execute(String.format(RESTART_SEQUENCE_QRY, "stock_indexes_stock_index_id_seq", indexId + 1));
+			stmt.execute(String.format(RESTART_SEQUENCE_QRY, "users_user_id_seq", config.getUsers() + 1));
+			stmt.execute(String.format(RESTART_SEQUENCE_QRY, "watchlist_items_watchlist_item_id_seq", itemId + 1));
+		}
+	}
+	
+	private void addStock(PreparedStatement stmt, int id, String symbol, MarketDataType type, int exchangeId, 
+			Timestamp now) throws SQLException {
+		double prevClose = 10 + random.nextDouble() * 5000;
+		double ltp = prevClose * (0.95 + random.nextDouble() * 0.1);
+		stmt.setInt(1, id);
+		stmt.setString(2, symbol);
+		stmt.setDouble(3, prevClose * (0.98 + random.nextDouble() * 0.04));
+		stmt.setDouble(4, random.nextDouble() * 100);
+		stmt.setDouble(5, ltp);
+		stmt.setDouble(6, prevClose);
+		stmt.setDouble(7, Math.max(ltp, prevClose) * 1.01);
+		stmt.setDouble(8, Math.min(ltp, prevClose) * 0.99);
+		stmt.setString(9, type.name());
+		stmt.setTimestamp(10, now);
+		stmt.setInt(11, exchangeId);
+		stmt.addBatch();
+	}
+	
+	/**
+	 * @return Distinct symbols of 3 to 9 capital letters, like NSE's.
+	 */
+	private Set<String> randomSymbols(int n) {
+		Set<String> ret = new LinkedHashSet<>();
+		while (ret.size() < n) {
+			char[] symbol = new char[3 + random.nextInt(7)];
+			for (int i = 0; i < symbol.length; i++) {
+				symbol[i] = (char) ('A' + random.nextInt(26));
+			}
+			ret.add(new String(symbol));
+		}
+		return ret;
+	}
+}
@@ -12,5 +12,12 @@ psql -U postgres -d $DBNAME -f users.sql;
 # Now create stock data tables
 psql -U postgres -d $DBNAME -f stocks.sql;
 
+# Now create user watchlist tables, these refer to both users and stocks.
+psql -U postgres -d $DBNAME -f watchlists.sql;
+
 # Populate initial data in tables.
 psql -U postgres -d $DBNAME -f data.sql;
+
+# Later schema changes(indexes, new tables) are migrations under
+# src/main/resources/migrations, applied by SchemaMigrator at startup or with
+# java -cp ... club.vinnymaker.datastore.SchemaMigrator
@@ -0,0 +1,8 @@
+-- Create the watchlist table. Each row is a single item(stock/index) on a
+-- user's watchlist, items are listed in the order they were added. Unique
+-- constraint also creates the index used to look up a user's watchlist.
+CREATE TABLE watchlist_items (watchlist_item_id serial primary key,
+                              user_id integer not null references users(user_id) on delete cascade,
+                              stock_id integer not null references stocks(stock_id),
+                              date_added timestamp without time zone not null,
+                              UNIQUE (user_id, stock_id));
@@ -1,5 +1,6 @@
 package club.vinnymaker.data;
 
+import javax.persistence.Cacheable;
 import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
@@ -7,14 +8,20 @@ import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.SequenceGenerator;
 
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+
 import lombok.Getter;
 
 /**
- * A simple POJO representing a stock exchange in our application.
+ * A simple POJO representing a stock exchange in our application. Exchanges are never modified by the application,
+ * so they're kept in the read only second level cache.
  *  
  * @author evinay
  */
 @Entity(name = "exchanges")
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_ONLY)
 @Getter
 public class Exchange {
 	
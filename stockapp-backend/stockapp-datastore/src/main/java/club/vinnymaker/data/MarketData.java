@@ -4,11 +4,12 @@ import java.util.Date;
 
 import javax.persistence.Column;
 import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.SequenceGenerator;
-import javax.persistence.Transient;
 
 import lombok.Getter;
 import lombok.Setter;
@@ -59,7 +60,8 @@ public class MarketData {
 	private double low;
 	
 	// Type of the item - stock or index.
-	@Transient
+	@Enumerated(EnumType.STRING)
+	@Column(name = "item_type")
 	private MarketDataType type;
 	
 	// Time of the latest update for this item.
@@ -109,6 +111,18 @@ public class MarketData {
 		other.setVolume(volume);
 	}
 	
+	/**
+	 * @return A new item with the same id and data as this one.
+	 */
+	public MarketData copy() {
+		MarketData item = new MarketData(symbol);
+		update(item);
+		item.setId(id);
+		item.setType(type);
+		item.setExchangeId(exchangeId);
+		return item;
+	}
+	
 	public MarketDataLite liteWeightVersion() {
 		return new MarketDataLite(exchangeId, symbol, type);
 	}
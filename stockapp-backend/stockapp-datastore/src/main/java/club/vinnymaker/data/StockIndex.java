@@ -0,0 +1,76 @@
+package club.vinnymaker.data;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.persistence.Cacheable;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.JoinColumn;
+import javax.persistence.JoinTable;
+import javax.persistence.ManyToMany;
+import javax.persistence.SequenceGenerator;
+
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+import org.hibernate.annotations.Immutable;
+import org.hibernate.annotations.WhereJoinTable;
+
+import lombok.Getter;
+
+/**
+ * An index(e.g., NIFTY 50) on an exchange. Index data itself is stored as a {@link MarketData} item with the same 
+ * symbol as the index name. Indexes are maintained by hand and change very rarely, so they're kept in the second 
+ * level cache. Its members are mapped over the current listings in the index_listings table, load them along with
+ * the index using a fetch join.
+ * 
+ * Listings are effective dated, a stock that leaves the index has its listing closed rather than deleted. So the
+ * members can't be changed through this mapping, StockDataManager reconciles the listings of an index instead.
+ * 
+ * @author evinay
+ *
+ */
+@Entity(name = "stock_indexes")
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.NONSTRICT_READ_WRITE)
+@Getter
+public class StockIndex {
+	
+	@GeneratedValue(strategy=GenerationType.SEQUENCE, generator="stock_index_id_gen")
+	@SequenceGenerator(name = "stock_index_id_gen", allocationSize = 1, 
+		sequenceName = "stock_indexes_stock_index_id_seq")
+	@Id
+	@Column(name = "stock_index_id")
+	private int id;
+	
+	// Id of the exchange this index belongs to.
+	@Column(name = "exchange_id")
+	private final int exchangeId;
+	
+	// Name of the index, same as the symbol of its MarketData item.
+	@Column(name = "index_name")
+	private final String name;
+	
+	// Items currently listed in the index. Loaded lazily, and not cached since they're updated every cycle.
+	@ManyToMany
+	@Immutable
+	@WhereJoinTable(clause = "valid_to IS NULL")
+	@JoinTable(name = "index_listings", joinColumns = @JoinColumn(name = "index_id"), 
+			inverseJoinColumns = @JoinColumn(name = "stock_id"))
+	private Set<MarketData> members = new HashSet<>();
+	
+	public StockIndex(int exchangeId, String name) {
+		this.exchangeId = exchangeId;
+		this.name = name;
+	}
+	
+	/**
+	 * Empty constructor only for ORM purpose. Should never be called in code.
+	 */
+	public StockIndex() {
+		this(0, null);
+	}
+}
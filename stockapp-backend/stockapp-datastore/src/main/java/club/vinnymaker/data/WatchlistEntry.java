@@ -0,0 +1,24 @@
+package club.vinnymaker.data;
+
+import lombok.Getter;
+
+/**
+ * A watchlist item along with the exchange code and symbol of the watched stock/index, enough to look up or
+ * fetch its quote without any more queries.
+ * 
+ * @author evinay
+ *
+ */
+@Getter
+public class WatchlistEntry {
+	
+	private final int stockId;
+	private final String exchange;
+	private final String symbol;
+	
+	public WatchlistEntry(int stockId, String exchange, String symbol) {
+		this.stockId = stockId;
+		this.exchange = exchange;
+		this.symbol = symbol;
+	}
+}
@@ -0,0 +1,53 @@
+package club.vinnymaker.data;
+
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.SequenceGenerator;
+
+import lombok.Getter;
+
+/**
+ * A single item(stock/index) on a user's watchlist.
+ * 
+ * @author evinay
+ *
+ */
+@Entity(name = "watchlist_items")
+@Getter
+public class WatchlistItem {
+	@Id
+	@GeneratedValue(strategy=GenerationType.SEQUENCE, generator="watchlist_item_id_gen")
+	@SequenceGenerator(name = "watchlist_item_id_gen", sequenceName = "watchlist_items_watchlist_item_id_seq", 
+		allocationSize = 1)
+	@Column(name = "watchlist_item_id")
+	private long id;
+	
+	// Id of the user watching this item.
+	@Column(name = "user_id")
+	private final long userId;
+	
+	// Id of the watched stock/index.
+	@Column(name = "stock_id")
+	private final int stockId;
+	
+	@Column(name = "date_added")
+	private final Date dateAdded;
+	
+	public WatchlistItem(long userId, int stockId, Date dateAdded) {
+		this.userId = userId;
+		this.stockId = stockId;
+		this.dateAdded = dateAdded;
+	}
+	
+	/**
+	 * Empty constructor only for ORM purpose. Should never be called in code.
+	 */
+	public WatchlistItem() {
+		this(0, 0, null);
+	}
+}
@@ -1,15 +1,85 @@
 package club.vinnymaker.datastore;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.hibernate.HibernateException;
+import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.hibernate.cfg.Configuration;
+import org.hibernate.engine.jdbc.connections.spi.ConnectionProvider;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.service.UnknownUnwrapTypeException;
+import org.hibernate.stat.Statistics;
+
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
 
+import club.vinnymaker.metrics.MetricsRegistry;
 import lombok.Getter;
 
-@Getter
+/**
+ * DataStoreManager owns the hibernate session factories. All writes go to the primary database. Reads that can
+ * tolerate slightly stale data may go to read replicas instead, when any are configured(comma separated JDBC urls
+ * in the stockapp.db.replicas system property). Replicas lagging the primary by more than an update cycle are 
+ * skipped until they catch up, and so are replicas that get no new data at all(e.g., disconnected from the primary,
+ * or the updater isn't writing). Reads fall back to the primary when none is usable.
+ * 
+ * The primary's schema is migrated to the latest version at startup, see SchemaMigrator.
+ * 
+ * @author evinay
+ *
+ */
 public class DataStoreManager {
-	private static DataStoreManager dataStoreMgr = null;
+	
+	public static final String REPLICAS_PROPERTY = "stockapp.db.replicas";
+	
+	// Hibernate configuration resource to use instead of hibernate.cfg.xml, e.g., for a test database.
+	public static final String CONFIG_PROPERTY = "stockapp.db.config";
+	private static final String DEFAULT_CONFIG = "hibernate.cfg.xml";
+	
+	// The updater writes once a cycle(a minute), so even a replica that's caught up may have last replayed a
+	// transaction a cycle ago. One further behind than two cycles would serve data older than the previous update.
+	private static final long MAX_REPLICA_LAG_MS = 120000;
+	private static final long LAG_CHECK_INTERVAL_MS = 10000;
+	
+	// Time in ms since the primary committed the last transaction the replica has replayed, null if it hasn't 
+	// replayed any. It keeps growing on a replica that has lost its connection to the primary, unlike a comparison
+	// of the received and replayed positions.
+	private static final String REPLICA_LAG_QRY = "SELECT EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()) "
+			+ "* 1000";
+	
+	private static final Logger logger = LogManager.getLogger(DataStoreManager.class);
+	
+	// Built by whichever thread gets here first, e.g., while the frontend is still loading its warm start file.
+	private static volatile DataStoreManager dataStoreMgr = null;
+	
+	// Primary database, for writes and for reads that must see them.
+	@Getter
 	private SessionFactory factory = null;
+	private List<Replica> replicas = Collections.emptyList();
+	
+	// Used to spread reads evenly over the usable replicas.
+	private final AtomicInteger nextReplica = new AtomicInteger();
+	private ScheduledExecutorService lagChecker = null;
+	
+	private static class Replica {
+		private final String url;
+		private final SessionFactory factory;
+		private volatile boolean usable = false;
+		
+		Replica(String url, SessionFactory factory) {
+			this.url = url;
+			this.factory = factory;
+		}
+	}
 	
 	private DataStoreManager() {
 		init();
@@ -17,22 +87,206 @@ public class DataStoreManager {
 	
 	private void init() {
 		try {
-			factory = new Configuration().configure().buildSessionFactory();
+			factory = new Configuration().configure(configResource()).buildSessionFactory();
 		} catch (HibernateException e) {
 			e.printStackTrace();
 		}
+		
+		// Bring the schema up to date before anything uses it, unless told not to(-Dstockapp.db.migrate=false).
+		if (factory != null && Boolean.parseBoolean(System.getProperty(SchemaMigrator.MIGRATE_PROPERTY, "true"))) {
+			try {
+				new SchemaMigrator(factory).migrate();
+			} catch (HibernateException e) {
+				logger.error("Error migrating the database schema - " + e.getMessage());
+			}
+		}
+		
+		registerMetrics();
+		
+		String urls = System.getProperty(REPLICAS_PROPERTY);
+		if (urls == null || urls.trim().isEmpty()) {
+			return;
+		}
+		
+		List<Replica> reps = new ArrayList<>();
+		for (String url : urls.split(",")) {
+			url = url.trim();
+			if (url.isEmpty()) {
+				continue;
+			}
+			
+			try {
+				SessionFactory f = new Configuration().configure(configResource())
+						.setProperty("hibernate.connection.url", url)
+						.setProperty("hibernate.hikari.poolName", "stockapp-replica-" + (reps.size() + 1))
+						.setProperty("hibernate.hikari.readOnly", "true")
+						.setProperty("net.sf.ehcache.cacheManagerName", "stockapp-replica-" + (reps.size() + 1))
+						.buildSessionFactory();
+				reps.add(new Replica(url, f));
+			} catch (HibernateException e) {
+				logger.error("Error connecting to the read replica at " + url + " - " + e.getMessage());
+			}
+		}
+		
+		if (reps.isEmpty()) {
+			return;
+		}
+		replicas = Collections.unmodifiableList(reps);
+		checkReplicaLag();
+		
+		lagChecker = Executors.newSingleThreadScheduledExecutor((r) -> {
+			Thread t = new Thread(r, "replica-lag-checker");
+			t.setDaemon(true);
+			return t;
+		});
+		lagChecker.scheduleWithFixedDelay(this::checkReplicaLag, LAG_CHECK_INTERVAL_MS, LAG_CHECK_INTERVAL_MS, 
+				TimeUnit.MILLISECONDS);
+	}
+	
+	private static String configResource() {
+		return System.getProperty(CONFIG_PROPERTY, DEFAULT_CONFIG);
+	}
+	
+	/**
+	 * Exports gauges of the primary's connection pool, replicas in use and cache hit/miss counts.
+	 */
+	private void registerMetrics() {
+		MetricsRegistry registry = MetricsRegistry.getInstance();
+		HikariPoolMXBean pool = getPoolStats();
+		if (pool != null) {
+			String help = "Connections of the primary's pool, pending are threads waiting for one";
+			registry.gauge("stockapp_db_pool_connections", help, pool::getActiveConnections, "state", "active");
+			registry.gauge("stockapp_db_pool_connections", help, pool::getIdleConnections, "state", "idle");
+			registry.gauge("stockapp_db_pool_connections", help, pool::getThreadsAwaitingConnection, "state", 
+					"pending");
+		}
+		registry.gauge("stockapp_db_replicas_usable", "Read replicas currently being read from", 
+				() -> replicas.stream().filter((r) -> r.usable).count());
+		
+		Statistics stats = getStatistics();
+		if (stats != null) {
+			String help = "Lookups in hibernate's second level and query caches";
+			registry.counter("stockapp_db_cache_lookups_total", help, stats::getSecondLevelCacheHitCount, 
+					"cache", "entity", "result", "hit");
+			registry.counter("stockapp_db_cache_lookups_total", help, stats::getSecondLevelCacheMissCount, 
+					"cache", "entity", "result", "miss");
+			registry.counter("stockapp_db_cache_lookups_total", help, stats::getQueryCacheHitCount, 
+					"cache", "query", "result", "hit");
+			registry.counter("stockapp_db_cache_lookups_total", help, stats::getQueryCacheMissCount, 
+					"cache", "query", "result", "miss");
+		}
+	}
+	
+	/**
+	 * Measures the replication lag of every replica and marks the ones that are too far behind, or unreachable, as
+	 * unusable.
+	 */
+	private void checkReplicaLag() {
+		for (Replica replica : replicas) {
+			boolean wasUsable = replica.usable;
+			Session session = null;
+			try {
+				session = replica.factory.openSession();
+				Number lagMs = (Number) session.createNativeQuery(REPLICA_LAG_QRY).getSingleResult();
+				replica.usable = lagMs != null && lagMs.longValue() <= MAX_REPLICA_LAG_MS;
+				if (wasUsable && !replica.usable) {
+					logger.warn("Replica at {} is {} ms behind the primary, not reading from it", replica.url, 
+							lagMs == null ? "unknown" : lagMs.longValue());
+				}
+			} catch (HibernateException e) {
+				replica.usable = false;
+				if (wasUsable) {
+					logger.warn("Replica at {} is unreachable, not reading from it - {}", replica.url, e.getMessage());
+				}
+			} finally {
+				if (session != null) {
+					session.close();
+				}
+			}
+			
+			if (!wasUsable && replica.usable) {
+				logger.info("Reading from the replica at {}", replica.url);
+			}
+		}
+	}
+	
+	/**
+	 * Returns the session factory for reads that may be a little behind the latest writes, at most an update cycle.
+	 * Reads that must see the caller's own recent writes should use getFactory() instead.
+	 * 
+	 * @return Factory of a usable replica, or of the primary if there are none.
+	 */
+	public SessionFactory getReadFactory() {
+		int n = replicas.size();
+		if (n == 0) {
+			return factory;
+		}
+		
+		int start = Math.floorMod(nextReplica.getAndIncrement(), n);
+		for (int i = 0; i < n; i++) {
+			Replica replica = replicas.get((start + i) % n);
+			if (replica.usable) {
+				return replica.factory;
+			}
+		}
+		return factory;
 	}
 	
 	public void shutdown() {
+		if (lagChecker != null) {
+			lagChecker.shutdownNow();
+		}
+		for (Replica replica : replicas) {
+			replica.factory.close();
+		}
 		if (factory != null) {
 			factory.close();
 		}
 	}
 	
+	/**
+	 * Returns live statistics of the primary's JDBC connection pool, e.g., active/idle connections and the number of
+	 * threads waiting for one. Threads waiting is the pool saturation signal, it should stay at 0 under normal load.
+	 * The same statistics are published over JMX as com.zaxxer.hikari:type=Pool (stockapp).
+	 * 
+	 * @return Pool statistics, or null if the factory isn't running on a HikariCP pool.
+	 */
+	public HikariPoolMXBean getPoolStats() {
+		if (factory == null) {
+			return null;
+		}
+		
+		ConnectionProvider provider = factory.unwrap(SessionFactoryImplementor.class).getServiceRegistry()
+				.getService(ConnectionProvider.class);
+		try {
+			return provider.unwrap(HikariDataSource.class).getHikariPoolMXBean();
+		} catch (UnknownUnwrapTypeException e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Returns hibernate statistics of the primary's session factory. Second level cache hits/misses/puts, per region
+	 * through getDomainDataRegionStatistics(region), and query cache hits/misses tell how well reference data is
+	 * cached. Replicas' factories keep their own statistics and caches.
+	 * 
+	 * @return Statistics, or null if the factory couldn't be built.
+	 */
+	public Statistics getStatistics() {
+		return factory == null ? null : factory.getStatistics();
+	}
+	
 	public static DataStoreManager getInstance() {
-		if (dataStoreMgr == null) {
-			dataStoreMgr = new DataStoreManager();
+		DataStoreManager mgr = dataStoreMgr;
+		if (mgr == null) {
+			synchronized (DataStoreManager.class) {
+				mgr = dataStoreMgr;
+				if (mgr == null) {
+					mgr = new DataStoreManager();
+					dataStoreMgr = mgr;
+				}
+			}
 		}
-		return dataStoreMgr;
+		return mgr;
 	}
 }
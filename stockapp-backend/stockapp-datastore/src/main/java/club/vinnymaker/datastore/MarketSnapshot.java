@@ -0,0 +1,203 @@
+package club.vinnymaker.datastore;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import club.vinnymaker.data.MarketData;
+import lombok.Getter;
+
+/**
+ * MarketSnapshot is an immutable view of the whole market as of one update cycle: the data of every item and the
+ * members of every index. Everything read from a snapshot is from the same cycle, so e.g., an index and its members
+ * are never a mix of old and new prices.
+ *
+ * A new snapshot is derived from the previous one by applying the items changed in a cycle. Items are spread over a
+ * fixed number of segments, and only the segments with changed items are copied, the rest are shared with the
+ * previous snapshot. Index members are shared too unless the listings changed.
+ *
+ * Items held by a snapshot must never be modified, they may be shared by any number of snapshots.
+ *
+ * @author evinay
+ *
+ */
+public class MarketSnapshot {
+	
+	private static final int SEGMENTS = 64;
+	private static final int SEGMENT_MASK = SEGMENTS - 1;
+	
+	/**
+	 * Identifies an item(stock/index) by its exchange and symbol.
+	 */
+	@Getter
+	public static class ItemKey {
+		private final int exchangeId;
+		private final String symbol;
+		
+		public ItemKey(int exchangeId, String symbol) {
+			this.exchangeId = exchangeId;
+			this.symbol = symbol;
+		}
+		
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof ItemKey)) {
+				return false;
+			}
+			ItemKey other = (ItemKey) o;
+			return exchangeId == other.exchangeId && symbol.equals(other.symbol);
+		}
+		
+		@Override
+		public int hashCode() {
+			return 31 * exchangeId + symbol.hashCode();
+		}
+	}
+	
+	// Version of the data, the update time in millis of the most recent item.
+	@Getter
+	private final long version;
+	
+	@Getter
+	private final int size;
+	
+	private final Map<ItemKey, MarketData>[] segments;
+	
+	// Member keys by index key.
+	private final Map<ItemKey, List<ItemKey>> listings;
+	
+	@SuppressWarnings("unchecked")
+	private static final Map<ItemKey, MarketData>[] NO_SEGMENTS = new Map[SEGMENTS];
+	
+	static {
+		for (int i = 0; i < SEGMENTS; i++) {
+			NO_SEGMENTS[i] = Collections.emptyMap();
+		}
+	}
+	
+	/** Snapshot with no data, to derive the first real one from. */
+	static final MarketSnapshot EMPTY = new MarketSnapshot(0, 0, NO_SEGMENTS, Collections.emptyMap());
+	
+	private MarketSnapshot(long version, int size, Map<ItemKey, MarketData>[] segments,
+			Map<ItemKey, List<ItemKey>> listings) {
+		this.version = version;
+		this.size = size;
+		this.segments = segments;
+		this.listings = listings;
+	}
+	
+	private static int segmentOf(ItemKey key) {
+		int h = key.hashCode();
+		return (h ^ (h >>> 16)) & SEGMENT_MASK;
+	}
+	
+	/**
+	 * Derives the next snapshot from this one.
+	 *
+	 * @param version Version of the new snapshot.
+	 * @param changed Items changed since this snapshot.
+	 * @param newListings Members of the indexes whose listings are to be replaced or added, or null if none are.
+	 *
+	 * @return The new snapshot, sharing all it can with this one.
+	 */
+	MarketSnapshot next(long version, Collection<MarketData> changed, Map<ItemKey, List<ItemKey>> newListings) {
+		Map<ItemKey, MarketData>[] next = segments.clone();
+		boolean[] copied = new boolean[SEGMENTS];
+		int newSize = size;
+		for (MarketData item : changed) {
+			if (item.getSymbol() == null) {
+				continue;
+			}
+			
+			ItemKey key = new ItemKey(item.getExchangeId(), item.getSymbol());
+			int seg = segmentOf(key);
+			if (!copied[seg]) {
+				next[seg] = new HashMap<>(segments[seg]);
+				copied[seg] = true;
+			}
+			if (next[seg].put(key, item) == null) {
+				newSize++;
+			}
+		}
+		
+		for (int i = 0; i < SEGMENTS; i++) {
+			if (copied[i]) {
+				next[i] = Collections.unmodifiableMap(next[i]);
+			}
+		}
+		
+		Map<ItemKey, List<ItemKey>> nextListings = listings;
+		if (newListings != null && !listings.entrySet().containsAll(newListings.entrySet())) {
+			Map<ItemKey, List<ItemKey>> merged = new HashMap<>(listings);
+			merged.putAll(newListings);
+			nextListings = Collections.unmodifiableMap(merged);
+		}
+		return new MarketSnapshot(version, newSize, next, nextListings);
+	}
+	
+	/**
+	 * @return Data of the item, or null if there's no such item.
+	 */
+	public MarketData get(int exchangeId, String symbol) {
+		ItemKey key = new ItemKey(exchangeId, symbol);
+		return segments[segmentOf(key)].get(key);
+	}
+	
+	/**
+	 * Returns the data of the given items of an exchange.
+	 *
+	 * @return Data of the items found, by their symbols.
+	 */
+	public Map<String, MarketData> get(int exchangeId, Collection<String> symbols) {
+		Map<String, MarketData> items = new HashMap<>();
+		for (String symbol : symbols) {
+			MarketData item = get(exchangeId, symbol);
+			if (item != null) {
+				items.put(symbol, item);
+			}
+		}
+		return items;
+	}
+	
+	/**
+	 * @return Data of all the items, in no particular order.
+	 */
+	public List<MarketData> getItems() {
+		List<MarketData> items = new ArrayList<>(size);
+		for (Map<ItemKey, MarketData> segment : segments) {
+			items.addAll(segment.values());
+		}
+		return items;
+	}
+	
+	/**
+	 * @return Member keys of every index by the index's key, the index itself included. Not modifiable.
+	 */
+	public Map<ItemKey, List<ItemKey>> getListings() {
+		return listings;
+	}
+	
+	/**
+	 * Returns the data of all the members of an index, the index itself included.
+	 *
+	 * @return Data of the members, or null if there's no such index.
+	 */
+	public List<MarketData> getMembers(int exchangeId, String indexName) {
+		List<ItemKey> members = listings.get(new ItemKey(exchangeId, indexName));
+		if (members == null) {
+			return null;
+		}
+		
+		List<MarketData> items = new ArrayList<>(members.size());
+		for (ItemKey member : members) {
+			MarketData item = segments[segmentOf(member)].get(member);
+			if (item != null) {
+				items.add(item);
+			}
+		}
+		return items;
+	}
+}
@@ -0,0 +1,92 @@
+package club.vinnymaker.datastore;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import club.vinnymaker.data.MarketData;
+import club.vinnymaker.datastore.MarketSnapshot.ItemKey;
+import club.vinnymaker.metrics.MetricsRegistry;
+
+/**
+ * MarketSnapshots publishes a new {@link MarketSnapshot} for every update cycle and keeps the recent ones around, so
+ * a client can keep reading the market as of a given cycle while newer ones come in.
+ *
+ * Readers just take a reference to a snapshot, they never lock or wait for the publisher.
+ *
+ * @author evinay
+ *
+ */
+public class MarketSnapshots {
+	
+	// An hour's worth of cycles. Snapshots share most of their data, so this costs far less than it seems.
+	private static final int HISTORY = 60;
+	
+	private static final MarketSnapshots instance = new MarketSnapshots();
+	
+	// Most recent snapshots, the current one at (published - 1) % HISTORY. Only the publisher writes to it.
+	private final MarketSnapshot[] history = new MarketSnapshot[HISTORY];
+	private volatile long published = 0;
+	private volatile MarketSnapshot current = null;
+	
+	private MarketSnapshots() {
+		MetricsRegistry.getInstance().gauge("stockapp_snapshot_version", "Version of the current market snapshot",
+				() -> current == null ? 0 : current.getVersion());
+	}
+	
+	public static MarketSnapshots getInstance() {
+		return instance;
+	}
+	
+	/**
+	 * @return The latest snapshot, or null if none has been published yet.
+	 */
+	public MarketSnapshot current() {
+		return current;
+	}
+	
+	/**
+	 * Returns a recent snapshot by its version.
+	 *
+	 * @return The snapshot, or null if there's no snapshot of that version or it's too old to be kept.
+	 */
+	public MarketSnapshot get(long version) {
+		MarketSnapshot[] snapshots = history;
+		long n = published;
+		for (long i = n - 1; i >= 0 && i >= n - HISTORY; i--) {
+			MarketSnapshot s = snapshots[(int) (i % HISTORY)];
+			if (s == null || s.getVersion() < version) {
+				return null;
+			}
+			if (s.getVersion() == version) {
+				return s;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Publishes the snapshot of a new update cycle, derived from the current one.
+	 *
+	 * @param version Version of the data, must be greater than that of the current snapshot.
+	 * @param changed Items changed in the cycle, all items for the first one.
+	 * @param listings Members of the indexes listed in the cycle, or null if they haven't changed. Indexes not
+	 * included keep their members.
+	 *
+	 * @return The published snapshot.
+	 */
+	public synchronized MarketSnapshot publish(long version, Collection<MarketData> changed,
+			Map<ItemKey, List<ItemKey>> listings) {
+		MarketSnapshot prev = current == null ? MarketSnapshot.EMPTY : current;
+		if (version <= prev.getVersion()) {
+			throw new IllegalArgumentException("Snapshot version " + version + " isn't newer than "
+					+ prev.getVersion());
+		}
+		
+		MarketSnapshot next = prev.next(version, changed, listings);
+		history[(int) (published % HISTORY)] = next;
+		published++;
+		current = next;
+		return next;
+	}
+}
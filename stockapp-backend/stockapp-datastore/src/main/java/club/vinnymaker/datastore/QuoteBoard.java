@@ -0,0 +1,268 @@
+package club.vinnymaker.datastore;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.StampedLock;
+
+import club.vinnymaker.data.MarketData;
+import club.vinnymaker.data.MarketDataType;
+import club.vinnymaker.metrics.MetricsRegistry;
+import lombok.Getter;
+
+/**
+ * QuoteBoard holds the latest quote of every item(stock/index) in memory, for reads that don't need the database.
+ * Each item gets a dense int id the first time it's seen, its fields live at that index of parallel primitive
+ * arrays. A quote costs a few dozen bytes instead of a MarketData entity with its Date and boxed fields, and
+ * updating it allocates nothing.
+ *
+ * Reads take no locks. Slots are guarded by striped StampedLocks used as seqlocks: a reader copies a slot's fields
+ * after an optimistic read stamp and retries if a write got in between, so it always gets all the fields of a
+ * single update. Writes(from the feed of updated items) are serialized.
+ *
+ * @author evinay
+ *
+ */
+public class QuoteBoard {
+	
+	private static final int INITIAL_CAPACITY = 1024;
+	
+	// Slots map to stripes by their low bits. Writes are rare, this only needs to keep unrelated writes and reads
+	// from invalidating each other.
+	private static final int STRIPES = 64;
+	private static final int STRIPE_MASK = STRIPES - 1;
+	
+	private static final QuoteBoard instance = new QuoteBoard();
+	
+	/**
+	 * A reusable copy of a single quote, filled in by read(). Readers keep one around(e.g., per thread) instead of
+	 * allocating for every read.
+	 */
+	@Getter
+	public static class Quote {
+		private int stockId;
+		private int exchangeId;
+		private String symbol;
+		private MarketDataType type;
+		private double open;
+		private double high;
+		private double low;
+		private double lastTradedPrice;
+		private double previousClose;
+		private double volume;
+		
+		// Time of the latest update in millis, 0 if unknown.
+		private long lastUpdatedAt;
+		
+		/**
+		 * @return Change in value from previous day's close.
+		 */
+		public double getChange() {
+			return lastTradedPrice - previousClose;
+		}
+	}
+	
+	// The arrays, swapped for bigger copies as items are added. Readers may briefly hold on to an old set.
+	private static class Columns {
+		private final int[] stockIds;
+		private final int[] exchangeIds;
+		private final String[] symbols;
+		private final MarketDataType[] types;
+		private final double[] open;
+		private final double[] high;
+		private final double[] low;
+		private final double[] ltp;
+		private final double[] prevClose;
+		private final double[] volume;
+		private final long[] updatedAt;
+		
+		Columns(int capacity) {
+			stockIds = new int[capacity];
+			exchangeIds = new int[capacity];
+			symbols = new String[capacity];
+			types = new MarketDataType[capacity];
+			open = new double[capacity];
+			high = new double[capacity];
+			low = new double[capacity];
+			ltp = new double[capacity];
+			prevClose = new double[capacity];
+			volume = new double[capacity];
+			updatedAt = new long[capacity];
+		}
+		
+		Columns(Columns old, int capacity) {
+			stockIds = Arrays.copyOf(old.stockIds, capacity);
+			exchangeIds = Arrays.copyOf(old.exchangeIds, capacity);
+			symbols = Arrays.copyOf(old.symbols, capacity);
+			types = Arrays.copyOf(old.types, capacity);
+			open = Arrays.copyOf(old.open, capacity);
+			high = Arrays.copyOf(old.high, capacity);
+			low = Arrays.copyOf(old.low, capacity);
+			ltp = Arrays.copyOf(old.ltp, capacity);
+			prevClose = Arrays.copyOf(old.prevClose, capacity);
+			volume = Arrays.copyOf(old.volume, capacity);
+			updatedAt = Arrays.copyOf(old.updatedAt, capacity);
+		}
+		
+		int capacity() {
+			return symbols.length;
+		}
+	}
+	
+	private final StampedLock[] locks = new StampedLock[STRIPES];
+	private volatile Columns columns = new Columns(INITIAL_CAPACITY);
+	
+	// Ids by exchange id and then symbol.
+	private final Map<Integer, Map<String, Integer>> ids = new ConcurrentHashMap<>();
+	private volatile int size = 0;
+	
+	// Bumped after every batch of updates.
+	private volatile long version = 0;
+	
+	private QuoteBoard() {
+		for (int i = 0; i < STRIPES; i++) {
+			locks[i] = new StampedLock();
+		}
+		MetricsRegistry.getInstance().gauge("stockapp_quote_board_items", "Items held by the quote board",
+				() -> size);
+	}
+	
+	public static QuoteBoard getInstance() {
+		return instance;
+	}
+	
+	/**
+	 * @return Id of the item, or -1 if the board has never seen it.
+	 */
+	public int idOf(int exchangeId, String symbol) {
+		Map<String, Integer> symbols = ids.get(exchangeId);
+		Integer id = symbols == null ? null : symbols.get(symbol);
+		return id == null ? -1 : id;
+	}
+	
+	/**
+	 * @return Number of items on the board, ids are 0 to size - 1.
+	 */
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * @return Number of update batches applied so far, changes whenever any quote does.
+	 */
+	public long getVersion() {
+		return version;
+	}
+	
+	/**
+	 * Writes the latest data of the given items, adding the ones not on the board yet.
+	 */
+	public synchronized void update(Collection<MarketData> items) {
+		for (MarketData item : items) {
+			if (item.getSymbol() == null) {
+				continue;
+			}
+			
+			int id = idOf(item.getExchangeId(), item.getSymbol());
+			if (id < 0) {
+				add(item);
+				continue;
+			}
+			
+			Columns c = columns;
+			StampedLock lock = locks[id & STRIPE_MASK];
+			long stamp = lock.writeLock();
+			try {
+				write(c, id, item);
+			} finally {
+				lock.unlockWrite(stamp);
+			}
+		}
+		version++;
+	}
+	
+	// Only called by update(), so there's a single writer.
+	private void add(MarketData item) {
+		int id = size;
+		if (id == columns.capacity()) {
+			columns = new Columns(columns, 2 * id);
+		}
+		
+		// The whole slot is written before the id is published, readers can't get to it until then. Its identity
+		// never changes after.
+		Columns c = columns;
+		c.exchangeIds[id] = item.getExchangeId();
+		c.symbols[id] = item.getSymbol();
+		write(c, id, item);
+		size = id + 1;
+		ids.computeIfAbsent(item.getExchangeId(), (k) -> new ConcurrentHashMap<>()).put(item.getSymbol(), id);
+	}
+	
+	private static void write(Columns c, int id, MarketData item) {
+		c.stockIds[id] = item.getId();
+		c.types[id] = item.getType();
+		c.open[id] = item.getOpen();
+		c.high[id] = item.getHigh();
+		c.low[id] = item.getLow();
+		c.ltp[id] = item.getLastTradedPrice();
+		c.prevClose[id] = item.getPreviousClose();
+		c.volume[id] = item.getVolume();
+		c.updatedAt[id] = item.getLastUpdatedAt() == null ? 0 : item.getLastUpdatedAt().getTime();
+	}
+	
+	/**
+	 * Copies the latest quote of an item, without locking unless a write to it is in progress.
+	 *
+	 * @param id Id of the item, as returned by idOf().
+	 * @param into Quote to copy into.
+	 *
+	 * @return True if the quote was copied, false if there's no such item.
+	 */
+	public boolean read(int id, Quote into) {
+		if (id < 0 || id >= size) {
+			return false;
+		}
+		
+		StampedLock lock = locks[id & STRIPE_MASK];
+		long stamp = lock.tryOptimisticRead();
+		if (stamp != 0) {
+			copy(columns, id, into);
+			if (lock.validate(stamp)) {
+				return true;
+			}
+		}
+		
+		// A write got in the way, wait for it rather than spinning.
+		stamp = lock.readLock();
+		try {
+			copy(columns, id, into);
+		} finally {
+			lock.unlockRead(stamp);
+		}
+		return true;
+	}
+	
+	/**
+	 * Looks up and copies the latest quote of an item.
+	 *
+	 * @return True if the quote was copied, false if the board has never seen the item.
+	 */
+	public boolean read(int exchangeId, String symbol, Quote into) {
+		return read(idOf(exchangeId, symbol), into);
+	}
+	
+	private static void copy(Columns c, int id, Quote into) {
+		into.stockId = c.stockIds[id];
+		into.exchangeId = c.exchangeIds[id];
+		into.symbol = c.symbols[id];
+		into.type = c.types[id];
+		into.open = c.open[id];
+		into.high = c.high[id];
+		into.low = c.low[id];
+		into.lastTradedPrice = c.ltp[id];
+		into.previousClose = c.prevClose[id];
+		into.volume = c.volume[id];
+		into.lastUpdatedAt = c.updatedAt[id];
+	}
+}
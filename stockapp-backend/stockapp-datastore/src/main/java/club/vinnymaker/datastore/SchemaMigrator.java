@@ -0,0 +1,205 @@
+package club.vinnymaker.datastore;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+
+/**
+ * SchemaMigrator brings the database schema up to date by applying numbered migrations, SQL scripts under
+ * /migrations on the classpath, in order. Applied migrations are recorded in the schema_version table with a
+ * checksum of their script, so every environment ends up with the same schema and a script edited after it was
+ * applied is caught instead of silently diverging.
+ *
+ * Each migration runs in a transaction of its own, a failed one is rolled back and stops the run. Migrations are
+ * applied under an advisory lock, so the frontend and the updater can both migrate at startup.
+ *
+ * Run on demand with: java -cp stockapp-datastore.jar:... club.vinnymaker.datastore.SchemaMigrator
+ *
+ * @author evinay
+ *
+ */
+public class SchemaMigrator {
+	
+	public static final String MIGRATE_PROPERTY = "stockapp.db.migrate";
+	
+	private static final Logger logger = LogManager.getLogger(SchemaMigrator.class);
+	
+	private static final String MIGRATIONS_DIR = "/migrations/";
+	
+	// All migrations, oldest first. Append new ones here, never edit or renumber one that has been released.
+	private static final String[] MIGRATIONS = {
+		"V1__baseline",
+		"V2__listing_indexes",
+		"V3__symbol_trigram",
+		"V4__stock_history",
+		"V5__item_type",
+		"V6__listing_periods",
+	};
+	
+	// Arbitrary key of the advisory lock held while migrating.
+	private static final long MIGRATION_LOCK_KEY = 0x73746f636b617070L;
+	
+	private static final String CREATE_VERSION_TABLE_QRY = "CREATE TABLE IF NOT EXISTS schema_version ("
+			+ "version integer primary key, description varchar(256) not null, checksum bigint not null, "
+			+ "applied_on timestamp without time zone not null, execution_ms integer not null)";
+	private static final String GET_APPLIED_QRY = "SELECT version, checksum FROM schema_version";
+	private static final String ADD_APPLIED_QRY = "INSERT INTO schema_version "
+			+ "(version, description, checksum, applied_on, execution_ms) VALUES (?, ?, ?, ?, ?)";
+	private static final String LOCK_QRY = "SELECT pg_advisory_lock(?)";
+	private static final String UNLOCK_QRY = "SELECT pg_advisory_unlock(?)";
+	
+	private final SessionFactory factory;
+	
+	public SchemaMigrator(SessionFactory factory) {
+		this.factory = factory;
+	}
+	
+	/**
+	 * Applies all the migrations that haven't been applied to the database yet.
+	 *
+	 * @return Number of migrations applied.
+	 * @throws HibernateException if a migration fails, or an applied migration's script has changed since.
+	 */
+	public int migrate() {
+		Session session = factory.openSession();
+		try {
+			return session.doReturningWork(this::migrate);
+		} finally {
+			session.close();
+		}
+	}
+	
+	private int migrate(Connection conn) throws SQLException {
+		boolean autoCommit = conn.getAutoCommit();
+		try (PreparedStatement lock = conn.prepareStatement(LOCK_QRY)) {
+			conn.setAutoCommit(true);
+			lock.setLong(1, MIGRATION_LOCK_KEY);
+			lock.execute();
+			
+			try (Statement st = conn.createStatement()) {
+				st.execute(CREATE_VERSION_TABLE_QRY);
+			}
+			
+			Map<Integer, Long> applied = new HashMap<>();
+			try (Statement st = conn.createStatement(); ResultSet rs = st.executeQuery(GET_APPLIED_QRY)) {
+				while (rs.next()) {
+					applied.put(rs.getInt(1), rs.getLong(2));
+				}
+			}
+			
+			conn.setAutoCommit(false);
+			int count = 0;
+			for (String name : MIGRATIONS) {
+				int version = getVersion(name);
+				String script = loadScript(name);
+				long checksum = getChecksum(script);
+				
+				Long appliedChecksum = applied.get(version);
+				if (appliedChecksum != null) {
+					if (appliedChecksum != checksum) {
+						throw new HibernateException("Migration " + name + " has changed since it was applied");
+					}
+					continue;
+				}
+				
+				apply(conn, name, version, script, checksum);
+				count++;
+			}
+			
+			if (count > 0) {
+				logger.info("Applied {} migration(s), schema is at version {}", count,
+						getVersion(MIGRATIONS[MIGRATIONS.length - 1]));
+			}
+			return count;
+		} finally {
+			conn.setAutoCommit(true);
+			try (PreparedStatement unlock = conn.prepareStatement(UNLOCK_QRY)) {
+				unlock.setLong(1, MIGRATION_LOCK_KEY);
+				unlock.execute();
+			}
+			conn.setAutoCommit(autoCommit);
+		}
+	}
+	
+	private static void apply(Connection conn, String name, int version, String script, long checksum)
+			throws SQLException {
+		logger.info("Applying migration {}", name);
+		long start = System.currentTimeMillis();
+		try {
+			try (Statement st = conn.createStatement()) {
+				st.execute(script);
+			}
+			
+			try (PreparedStatement st = conn.prepareStatement(ADD_APPLIED_QRY)) {
+				st.setInt(1, version);
+				st.setString(2, name.substring(name.indexOf("__") + 2).replace('_', ' '));
+				st.setLong(3, checksum);
+				st.setTimestamp(4, new Timestamp(start));
+				st.setInt(5, (int) (System.currentTimeMillis() - start));
+				st.executeUpdate();
+			}
+			conn.commit();
+		} catch (SQLException e) {
+			conn.rollback();
+			throw new HibernateException("Migration " + name + " failed - " + e.getMessage(), e);
+		}
+	}
+	
+	// Migration names are V<version>__<description>.
+	private static int getVersion(String name) {
+		return Integer.parseInt(name.substring(1, name.indexOf("__")));
+	}
+	
+	private static String loadScript(String name) {
+		try (InputStream in = SchemaMigrator.class.getResourceAsStream(MIGRATIONS_DIR + name + ".sql")) {
+			if (in == null) {
+				throw new HibernateException("Migration script for " + name + " not found");
+			}
+			
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buf = new byte[4096];
+			int n;
+			while ((n = in.read(buf)) > 0) {
+				out.write(buf, 0, n);
+			}
+			return new String(out.toByteArray(), StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			throw new HibernateException("Error reading migration " + name, e);
+		}
+	}
+	
+	// Line endings are normalized, so that a checkout on another OS doesn't look like an edited script.
+	private static long getChecksum(String script) {
+		CRC32 crc = new CRC32();
+		crc.update(script.replace("\r\n", "\n").getBytes(StandardCharsets.UTF_8));
+		return crc.getValue();
+	}
+	
+	public static void main(String[] args) {
+		// DataStoreManager would migrate on its own too, don't do it twice.
+		System.setProperty(MIGRATE_PROPERTY, "false");
+		DataStoreManager mgr = DataStoreManager.getInstance();
+		try {
+			int count = new SchemaMigrator(mgr.getFactory()).migrate();
+			System.out.println("Applied " + count + " migration(s)");
+		} finally {
+			mgr.shutdown();
+		}
+	}
+}
@@ -1,14 +1,21 @@
 package club.vinnymaker.datastore;
 
+import java.sql.Array;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.stream.Collectors;
 
+import javax.persistence.PersistenceException;
 import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaQuery;
 import javax.persistence.criteria.Root;
@@ -18,11 +25,19 @@ import org.apache.logging.log4j.Logger;
 import org.hibernate.HibernateException;
 import org.hibernate.Session;
 import org.hibernate.Transaction;
+import org.hibernate.exception.ConstraintViolationException;
+import org.hibernate.exception.DataException;
 
 import club.vinnymaker.data.Exchange;
 import club.vinnymaker.data.MarketData;
 import club.vinnymaker.data.MarketDataLite;
 import club.vinnymaker.data.MarketDataType;
+import club.vinnymaker.data.StockIndex;
+import club.vinnymaker.datastore.MarketSnapshot.ItemKey;
+import club.vinnymaker.metrics.Counter;
+import club.vinnymaker.metrics.Histogram;
+import club.vinnymaker.metrics.MetricsRegistry;
+import club.vinnymaker.metrics.Trace;
 import lombok.Getter;
 
 /**
@@ -59,9 +74,72 @@ public class StockDataManager {
 
 	// CRUD api methods follow.
 	
-	private static final String DELETE_INDEX_LISTINGS_QRY_PAT = "DELETE FROM index_listings WHERE index_id = %d AND stock_id IN ";
-	private static final String ADD_NEW_INDEX_LISTINGS_QRY_PAT = "INSERT INTO index_listings (index_id, stock_id) VALUES (%d, %d)";
-	private static final String GET_STOCK_INDEX_ID_QRY_PAT = "SELECT stock_index_id FROM stock_indexes WHERE index_name = '%s'";
+	// Index with its members, in one fetch join. The index is repeated on each member's row, but hibernate
+	// resolves all of those to the same object.
+	private static final String GET_INDEX_WITH_MEMBERS_QRY = "SELECT i FROM stock_indexes i LEFT JOIN FETCH i.members "
+			+ "WHERE i.name = :name AND i.exchangeId = :exchangeId";
+	
+	private static final String GET_INDEX_QRY = "SELECT i FROM stock_indexes i "
+			+ "WHERE i.name = :name AND i.exchangeId = :exchangeId";
+	
+	// Every listing of every index, as plain columns.
+	private static final String GET_LISTINGS_QRY = "SELECT i.exchangeId, i.name, m.exchangeId, m.symbol "
+			+ "FROM stock_indexes i JOIN i.members m";
+	
+	private static final String GET_STOCK_IDS_QRY = "SELECT m.exchangeId, m.symbol, m.id FROM stocks m "
+			+ "WHERE m.exchangeId IN (:exchangeIds) AND m.symbol IN (:symbols)";
+	
+	// Closes the current listings of an index that aren't among its latest members and opens listings for the new
+	// members, in one statement. Both parts see the listings as they were before the statement. Parameters are the
+	// latest member ids(repeats are ignored), the time of the change and the index id. A period never ends before it
+	// starts(tsrange would throw) nor starts before the stock's last listing in the index ended, even if the change 
+	// is timed earlier than the listings, e.g., by a clock that went back.
+	private static final String RECONCILE_LISTINGS_QRY = "WITH params AS (SELECT CAST(? AS integer[]) AS ids, "
+			+ "CAST(? AS timestamp) AS changed_at, CAST(? AS integer) AS index_id), "
+			+ "closed AS (UPDATE index_listings l SET valid_to = GREATEST(p.changed_at, l.valid_from) FROM params p "
+			+ "WHERE l.index_id = p.index_id AND l.valid_to IS NULL AND l.stock_id <> ALL (p.ids) RETURNING 1), "
+			+ "opened AS (INSERT INTO index_listings (index_id, stock_id, valid_from) "
+			+ "SELECT p.index_id, n.stock_id, GREATEST(p.changed_at, (SELECT max(l.valid_to) FROM index_listings l "
+			+ "WHERE l.index_id = p.index_id AND l.stock_id = n.stock_id)) "
+			+ "FROM params p CROSS JOIN (SELECT DISTINCT unnest(ids) AS stock_id FROM params) n "
+			+ "WHERE NOT EXISTS (SELECT 1 FROM index_listings l WHERE l.index_id = p.index_id "
+			+ "AND l.stock_id = n.stock_id AND l.valid_to IS NULL) RETURNING 1) "
+			+ "SELECT (SELECT count(*) FROM opened), (SELECT count(*) FROM closed)";
+	
+	// Members of an index as of a time, served by the gist index on the listings' periods.
+	private static final String GET_MEMBERS_AS_OF_QRY = "SELECT s.* FROM index_listings l "
+			+ "JOIN stocks s ON s.stock_id = l.stock_id WHERE l.index_id = :indexId "
+			+ "AND tsrange(l.valid_from, l.valid_to) @> CAST(:asOf AS timestamp)";
+	
+	// Query cache region for reference data lookups(exchange by code, index by name).
+	private static final String REFERENCE_LOOKUPS_REGION = "reference-lookups";
+	
+	/** Returned by updateIndexesStocks() if nothing was updated, but may be if tried again. */
+	public static final int UPDATE_FAILED = -1;
+	/** Returned by updateIndexesStocks() if nothing was updated because the database refused the data. */
+	public static final int UPDATE_REJECTED = -2;
+	
+	private static final String ROWS_WRITTEN_METRIC = "stockapp_datastore_rows_written_total";
+	private static final String ROWS_WRITTEN_HELP = "Rows written by index updates";
+	// Stages and counts of the caller's trace, if any, e.g., the updater's cycle.
+	private static final String STAGE_LOAD = "load";
+	private static final String STAGE_DIFF = "diff";
+	private static final String STAGE_REBALANCE = "rebalance";
+	private static final String STAGE_COMMIT = "commit";
+	private static final String ROWS_INSERTED = "rows_inserted";
+	private static final String ROWS_UPDATED = "rows_updated";
+	private static final String LISTINGS_OPENED = "listings_opened";
+	private static final String LISTINGS_CLOSED = "listings_closed";
+	private static final Histogram indexUpdateDuration = MetricsRegistry.getInstance().histogram(
+			"stockapp_datastore_index_update_duration_seconds", "Durations of index updates, commit included");
+	private static final Counter stocksInserted = MetricsRegistry.getInstance().counter(ROWS_WRITTEN_METRIC,
+			ROWS_WRITTEN_HELP, "table", "stocks", "op", "insert");
+	private static final Counter stocksUpdated = MetricsRegistry.getInstance().counter(ROWS_WRITTEN_METRIC,
+			ROWS_WRITTEN_HELP, "table", "stocks", "op", "update");
+	private static final Counter listingsInserted = MetricsRegistry.getInstance().counter(ROWS_WRITTEN_METRIC,
+			ROWS_WRITTEN_HELP, "table", "index_listings", "op", "insert");
+	private static final Counter listingsClosed = MetricsRegistry.getInstance().counter(ROWS_WRITTEN_METRIC,
+			ROWS_WRITTEN_HELP, "table", "index_listings", "op", "close");
 	
 	/**
 	 * Updates a batch of items(stock/index) from a single index of an exchange in
@@ -74,147 +152,268 @@ public class StockDataManager {
 	 * 
 	 * @return True if all the items were successfully updated.
 	 */
-	@SuppressWarnings("rawtypes")
 	public boolean updateIndexStocks(String exchangeCode, Collection<MarketData> stocks) {
+		return updateIndexesStocks(exchangeCode, Collections.singletonList(stocks)) == 1;
+	}
+	
+	/**
+	 * Updates the items(stocks/indexes) of several indexes of an exchange in the database, in a single transaction.
+	 * Any non existing items will be created. Indexes that don't exist in the database are skipped, and so are those
+	 * whose data isn't newer than what's stored, so writing the same data again is harmless. If an index's
+	 * members have changed, its listings are reconciled as of the index's update time: listings of the items that
+	 * left are closed and new ones are opened for the items that joined.
+	 * 
+	 * @param exchangeCode Exchange code.
+	 * @param indexes Items of each index to be updated, the index itself included.
+	 * 
+	 * @return Number of indexes updated. If the transaction failed and nothing was updated, UPDATE_REJECTED if the 
+	 * data itself was refused(e.g., it violates a constraint) so writing it again won't help, UPDATE_FAILED 
+	 * otherwise(e.g., the database is down).
+	 */
+	public int updateIndexesStocks(String exchangeCode, Collection<? extends Collection<MarketData>> indexes) {
+		long start = System.nanoTime();
 		Session session = DataStoreManager.getInstance().getFactory().openSession();
-		long exchId = getExchange(exchangeCode, session).getId();
-
-		MarketData index = getIndexFromStocks(stocks);
 		Transaction tx = null;
-		List<MarketData> existing = getAllStocksInAnIndex(index.getSymbol(), exchId, session);
-		Map<String, MarketData> existingMap = new HashMap<>();
-		for (MarketData it : existing) {
-			existingMap.put(it.getSymbol(), it);
-		}
-		
-		Set<String> existingIdSet = existing.stream().map((it) -> it.getSymbol()).collect(Collectors.toSet());
-		Set<String> newIdSet = stocks.stream().map((it) -> it.getSymbol()).collect(Collectors.toSet());
-		Map<String, Integer> existingSymbolIdMap = new HashMap<>();
-		for (MarketData it : existing) {
-			existingSymbolIdMap.put(it.getSymbol(), it.getId());
-		}
-		String listingsToRemove = getListingsToRemove(newIdSet, existingIdSet, existingSymbolIdMap);
-				
 		try {
 			tx = session.beginTransaction();
-			// First, add new items to the stocks table. We wont be deleting any entries from this table even if
-			// they are absent from latest data (possibly cause index has changed, a really rare event).
-			boolean hasIndexChanged = false;
-			Set<Integer> idsToInsert = new HashSet<>();
-			for (MarketData st : stocks) {
-				if (!existingIdSet.contains(st.getSymbol())) {
-					logger.info("New stock named {} is included in the index.", st.getSymbol());
-					session.save(st);
-					idsToInsert.add(st.getId());
-					hasIndexChanged = true;
-				} else {
-					// get the persistent version of this item and update it's contents with recent data.
-					MarketData it = existingMap.get(st.getSymbol());
-					st.update(it);
-					session.merge(it);
-				}
+			Exchange ex;
+			try (Trace.Stage s = Trace.stage(STAGE_LOAD)) {
+				ex = getExchange(exchangeCode, session);
+			}
+			if (ex == null) {
+				logger.debug("No exchange with the code {}", exchangeCode);
+				tx.rollback();
+				return 0;
 			}
 			
-			tx.commit();
-			// Next, if the index has changed, add/remove items from index_listings table.
-			if (hasIndexChanged) {
-				tx = session.beginTransaction();
-				List l = session.createNativeQuery(String.format(GET_STOCK_INDEX_ID_QRY_PAT, index.getSymbol())).list();
-				if (l.size() != 1) {
-					tx.commit();
-					return false;
+			int updatedIndexes = 0, inserted = 0, updated = 0;
+			
+			List<Rebalance> rebalances = new ArrayList<>();
+			for (Collection<MarketData> stocks : indexes) {
+				MarketData index = getIndexFromStocks(stocks);
+				if (index == null) {
+					// Nothing was fetched for the index, or the data is broken.
+					continue;
+				}
+				
+				StockIndex stockIndex;
+				try (Trace.Stage s = Trace.stage(STAGE_LOAD)) {
+					stockIndex = getIndexWithMembers(index.getSymbol(), ex.getId(), session);
+				}
+				if (stockIndex == null) {
+					logger.debug("No index named {} on exchange {}", index.getSymbol(), exchangeCode);
+					continue;
+				}
+				
+				Trace.Stage diff = Trace.stage(STAGE_DIFF);
+				Set<MarketData> members = stockIndex.getMembers();
+				Map<String, MarketData> existingMap = new HashMap<>();
+				for (MarketData it : members) {
+					existingMap.put(it.getSymbol(), it);
+				}
+				
+				// A snapshot no newer than what's stored(e.g., replayed from a journal after it was written) would
+				// only roll the index back, so writing the same snapshot again changes nothing.
+				MarketData stored = existingMap.get(index.getSymbol());
+				if (!isNewer(index, stored)) {
+					logger.debug("Skipped index {} on exchange {}, not newer than stored", index.getSymbol(),
+							exchangeCode);
+					diff.close();
+					continue;
+				}
+				
+				// Items that aren't current members may still be in the stocks table, e.g., if they were members 
+				// before, or are members of another index. Those are looked up, in one query, so that they aren't 
+				// inserted again.
+				Set<String> joined = new HashSet<>();
+				for (MarketData st : stocks) {
+					if (!existingMap.containsKey(st.getSymbol())) {
+						joined.add(st.getSymbol());
+					}
+				}
+				if (!joined.isEmpty()) {
+					existingMap.putAll(findStocks(ex.getId(), joined, session));
 				}
 				
-				int indexId = (Integer) l.get(0);
-				int numDeleted = session.createNativeQuery(String.format(DELETE_INDEX_LISTINGS_QRY_PAT, indexId) + listingsToRemove).executeUpdate();
-				if (numDeleted > 0) {
-					logger.info("{} index listings have been removed", numDeleted);
+				// Add new items to the stocks table, and update the rest. We wont be deleting any entries from this
+				// table even if they are absent from latest data (possibly cause index has changed, a really rare 
+				// event).
+				Set<String> newSymbols = new HashSet<>();
+				List<Integer> memberIds = new ArrayList<>();
+				for (MarketData st : stocks) {
+					if (!newSymbols.add(st.getSymbol())) {
+						// Listed twice in the snapshot, the first one is kept.
+						continue;
+					}
+					MarketData it = existingMap.get(st.getSymbol());
+					if (it == null) {
+						logger.info("New stock named {} is included in the index.", st.getSymbol());
+						session.save(st);
+						memberIds.add(st.getId());
+						inserted++;
+					} else {
+						// Persistent version of this item is updated with recent data, and flushed at commit.
+						st.update(it);
+						memberIds.add(it.getId());
+						updated++;
+					}
 				}
 				
-				// Add new items in the data to the index_listings table.
-				for (Integer id : idsToInsert) {
-					session.createNativeQuery(String.format(ADD_NEW_INDEX_LISTINGS_QRY_PAT, indexId, id)).executeUpdate();
+				// Members rarely change, the listings are left alone unless they have.
+				if (!joined.isEmpty() || newSymbols.size() != members.size()) {
+					rebalances.add(new Rebalance(stockIndex.getId(), memberIds, index.getLastUpdatedAt()));
+				}
+				diff.close();
+				updatedIndexes++;
+			}
+			
+			// Listings refer to the items, so new items are written ahead of them. Each index takes a single statement.
+			int opened = 0, closed = 0;
+			if (!rebalances.isEmpty()) {
+				try (Trace.Stage s = Trace.stage(STAGE_REBALANCE)) {
+					session.flush();
+					for (Rebalance r : rebalances) {
+						int[] counts = reconcileListings(r, session);
+						opened += counts[0];
+						closed += counts[1];
+					}
 				}
+			}
+			
+			// Commit flushes all the changes of all the indexes, in jdbc batches, so this is where the rows are 
+			// actually written.
+			try (Trace.Stage s = Trace.stage(STAGE_COMMIT)) {
 				tx.commit();
 			}
 			
-			return true;
-		} catch (HibernateException e) {
+			stocksInserted.add(inserted);
+			stocksUpdated.add(updated);
+			listingsInserted.add(opened);
+			listingsClosed.add(closed);
+			Trace.count(ROWS_INSERTED, inserted);
+			Trace.count(ROWS_UPDATED, updated);
+			Trace.count(LISTINGS_OPENED, opened);
+			Trace.count(LISTINGS_CLOSED, closed);
+			return updatedIndexes;
+		} catch (PersistenceException e) {
+			// Failures at commit aren't HibernateExceptions, but wrap them.
+			boolean isRejected = isRejected(e);
 			logger.debug("Error updating index stocks - " + e.getMessage());
-			if (tx != null) {
+			if (tx != null && tx.isActive()) {
 				tx.rollback();
 			}
+			return isRejected ? UPDATE_REJECTED : UPDATE_FAILED;
 		} finally {
 			session.close();
+			indexUpdateDuration.recordSince(start);
 		}
-		return false;
 	}
 	
-	/**
-	 * Constructs a string of items to be deleted, to be used in SQL delete query where clauses.
-	 * E.g., "(13, 34, 89)" (quotes for clarity).   
-	 */
-	private String getListingsToRemove(Set<String> newSet, Set<String> existingSet, Map<String, Integer> eMap) {
-		StringBuffer buffer = new StringBuffer("(");
-		for (String e : existingSet) {
-			if (!newSet.contains(e)) {
-				buffer.append(eMap.get(e) + ",");
+	private static boolean isNewer(MarketData item, MarketData stored) {
+		return stored == null || stored.getLastUpdatedAt() == null || item.getLastUpdatedAt() == null
+				|| item.getLastUpdatedAt().after(stored.getLastUpdatedAt());
+	}
+	
+	private static boolean isRejected(Throwable e) {
+		for (Throwable t = e; t != null; t = t.getCause()) {
+			if (t instanceof ConstraintViolationException || t instanceof DataException) {
+				return true;
 			}
 		}
+		return false;
+	}
+	
+	// An index whose members have changed, with the ids of its latest members.
+	private static class Rebalance {
+		private final int indexId;
+		private final List<Integer> memberIds;
+		private final Date changedAt;
 		
-		// Include some impossible id as well so that the string is well formed.
-		buffer.append("-1)");
-		return buffer.toString();
+		Rebalance(int indexId, List<Integer> memberIds, Date changedAt) {
+			this.indexId = indexId;
+			this.memberIds = memberIds;
+			this.changedAt = changedAt == null ? new Date() : changedAt;
+		}
 	}
 	
-	@SuppressWarnings("rawtypes")
-	private List<MarketData> getAllStocksInAnIndex(String index, long exId, Session session) {
-		Transaction tx = null;
-		boolean isTxOpen = false;
-		try {
-			tx = session.beginTransaction();
-			isTxOpen = true;
-			
-			// First get the stock_index_id with the index name and exchange id.
-			String qryStr = String.format("SELECT stock_index_id FROM stock_indexes WHERE exchange_id = %d AND index_name = '%s'",
-					exId, index);
-			
-			List index_ids = session.createNativeQuery(qryStr).list();
-			
-			if (index_ids.size() != 1) {
-				return new ArrayList<>();
-			}
-			
-			int indexId = (Integer) index_ids.get(0);
-			String indexQryStr = String.format("SELECT stock_id FROM index_listings WHERE index_id = %d", indexId);
-			List stock_ids = session.createNativeQuery(indexQryStr).list();
-			if (stock_ids.isEmpty()) {
-				return new ArrayList<>();
-			}
-			
-			// now, get the stocks with these ids.
-			CriteriaBuilder builder = session.getCriteriaBuilder();
-			CriteriaQuery<MarketData> critQry = builder.createQuery(MarketData.class);
-			Root<MarketData> root = critQry.from(MarketData.class);
-			critQry.select(root).where(root.<Integer>get("id").in(stock_ids));
-			return session.createQuery(critQry).list();
-		} catch (HibernateException e) {
-			if (isTxOpen && tx != null) {
-				isTxOpen = false;
-				tx.rollback();
-			}
-		} finally {
-			if (isTxOpen && tx != null) {
-				isTxOpen = true;
-				tx.commit();
+	/**
+	 * Reconciles the listings of an index with its latest members, in one statement. Runs in the session's current
+	 * transaction.
+	 * 
+	 * @return Number of listings opened and closed.
+	 */
+	private int[] reconcileListings(Rebalance r, Session session) {
+		return session.doReturningWork((conn) -> {
+			try (PreparedStatement stmt = conn.prepareStatement(RECONCILE_LISTINGS_QRY)) {
+				Array ids = conn.createArrayOf("integer", r.memberIds.toArray());
+				stmt.setArray(1, ids);
+				stmt.setTimestamp(2, new Timestamp(r.changedAt.getTime()));
+				stmt.setInt(3, r.indexId);
+				try (ResultSet rs = stmt.executeQuery()) {
+					rs.next();
+					return new int[] {rs.getInt(1), rs.getInt(2)};
+				}
 			}
-		}
+		});
+	}
+	
+	/**
+	 * Retrieves the items with the given symbols on an exchange, whether or not they're members of any index. Runs in
+	 * the session's current transaction.
+	 * 
+	 * @return Items found by their symbols, symbols not found are absent.
+	 */
+	private static Map<String, MarketData> findStocks(int exchangeId, Collection<String> symbols, Session session) {
+		CriteriaBuilder builder = session.getCriteriaBuilder();
+		CriteriaQuery<MarketData> qry = builder.createQuery(MarketData.class);
+		Root<MarketData> root = qry.from(MarketData.class);
+		qry.select(root).where(builder.equal(root.<Integer>get("exchangeId"), exchangeId),
+							  root.<String>get("symbol").in(symbols));
 		
-		return new ArrayList<>();
+		Map<String, MarketData> found = new HashMap<>();
+		for (MarketData it : session.createQuery(qry).list()) {
+			found.put(it.getSymbol(), it);
+		}
+		return found;
+	}
+	
+	/**
+	 * Retrieves an index of an exchange without its members. The lookup is cached, and the index itself comes from 
+	 * the second level cache. Runs in the session's current transaction.
+	 * 
+	 * @return The index, or null if no such index exists.
+	 */
+	private static StockIndex getIndex(String indexName, int exchangeId, Session session) {
+		List<StockIndex> indexes = session.createQuery(GET_INDEX_QRY, StockIndex.class)
+				.setParameter("name", indexName)
+				.setParameter("exchangeId", exchangeId)
+				.setCacheable(true)
+				.setCacheRegion(REFERENCE_LOOKUPS_REGION)
+				.list();
+		return indexes.isEmpty() ? null : indexes.get(0);
+	}
+	
+	/**
+	 * Retrieves an index of an exchange along with all its members. Runs in the session's current transaction, if
+	 * any. Not cached, the members change every cycle.
+	 * 
+	 * @param indexName Name of the index.
+	 * @param exchangeId Id of the exchange.
+	 * @param session An already active hibernate session.
+	 * 
+	 * @return The index with its members loaded, or null if no such index exists.
+	 */
+	private StockIndex getIndexWithMembers(String indexName, int exchangeId, Session session) {
+		List<StockIndex> indexes = UnitOfWork.join(session, (s) -> s.createQuery(GET_INDEX_WITH_MEMBERS_QRY, 
+				StockIndex.class)
+				.setParameter("name", indexName)
+				.setParameter("exchangeId", exchangeId)
+				.list());
+		return indexes.isEmpty() ? null : indexes.get(0);
 	}
 	
 	/**
-	 * Retrieves the exchange with the given code from database.
+	 * Retrieves the exchange with the given code from database. Runs in the session's current transaction, if any.
 	 *   
 	 * @param exCode Exchange code.
 	 * @param session An already active hibernate session
@@ -222,24 +421,21 @@ public class StockDataManager {
 	 * @return Exchange object retrieved from the database.
 	 */
 	public Exchange getExchange(String exCode, Session session) {
-		Transaction tx = null;
 		try {
-			tx = session.beginTransaction();
-			CriteriaBuilder builder = session.getCriteriaBuilder();
-			CriteriaQuery<Exchange> query = builder.createQuery(Exchange.class);
-			Root<Exchange> root = query.from(Exchange.class);
-			query.select(root).where(builder.equal(root.<String>get("code"), exCode));
-			List<Exchange> exchanges = session.createQuery(query).list();
-			tx.commit();
+			List<Exchange> exchanges = UnitOfWork.join(session, (s) -> {
+				CriteriaBuilder builder = s.getCriteriaBuilder();
+				CriteriaQuery<Exchange> query = builder.createQuery(Exchange.class);
+				Root<Exchange> root = query.from(Exchange.class);
+				query.select(root).where(builder.equal(root.<String>get("code"), exCode));
+				return s.createQuery(query).setCacheable(true).setCacheRegion(REFERENCE_LOOKUPS_REGION).list();
+			});
 			
 			if (exchanges.size() != 1) {
 				return null;
 			}
 			return exchanges.get(0);
 		} catch (HibernateException e) {
-			if (tx != null) {
-				tx.rollback();
-			}
+			logger.debug("Error querying for the exchange " + exCode + " - " + e.getMessage());
 		}
 		
 		return null;
@@ -253,15 +449,17 @@ public class StockDataManager {
 	 * @return Exchange object with data fetched from database.
 	 */
 	public Exchange getExchange(String exCode) {
-		Session session = DataStoreManager.getInstance().getFactory().openSession();
-		Exchange ex = getExchange(exCode, session);
-		session.close();
-		return ex;
+		try {
+			return UnitOfWork.read("getExchange", (session) -> getExchange(exCode, session));
+		} catch (HibernateException e) {
+			logger.debug("Error querying for the exchange " + exCode + " - " + e.getMessage());
+		}
+		return null;
 	}
 	
-	// APIs for client requests.
-	private static final String GET_INDEX_ID_QRY_PAT = "SELECT stock_index_id FROM stock_indexes WHERE index_name = '%s' AND exchange_id = %d";
-	private static final String GET_INDEX_STOCK_IDS_QRY_PAT = "SELECT stock_id FROM index_listings WHERE index_id = %d";
+	// APIs for client requests. Each of these runs as a single unit of work.
+	private static final String SEARCH_QRY = "SELECT new club.vinnymaker.data.MarketDataLite(m.exchangeId, m.symbol, "
+			+ "m.type) FROM stocks m WHERE m.symbol LIKE :pattern";
 	
 	/**
 	 * Retrieves the latest data of a single symbol(repr. stock/index) on an exchange.
@@ -276,34 +474,135 @@ public class StockDataManager {
 			return null;
 		}
 		
-		Session session = DataStoreManager.getInstance().getFactory().openSession();
-		Exchange ex = getExchange(exchange, session);
-		Transaction tx = null;
 		try {
-			tx = session.beginTransaction();
-			CriteriaBuilder builder = session.getCriteriaBuilder();
-			CriteriaQuery<MarketData> qry = builder.createQuery(MarketData.class);
-			Root<MarketData> root = qry.from(MarketData.class);
-			qry.select(root).where(builder.equal(root.<Integer>get("exchangeId"), ex.getId()),
-								  builder.equal(root.<Integer>get("symbol"), symbol));
-			List<MarketData> ret = session.createQuery(qry).list();
-			tx.commit();
-			if (ret.size() != 1) {
-				logger.debug("{} item(s) found with symbol {} on exchange {}", ret.size(), symbol, ex.getCode());
-				return null;
-			}
-			return ret.get(0);
+			return UnitOfWork.read("getStockData", (session) -> {
+				Exchange ex = getExchange(exchange, session);
+				if (ex == null) {
+					return null;
+				}
+				
+				CriteriaBuilder builder = session.getCriteriaBuilder();
+				CriteriaQuery<MarketData> qry = builder.createQuery(MarketData.class);
+				Root<MarketData> root = qry.from(MarketData.class);
+				qry.select(root).where(builder.equal(root.<Integer>get("exchangeId"), ex.getId()),
+									  builder.equal(root.<Integer>get("symbol"), symbol));
+				List<MarketData> ret = session.createQuery(qry).list();
+				if (ret.size() != 1) {
+					logger.debug("{} item(s) found with symbol {} on exchange {}", ret.size(), symbol, ex.getCode());
+					return null;
+				}
+				return ret.get(0);
+			});
 		} catch (HibernateException e) {
 			logger.debug("Error querying for MarketData " + e.getMessage());
-			if (tx != null) {
-				tx.rollback();
-			}
-		} finally {
-			session.close();
 		}
 		return null;
 	}
 	
+	/**
+	 * Retrieves the latest data of several symbols(stocks/indexes) on an exchange with a single query.
+	 *
+	 * @param exchange Code of the exchange.
+	 * @param symbols Stock/index symbols to look up.
+	 *
+	 * @return Map of symbol to its latest data, in the order of the given symbols. Symbols not found on the
+	 * exchange are absent from the map. Returns null if the exchange doesn't exist or the query fails.
+	 */
+	public Map<String, MarketData> getStocksData(String exchange, Collection<String> symbols) {
+		if (exchange == null || symbols == null) {
+			return null;
+		}
+
+		try {
+			return UnitOfWork.read("getStocksData", (session) -> {
+				Exchange ex = getExchange(exchange, session);
+				if (ex == null) {
+					return null;
+				}
+
+				Map<String, MarketData> ret = new LinkedHashMap<>();
+				if (symbols.isEmpty()) {
+					return ret;
+				}
+
+				CriteriaBuilder builder = session.getCriteriaBuilder();
+				CriteriaQuery<MarketData> qry = builder.createQuery(MarketData.class);
+				Root<MarketData> root = qry.from(MarketData.class);
+				qry.select(root).where(builder.equal(root.<Integer>get("exchangeId"), ex.getId()),
+									  root.<String>get("symbol").in(symbols));
+				List<MarketData> found = session.createQuery(qry).list();
+
+				Map<String, MarketData> bySymbol = new HashMap<>();
+				for (MarketData it : found) {
+					bySymbol.put(it.getSymbol(), it);
+				}
+
+				// Keep the order in which the client asked for these symbols.
+				for (String symbol : symbols) {
+					MarketData it = bySymbol.get(symbol);
+					if (it != null) {
+						ret.put(symbol, it);
+					}
+				}
+				return ret;
+			});
+		} catch (HibernateException e) {
+			logger.debug("Error querying for MarketData items " + e.getMessage());
+		}
+		return null;
+	}
+
+	/**
+	 * Retrieves the latest data of several items(stocks/indexes), possibly on different exchanges, given their ids.
+	 *
+	 * @param ids Ids of the items.
+	 *
+	 * @return List of the items found, in no particular order. Returns null if the query fails.
+	 */
+	public List<MarketData> getStocksDataByIds(Collection<Integer> ids) {
+		if (ids == null || ids.isEmpty()) {
+			return new ArrayList<>();
+		}
+
+		try {
+			return UnitOfWork.read("getStocksDataByIds", (session) -> {
+				CriteriaBuilder builder = session.getCriteriaBuilder();
+				CriteriaQuery<MarketData> qry = builder.createQuery(MarketData.class);
+				Root<MarketData> root = qry.from(MarketData.class);
+				qry.select(root).where(root.<Integer>get("id").in(ids));
+				return session.createQuery(qry).list();
+			});
+		} catch (HibernateException e) {
+			logger.debug("Error querying for MarketData items by id " + e.getMessage());
+		}
+		return null;
+	}
+
+	/**
+	 * Retrieves all the items(stocks/indexes), across exchanges, that were updated after the given time.
+	 *
+	 * @param since Only items updated strictly after this time are returned. If null, all items are returned.
+	 *
+	 * @return List of recently updated items, or an empty list in case of errors.
+	 */
+	public List<MarketData> getStocksUpdatedSince(Date since) {
+		try {
+			return UnitOfWork.read("getStocksUpdatedSince", (session) -> {
+				CriteriaBuilder builder = session.getCriteriaBuilder();
+				CriteriaQuery<MarketData> qry = builder.createQuery(MarketData.class);
+				Root<MarketData> root = qry.from(MarketData.class);
+				qry.select(root);
+				if (since != null) {
+					qry.where(builder.greaterThan(root.<Date>get("lastUpdatedAt"), since));
+				}
+				return session.createQuery(qry).list();
+			});
+		} catch (HibernateException e) {
+			logger.debug("Error querying for recently updated items " + e.getMessage());
+		}
+		return new ArrayList<>();
+	}
+
 	/**
 	 * Retrieves data of the constituent stocks on an index.
 	 *  
@@ -312,43 +611,125 @@ public class StockDataManager {
 	 * 
 	 * @return The given index's constituent stock data.(including the index itself)
 	 */
-	@SuppressWarnings("rawtypes")
 	public Collection<MarketData> getAllMembersData(String exCode, String indexName) {
-		Session session = DataStoreManager.getInstance().getFactory().openSession();
-		Exchange ex = getExchange(exCode, session);
-		Transaction tx = null;
 		try {
-			tx = session.beginTransaction();
-			// SELECT stock_index_id FROM stock_indexes WHERE index_name = indexName AND exchange_id = exId;
-			List idList = session.createNativeQuery(String.format(GET_INDEX_ID_QRY_PAT, indexName, ex.getId())).list();
-			if (idList.size() != 1) {
-				// Can't have more than 1 index with the same name.
-				tx.commit();
-				return null;
-			}
-			
-			int indexId = (Integer) idList.get(0);
-			// SELECT stock_id FROM index_listings WHERE index_id = indexId;
-			List stockIdList = session.createNativeQuery(String.format(GET_INDEX_STOCK_IDS_QRY_PAT, indexId)).list();
-			
-			CriteriaBuilder builder = session.getCriteriaBuilder();
-			CriteriaQuery<MarketData> critQry = builder.createQuery(MarketData.class);
-			Root<MarketData> root = critQry.from(MarketData.class);
-			critQry.select(root).where(root.<Integer>get("id").in(stockIdList));
-			List<MarketData> ret = session.createQuery(critQry).list();
-			tx.commit();
-			return ret;
+			return UnitOfWork.read("getAllMembersData", (session) -> {
+				Exchange ex = getExchange(exCode, session);
+				if (ex == null) {
+					return null;
+				}
+				
+				StockIndex stockIndex = getIndexWithMembers(indexName, ex.getId(), session);
+				if (stockIndex == null) {
+					return null;
+				}
+				return new ArrayList<>(stockIndex.getMembers());
+			});
 		} catch (HibernateException e) {
 			logger.info("Error retrieving index item with the name " + indexName + " on exchange " + exCode);
-			if (tx != null) {
-				tx.rollback();
+		}
+		return null;
+	}
+
+	/**
+	 * Retrieves the items that were members of an index at a given time, e.g., for backtests. Their data is the
+	 * latest, only the membership is as of the time.
+	 * 
+	 * @param exCode Exchange code.
+	 * @param indexName Name of the index.
+	 * @param asOf Time to look up the members as of.
+	 * 
+	 * @return Data of the members(including the index itself), empty if there were none at the time, or null if 
+	 * there's no such exchange or index, or in case of errors.
+	 */
+	public List<MarketData> getMembersAsOf(String exCode, String indexName, Date asOf) {
+		try {
+			return UnitOfWork.read("getMembersAsOf", (session) -> {
+				Exchange ex = getExchange(exCode, session);
+				if (ex == null) {
+					return null;
+				}
+				
+				StockIndex stockIndex = getIndex(indexName, ex.getId(), session);
+				if (stockIndex == null) {
+					return null;
+				}
+				
+				return session.createNativeQuery(GET_MEMBERS_AS_OF_QRY, MarketData.class)
+						.setParameter("indexId", stockIndex.getId())
+						.setParameter("asOf", new Timestamp(asOf.getTime()))
+						.list();
+			});
+		} catch (HibernateException e) {
+			logger.debug("Error querying for members of index " + indexName + " as of " + asOf + " - " 
+					+ e.getMessage());
+		}
+		return null;
+	}
+	
+	/**
+	 * Retrieves the members of all the indexes, across exchanges, in a single query.
+	 * 
+	 * @return Keys of the members of each index(including the index itself) by the index's key, or null in case of
+	 * errors.
+	 */
+	public Map<ItemKey, List<ItemKey>> getIndexListings() {
+		try {
+			List<Object[]> rows = UnitOfWork.read("getIndexListings", (session) -> session.createQuery(
+					GET_LISTINGS_QRY, Object[].class).list());
+			Map<ItemKey, List<ItemKey>> listings = new HashMap<>();
+			for (Object[] row : rows) {
+				ItemKey index = new ItemKey((Integer) row[0], (String) row[1]);
+				listings.computeIfAbsent(index, (k) -> new ArrayList<>()).add(new ItemKey((Integer) row[2], 
+						(String) row[3]));
 			}
-		} finally {
-			session.close();
+			return listings;
+		} catch (HibernateException e) {
+			logger.debug("Error querying for index listings " + e.getMessage());
 		}
 		return null;
 	}
 
+	/**
+	 * Looks up the ids of items given their keys, possibly on different exchanges, with a single query.
+	 * 
+	 * @param keys Keys of the items.
+	 * 
+	 * @return Ids of the items found by their keys, or null in case of errors.
+	 */
+	public Map<ItemKey, Integer> getStockIds(Set<ItemKey> keys) {
+		Map<ItemKey, Integer> ids = new HashMap<>();
+		if (keys.isEmpty()) {
+			return ids;
+		}
+		
+		Set<Integer> exIds = new HashSet<>();
+		Set<String> symbols = new HashSet<>();
+		for (ItemKey key : keys) {
+			exIds.add(key.getExchangeId());
+			symbols.add(key.getSymbol());
+		}
+		
+		try {
+			List<Object[]> rows = UnitOfWork.read("getStockIds", (session) -> session.createQuery(
+					GET_STOCK_IDS_QRY, Object[].class)
+					.setParameter("exchangeIds", exIds)
+					.setParameter("symbols", symbols)
+					.list());
+			// Symbols of one exchange may match items of another, only the keys asked for are kept.
+			for (Object[] row : rows) {
+				ItemKey key = new ItemKey((Integer) row[0], (String) row[1]);
+				if (keys.contains(key)) {
+					ids.put(key, (Integer) row[2]);
+				}
+			}
+			return ids;
+		} catch (HibernateException e) {
+			logger.debug("Error querying for item ids " + e.getMessage());
+		}
+		return null;
+	}
+	
 	/**
 	 * Retrieves a list of {@link Exchange} objects given their ids.
 	 * 
@@ -357,23 +738,16 @@ public class StockDataManager {
 	 * @return A list of {@link Exchange} objects.
 	 */
 	public List<Exchange> getExchanges(Collection<Integer> exIds) {
-		Session session = DataStoreManager.getInstance().getFactory().openSession();
-		Transaction tx = null;
 		try {
-			tx = session.beginTransaction();
-			CriteriaBuilder builder = session.getCriteriaBuilder();
-			CriteriaQuery<Exchange> qry = builder.createQuery(Exchange.class);
-			Root<Exchange> root = qry.from(Exchange.class);
-			qry.select(root).where(root.<Integer>get("id").in(exIds));
-			List<Exchange> exchanges = session.createQuery(qry).list();
-			tx.commit();
-			return exchanges;
+			return UnitOfWork.read("getExchanges", (session) -> {
+				CriteriaBuilder builder = session.getCriteriaBuilder();
+				CriteriaQuery<Exchange> qry = builder.createQuery(Exchange.class);
+				Root<Exchange> root = qry.from(Exchange.class);
+				qry.select(root).where(root.<Integer>get("id").in(exIds));
+				return session.createQuery(qry).list();
+			});
 		} catch (HibernateException e) {
-			if (tx != null) {
-				tx.rollback();
-			}
-		} finally {
-			session.close();
+			logger.debug("Error querying for exchanges " + e.getMessage());
 		}
 		return new ArrayList<>();
 	}
@@ -386,35 +760,18 @@ public class StockDataManager {
 	 * @return List of all items with a matching name. 
 	 */
 	public Collection<MarketDataLite> getSearchMatches(String nameSubStr) {
-		Session session = DataStoreManager.getInstance().getFactory().openSession();
-		Transaction tx = null;
 		try {
-			tx = session.beginTransaction();
-			CriteriaBuilder builder = session.getCriteriaBuilder();
-			CriteriaQuery<MarketData> qry = builder.createQuery(MarketData.class);
-			Root<MarketData> root = qry.from(MarketData.class);
-			qry.select(root).where(builder.like(root.<String>get("symbol"), "%" + nameSubStr + "%"));
-			List<MarketData> ret = session.createQuery(qry).list();
-			tx.commit();
-			
-			// MarketData items retrieved from db don't have types populated. Should make one more 
-			// query to populate type fields for these objects.
-			populateTypeFields(ret, session);
-			return ret.stream().map((it) -> it.liteWeightVersion()).collect(Collectors.toList());
+			// Projected straight into MarketDataLite, no entities are loaded.
+			return UnitOfWork.read("getSearchMatches", (session) -> session.createQuery(SEARCH_QRY, 
+					MarketDataLite.class)
+					.setParameter("pattern", "%" + nameSubStr + "%")
+					.list());
 		} catch (HibernateException e) {
 			logger.debug("Error querying for stock items " + e.getMessage());
-			if (tx != null) {
-				tx.rollback();
-			}
 			return new ArrayList<>();
-		} finally {
-			session.close();
-		}		
+		}
 	}
 	
-	private static final String GET_INDEXES_QRY_PAT = "SELECT exchange_id, index_name FROM stock_indexes";
-	private static final String GET_INDEXES_SINGLE_EXCHANGE_QRY_PAT = "SELECT index_name FROM stock_indexes WHERE exchange_id = %d";
-	
 	/**
 	 * Returns all the indexes of an exchange 
 	 * 
@@ -422,70 +779,21 @@ public class StockDataManager {
 	 * 
 	 * @return List of Index objects.
 	 */
-	@SuppressWarnings("rawtypes")
 	public List<MarketData> getIndexes(int exchangeId) {
-		Session session = DataStoreManager.getInstance().getFactory().openSession();
-		Transaction tx = null;
 		try {
-			tx = session.beginTransaction();
-			List indexNames = session.createNativeQuery(String.format(GET_INDEXES_SINGLE_EXCHANGE_QRY_PAT, exchangeId)).list();
-			
-			CriteriaBuilder builder = session.getCriteriaBuilder();
-			CriteriaQuery<MarketData> query = builder.createQuery(MarketData.class);
-			Root<MarketData> root = query.from(MarketData.class);
-			query.select(root).where(builder.equal(root.<Integer>get("exchangeId"), exchangeId),
-									root.<String>get("symbol").in(indexNames));
-			List<MarketData> ret = session.createQuery(query).list();
-			tx.commit();
-			return ret;
+			return UnitOfWork.read("getIndexes", (session) -> {
+				CriteriaBuilder builder = session.getCriteriaBuilder();
+				CriteriaQuery<MarketData> query = builder.createQuery(MarketData.class);
+				Root<MarketData> root = query.from(MarketData.class);
+				query.select(root).where(builder.equal(root.<Integer>get("exchangeId"), exchangeId),
+										builder.equal(root.<MarketDataType>get("type"), MarketDataType.INDEX));
+				return session.createQuery(query).list();
+			});
 		} catch (HibernateException e) {
 			logger.debug("Error querying database for indexes of the exchange with id " + exchangeId);
 			logger.debug("Error is " + e.getMessage());
-			if (tx != null) {
-				tx.rollback();
-			}
-		} finally {
-			session.close();
 		}
 		
 		return new ArrayList<>();
 	}
-	
-	/**
-	 * Populates type fields for the given {@link MarketData} items.
-	 * 
-	 * @param items Collection of stocks whose types are to be determined.
-	 * @param session Currently active hibernate session, under whose context this routine runs.
-	 */
-	@SuppressWarnings("rawtypes")
-	private void populateTypeFields(Collection<MarketData> items, Session session) {
-		Transaction tx = null;
-		try {
-			tx = session.beginTransaction();
-			// There are not many indexes supported, so get them all.
-			List idxPairs = session.createNativeQuery(GET_INDEXES_QRY_PAT).list();
-			tx.commit();
-			
-			for (MarketData it : items) {
-				Integer exID = it.getExchangeId();
-				String sym = it.getSymbol();
-				
-				boolean isAPairing = false;
-				for (Object pair : idxPairs) {
-					Object[] comps = (Object[]) pair;
-					if (exID.equals(comps[0]) && sym.equals(comps[1])) {
-						isAPairing = true;
-						break;
-					}
-				}
-				
-				it.setType(isAPairing ? MarketDataType.INDEX : MarketDataType.STOCK);
-			}
-		} catch (HibernateException e) {
-			logger.debug("Error querying database for stock types " + e.getMessage());
-			if (tx != null) {
-				tx.rollback();
-			}
-		}
-	}
 }
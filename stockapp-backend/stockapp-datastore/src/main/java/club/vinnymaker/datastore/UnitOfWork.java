@@ -0,0 +1,202 @@
+package club.vinnymaker.datastore;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.hibernate.FlushMode;
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.hibernate.resource.jdbc.spi.StatementInspector;
+
+import club.vinnymaker.metrics.Counter;
+import club.vinnymaker.metrics.Histogram;
+import club.vinnymaker.metrics.MetricsRegistry;
+
+/**
+ * A UnitOfWork runs a single logical read operation on one session and in one read only transaction. Helpers called
+ * from within a unit join it instead of opening their own session or transaction, so an operation pays for exactly
+ * one BEGIN/COMMIT however its queries are split up.
+ *
+ * Units read from a replica(see DataStoreManager.getReadFactory()) unless they're run by readPrimary() or within
+ * onPrimary(), for reads that must not be behind the primary, e.g., of data tagged with a version read elsewhere.
+ *
+ * Units also count the SQL statements they run, to keep track of database round trips per operation, and time
+ * themselves by operation name. Both are exported as metrics.
+ *
+ * @author evinay
+ *
+ */
+public class UnitOfWork {
+	
+	private static final Logger logger = LogManager.getLogger(UnitOfWork.class);
+	
+	// Unit running on the current thread, sessions are never shared between threads.
+	private static final ThreadLocal<UnitOfWork> current = new ThreadLocal<>();
+	// Set while units started on the current thread must read from the primary, see onPrimary().
+	private static final ThreadLocal<Boolean> isOnPrimary = new ThreadLocal<>();
+	
+	private static final Counter totalUnits = MetricsRegistry.getInstance().counter("stockapp_datastore_units_total",
+			"Units of work run");
+	private static final Counter totalStatements = MetricsRegistry.getInstance().counter(
+			"stockapp_datastore_statements_total", "SQL statements run by units of work");
+	
+	// Durations of units of work, by operation name.
+	private static final Map<String, Histogram> durations = new ConcurrentHashMap<>();
+	
+	private final Session session;
+	private int statements = 0;
+	
+	private UnitOfWork(Session session) {
+		this.session = session;
+	}
+	
+	/**
+	 * Runs a read operation in a unit of work, on a session of the read factory. If a unit is already running on this
+	 * thread, the operation just joins it.
+	 *
+	 * @param name Name of the operation, e.g., the method running it. Units are timed by name.
+	 * @param work Reads data using the given session. Must not begin or commit transactions of its own.
+	 *
+	 * @return Whatever the operation returns.
+	 * @throws HibernateException if any of the queries fails, after rolling back the transaction.
+	 */
+	public static <T> T read(String name, Function<Session, T> work) {
+		UnitOfWork unit = current.get();
+		if (unit != null) {
+			return work.apply(unit.session);
+		}
+		
+		long start = System.nanoTime();
+		DataStoreManager manager = DataStoreManager.getInstance();
+		SessionFactory factory = isOnPrimary.get() == null ? manager.getReadFactory() : manager.getFactory();
+		Session session = factory.openSession();
+		// Nothing read in a unit is ever modified, so skip snapshots and dirty checking.
+		session.setDefaultReadOnly(true);
+		session.setHibernateFlushMode(FlushMode.MANUAL);
+		
+		unit = new UnitOfWork(session);
+		current.set(unit);
+		Transaction tx = null;
+		try {
+			tx = session.beginTransaction();
+			T ret = work.apply(session);
+			tx.commit();
+			return ret;
+		} catch (RuntimeException e) {
+			if (tx != null && tx.isActive()) {
+				tx.rollback();
+			}
+			throw e;
+		} finally {
+			current.remove();
+			session.close();
+			
+			totalUnits.inc();
+			totalStatements.add(unit.statements);
+			durationOf(name).recordSince(start);
+			logger.debug("Unit of work ran {} statement(s) in 1 transaction", unit.statements);
+		}
+	}
+	
+	/**
+	 * Runs a read operation in a unit of work on the primary, see read().
+	 */
+	public static <T> T readPrimary(String name, Function<Session, T> work) {
+		return onPrimary(() -> read(name, work));
+	}
+	
+	/**
+	 * Runs some work with all the units of work it starts reading from the primary, e.g., reads of data to be tagged
+	 * with a version that was read from the primary. Units already running aren't affected.
+	 *
+	 * @return Whatever the work returns.
+	 */
+	public static <T> T onPrimary(Supplier<T> work) {
+		if (isOnPrimary.get() != null) {
+			return work.get();
+		}
+		
+		isOnPrimary.set(Boolean.TRUE);
+		try {
+			return work.get();
+		} finally {
+			isOnPrimary.remove();
+		}
+	}
+	
+	private static Histogram durationOf(String name) {
+		Histogram h = durations.get(name);
+		if (h == null) {
+			h = durations.computeIfAbsent(name, (k) -> MetricsRegistry.getInstance().histogram(
+					"stockapp_datastore_unit_duration_seconds", "Durations of units of work", "operation", k));
+		}
+		return h;
+	}
+	
+	/**
+	 * Runs some work on the given session, in its current transaction if it has one and in a transaction of its own
+	 * otherwise. For helpers that are called both from within units of work and on sessions managed by callers.
+	 *
+	 * @param session An open hibernate session.
+	 * @param work Work to be done using the session.
+	 *
+	 * @return Whatever the work returns.
+	 * @throws HibernateException if the work fails. A transaction begun here is rolled back first.
+	 */
+	public static <T> T join(Session session, Function<Session, T> work) {
+		if (session.getTransaction().isActive()) {
+			return work.apply(session);
+		}
+		
+		Transaction tx = null;
+		try {
+			tx = session.beginTransaction();
+			T ret = work.apply(session);
+			tx.commit();
+			return ret;
+		} catch (RuntimeException e) {
+			if (tx != null && tx.isActive()) {
+				tx.rollback();
+			}
+			throw e;
+		}
+	}
+	
+	/**
+	 * @return Number of units of work run so far.
+	 */
+	public static long getUnitCount() {
+		return totalUnits.get();
+	}
+	
+	/**
+	 * @return Number of SQL statements run by all units of work so far. Each unit makes one more round trip to
+	 * commit, so round trips per unit are (statements + units) / units.
+	 */
+	public static long getStatementCount() {
+		return totalStatements.get();
+	}
+	
+	/**
+	 * Counts the statements prepared by sessions running units of work. Registered with the session factory through
+	 * hibernate.session_factory.statement_inspector, statements are passed on unchanged.
+	 */
+	public static class StatementCounter implements StatementInspector {
+		private static final long serialVersionUID = -3203645484532389407L;
+		
+		@Override
+		public String inspect(String sql) {
+			UnitOfWork unit = current.get();
+			if (unit != null) {
+				unit.statements++;
+			}
+			return sql;
+		}
+	}
+}
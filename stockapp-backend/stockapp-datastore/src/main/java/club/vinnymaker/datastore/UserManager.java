@@ -86,30 +86,18 @@ public class UserManager {
 	 * @return User object if loaded successfully, null otherwise.
 	 */
 	public User loadUser(long userId) {
-		Session session = DataStoreManager.getInstance().getFactory().openSession();
-		Transaction tx = null;
-		
 		try {
-			tx = session.beginTransaction();
-			User user = (User) session.get(User.class, userId);
-			tx.commit();
-			return user;
+			return UnitOfWork.readPrimary("loadUserById", (session) -> session.get(User.class, userId));
 		} catch(HibernateException e) {
 			e.printStackTrace();
-			if (tx != null) {
-				tx.rollback();
-			}
-		} finally {
-			if (session != null) {
-				session.close();
-			}
 		}
 		
 		return null;
 	}
 	
 	/**
-	 * Load a user from db by username.
+	 * Load a user from db by username. Users are always read from the primary, authentication and the check for
+	 * taken usernames must see users created, updated or deleted a moment ago.
 	 * 
 	 * @param username Username of the user to load.
 	 * 
@@ -121,30 +109,21 @@ public class UserManager {
 			return null;
 		}
 		
-		Session session = DataStoreManager.getInstance().getFactory().openSession();
-		Transaction tx = null;
 		try {
-			tx = session.beginTransaction();
-			CriteriaBuilder builder = session.getCriteriaBuilder();
-			CriteriaQuery<User> query = builder.createQuery(User.class);
-			Root<User> root = query.from(User.class);
-			query.select(root).where(builder.equal(root.<String>get("username"), username));
-			List<User> users = session.createQuery(query).getResultList();
-			tx.commit();
+			List<User> users = UnitOfWork.readPrimary("loadUser", (session) -> {
+				CriteriaBuilder builder = session.getCriteriaBuilder();
+				CriteriaQuery<User> query = builder.createQuery(User.class);
+				Root<User> root = query.from(User.class);
+				query.select(root).where(builder.equal(root.<String>get("username"), username));
+				return session.createQuery(query).getResultList();
+			});
 			if (users.size() == 0) {
 				// no user exists with the given username.
 				return null;
 			}
 			return users.get(0);
 		} catch (HibernateException e) {
-			if (tx != null) {
-				tx.rollback();
-			}
 			return null;
-		} finally {
-			if (session != null) {
-				session.close();
-			}
 		}
 	}
 	
@@ -0,0 +1,227 @@
+package club.vinnymaker.datastore;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+
+import club.vinnymaker.data.MarketData;
+import club.vinnymaker.data.WatchlistEntry;
+import club.vinnymaker.data.WatchlistItem;
+
+/**
+ * A thread safe CRUD layer for user watchlists. Watchlists are read far more often than they change, so each user's
+ * list is cached in memory once loaded and dropped whenever it changes.
+ * 
+ * @author evinay
+ *
+ */
+public class WatchlistManager {
+	
+	// Upper limit on the number of items on a single watchlist.
+	public static final int MAX_WATCHLIST_ITEMS = 200;
+	
+	// Only guards against unbounded growth, the cache is simply cleared when it gets this big.
+	private static final int MAX_CACHED_WATCHLISTS = 10000;
+	
+	private static final String GET_WATCHLIST_QRY = "SELECT w.stock_id, e.code, s.symbol FROM watchlist_items w "
+			+ "JOIN stocks s ON s.stock_id = w.stock_id JOIN exchanges e ON e.exchange_id = s.exchange_id "
+			+ "WHERE w.user_id = :userId ORDER BY w.watchlist_item_id";
+	// Adders of the same user take turns on the user's row, so the count in the insert is the count it inserts into.
+	private static final String LOCK_USER_QRY = "SELECT user_id FROM users WHERE user_id = :userId FOR NO KEY UPDATE";
+	private static final String ADD_WATCHLIST_ITEM_QRY = "INSERT INTO watchlist_items (user_id, stock_id, date_added) "
+			+ "SELECT :userId, :stockId, :dateAdded "
+			+ "WHERE (SELECT count(*) FROM watchlist_items WHERE user_id = :userId) < :maxItems "
+			+ "ON CONFLICT (user_id, stock_id) DO NOTHING";
+	private static final String HAS_WATCHLIST_ITEM_QRY = "SELECT count(*) FROM watchlist_items WHERE user_id = :userId "
+			+ "AND stock_id = :stockId";
+	private static final String DELETE_WATCHLIST_ITEM_QRY = "DELETE FROM watchlist_items WHERE userId = :userId "
+			+ "AND stockId = :stockId";
+	
+	private static final Logger logger = LogManager.getLogger(WatchlistManager.class);
+	
+	private static final WatchlistManager instance = new WatchlistManager();
+	
+	// User id to an unmodifiable list of the user's watched items.
+	private final ConcurrentHashMap<Long, List<WatchlistEntry>> watchlists = new ConcurrentHashMap<>();
+	
+	// Number of writes so far, lets a load find out whether a write raced with it.
+	private final AtomicLong writes = new AtomicLong();
+	
+	/**
+	 * Outcome of adding an item to a watchlist.
+	 */
+	public enum AddResult {
+		// The item is on the watchlist now, whether or not it was before.
+		ADDED,
+		// The watchlist already has MAX_WATCHLIST_ITEMS items, and the item isn't one of them.
+		FULL,
+		FAILED
+	}
+	
+	private WatchlistManager() {
+	}
+	
+	public static WatchlistManager getInstance() {
+		return instance;
+	}
+	
+	/**
+	 * Returns the items on a user's watchlist, in the order they were added.
+	 * 
+	 * @param userId Id of the user.
+	 * 
+	 * @return Unmodifiable list of watched items, null in case of errors.
+	 */
+	public List<WatchlistEntry> getWatchlist(long userId) {
+		List<WatchlistEntry> cached = watchlists.get(userId);
+		if (cached != null) {
+			return cached;
+		}
+		
+		long seen = writes.get();
+		List<WatchlistEntry> loaded = loadWatchlist(userId);
+		if (loaded == null) {
+			return null;
+		}
+		
+		if (watchlists.size() >= MAX_CACHED_WATCHLISTS) {
+			watchlists.clear();
+		}
+		watchlists.put(userId, loaded);
+		if (writes.get() != seen) {
+			// Some watchlist changed while this one was being loaded, it may have been this one.
+			watchlists.remove(userId, loaded);
+		}
+		return loaded;
+	}
+	
+	@SuppressWarnings("rawtypes")
+	private List<WatchlistEntry> loadWatchlist(long userId) {
+		// Loads right after a write must see it, so these never go to a replica.
+		Session session = DataStoreManager.getInstance().getFactory().openSession();
+		Transaction tx = null;
+		try {
+			tx = session.beginTransaction();
+			List rows = session.createNativeQuery(GET_WATCHLIST_QRY).setParameter("userId", userId).list();
+			tx.commit();
+			
+			List<WatchlistEntry> ret = new ArrayList<>(rows.size());
+			for (Object row : rows) {
+				Object[] cols = (Object[]) row;
+				ret.add(new WatchlistEntry((Integer) cols[0], (String) cols[1], (String) cols[2]));
+			}
+			return Collections.unmodifiableList(ret);
+		} catch (HibernateException e) {
+			logger.debug("Error loading the watchlist of user with id " + userId + " - " + e.getMessage());
+			if (tx != null) {
+				tx.rollback();
+			}
+		} finally {
+			session.close();
+		}
+		return null;
+	}
+	
+	/**
+	 * Adds an item to the end of a user's watchlist. Nothing changes if the item is already on the list, or if the list
+	 * is full. Both are decided by the insert itself, so concurrent adds can neither fail on the duplicate nor take the
+	 * list past MAX_WATCHLIST_ITEMS.
+	 * 
+	 * @param userId Id of the user.
+	 * @param item Persistent item(stock/index) to watch.
+	 * 
+	 * @return Whether the item is on the watchlist now.
+	 */
+	public AddResult addItem(long userId, MarketData item) {
+		List<WatchlistEntry> cached = watchlists.get(userId);
+		if (cached != null) {
+			for (WatchlistEntry entry : cached) {
+				if (entry.getStockId() == item.getId()) {
+					return AddResult.ADDED;
+				}
+			}
+		}
+		
+		Session session = DataStoreManager.getInstance().getFactory().openSession();
+		Transaction tx = null;
+		try {
+			tx = session.beginTransaction();
+			session.createNativeQuery(LOCK_USER_QRY).setParameter("userId", userId).list();
+			// Without a synchronized entity, a native update evicts every region of the second level cache.
+			int numAdded = session.createNativeQuery(ADD_WATCHLIST_ITEM_QRY)
+					.addSynchronizedEntityClass(WatchlistItem.class)
+					.setParameter("userId", userId)
+					.setParameter("stockId", item.getId())
+					.setParameter("dateAdded", new Timestamp(System.currentTimeMillis()))
+					.setParameter("maxItems", MAX_WATCHLIST_ITEMS)
+					.executeUpdate();
+			boolean isWatched = numAdded > 0 || ((Number) session.createNativeQuery(HAS_WATCHLIST_ITEM_QRY)
+					.setParameter("userId", userId)
+					.setParameter("stockId", item.getId())
+					.uniqueResult()).longValue() > 0;
+			tx.commit();
+			return isWatched ? AddResult.ADDED : AddResult.FULL;
+		} catch (HibernateException e) {
+			logger.error("Error adding " + item.getSymbol() + " to the watchlist of user with id " + userId);
+			logger.error("Cause is " + e.getMessage());
+			if (tx != null) {
+				tx.rollback();
+			}
+		} finally {
+			session.close();
+			invalidate(userId);
+		}
+		return AddResult.FAILED;
+	}
+	
+	/**
+	 * Removes an item from a user's watchlist.
+	 * 
+	 * @param userId Id of the user.
+	 * @param stockId Id of the watched item.
+	 * 
+	 * @return True if the item was on the watchlist and has been removed, false otherwise.
+	 */
+	public boolean removeItem(long userId, int stockId) {
+		Session session = DataStoreManager.getInstance().getFactory().openSession();
+		Transaction tx = null;
+		try {
+			tx = session.beginTransaction();
+			int numDeleted = session.createQuery(DELETE_WATCHLIST_ITEM_QRY)
+					.setParameter("userId", userId)
+					.setParameter("stockId", stockId)
+					.executeUpdate();
+			tx.commit();
+			return numDeleted > 0;
+		} catch (HibernateException e) {
+			logger.error("Error removing item with id " + stockId + " from the watchlist of user with id " + userId);
+			logger.error("Cause is " + e.getMessage());
+			if (tx != null) {
+				tx.rollback();
+			}
+		} finally {
+			session.close();
+			invalidate(userId);
+		}
+		return false;
+	}
+	
+	/**
+	 * Drops the cached watchlist of a user, the next read loads it from the database.
+	 * 
+	 * @param userId Id of the user.
+	 */
+	public void invalidate(long userId) {
+		writes.incrementAndGet();
+		watchlists.remove(userId);
+	}
+}
@@ -0,0 +1,37 @@
+-- Schema as created by db-scripts/db_create.sh. Databases created by that
+-- script already have all of these tables, so this only records them.
+CREATE TABLE IF NOT EXISTS users (user_id serial primary key,
+                                  password_hash varchar(256) not null,
+                                  password_salt varchar(256) not null,
+                                  username varchar(64) unique not null,
+                                  date_created timestamp without time zone not null);
+
+CREATE TABLE IF NOT EXISTS exchanges (exchange_id serial primary key,
+                                      title varchar(256) not null,
+                                      code varchar(256) unique not null);
+
+CREATE TABLE IF NOT EXISTS stocks (stock_id serial primary key,
+                                   exchange_id integer references exchanges(exchange_id),
+                                   symbol varchar(32) not null,
+                                   open real default -1.0,
+                                   volume integer default 0,
+                                   ltp real default -1.0,
+                                   high real default -1.0,
+                                   low real default -1.0,
+                                   prev_close real default -1.0,
+                                   last_update_time timestamp without time zone not null,
+                                   UNIQUE (exchange_id, symbol));
+
+CREATE TABLE IF NOT EXISTS stock_indexes (stock_index_id serial primary key,
+                                          exchange_id integer references exchanges(exchange_id),
+                                          index_name varchar(128) not null);
+
+CREATE TABLE IF NOT EXISTS index_listings (index_listing_id serial primary key,
+                                           index_id integer references stock_indexes(stock_index_id),
+                                           stock_id integer references stocks(stock_id));
+
+CREATE TABLE IF NOT EXISTS watchlist_items (watchlist_item_id serial primary key,
+                                            user_id integer not null references users(user_id) on delete cascade,
+                                            stock_id integer not null references stocks(stock_id),
+                                            date_added timestamp without time zone not null,
+                                            UNIQUE (user_id, stock_id));
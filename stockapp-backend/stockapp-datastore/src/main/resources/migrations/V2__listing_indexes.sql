@@ -0,0 +1,12 @@
+-- Index members are looked up by index(members, updater) and indexes by
+-- stock(watchlists, type of an item), both were sequential scans.
+-- A stock is listed at most once in an index, drop any duplicates first.
+DELETE FROM index_listings a USING index_listings b
+      WHERE a.index_id = b.index_id AND a.stock_id = b.stock_id
+        AND a.index_listing_id > b.index_listing_id;
+
+CREATE UNIQUE INDEX index_listings_index_stock_idx ON index_listings (index_id, stock_id);
+CREATE INDEX index_listings_stock_idx ON index_listings (stock_id);
+
+-- Indexes are looked up by exchange and name, names are unique on an exchange.
+CREATE UNIQUE INDEX stock_indexes_exchange_name_idx ON stock_indexes (exchange_id, index_name);
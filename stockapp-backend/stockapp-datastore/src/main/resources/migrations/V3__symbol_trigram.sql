@@ -0,0 +1,5 @@
+-- Search matches symbols with LIKE '%substr%', which no btree index can
+-- serve. A trigram index can, for substrings of 3 or more characters.
+CREATE EXTENSION IF NOT EXISTS pg_trgm;
+
+CREATE INDEX stocks_symbol_trgm_idx ON stocks USING gin (symbol gin_trgm_ops);
@@ -0,0 +1,26 @@
+-- Daily history of stocks/indexes, partitioned by year so that old years can
+-- be detached or dropped without touching the rest. Needs Postgres 11+.
+CREATE TABLE stock_history (stock_id integer not null references stocks(stock_id),
+                            trade_date date not null,
+                            open real,
+                            high real,
+                            low real,
+                            close real,
+                            volume integer,
+                            PRIMARY KEY (stock_id, trade_date))
+    PARTITION BY RANGE (trade_date);
+
+-- Rows for years without a partition of their own end up here.
+CREATE TABLE stock_history_default PARTITION OF stock_history DEFAULT;
+
+-- Creates the partition for a year, if it doesn't exist yet. Run once a year
+-- ahead of time, e.g., SELECT create_stock_history_partition(2027);
+CREATE FUNCTION create_stock_history_partition(yr integer) RETURNS void AS $$
+BEGIN
+    EXECUTE format('CREATE TABLE IF NOT EXISTS %I PARTITION OF stock_history FOR VALUES FROM (%L) TO (%L)',
+                   'stock_history_' || yr, make_date(yr, 1, 1), make_date(yr + 1, 1, 1));
+END;
+$$ LANGUAGE plpgsql;
+
+SELECT create_stock_history_partition(extract(year FROM current_date)::integer);
+SELECT create_stock_history_partition(extract(year FROM current_date)::integer + 1);
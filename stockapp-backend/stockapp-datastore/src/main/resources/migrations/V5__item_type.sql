@@ -0,0 +1,7 @@
+-- Type of each item(stock/index) was worked out on every read by matching
+-- symbols against index names, store it instead.
+ALTER TABLE stocks ADD COLUMN item_type varchar(16) NOT NULL DEFAULT 'STOCK';
+
+UPDATE stocks s SET item_type = 'INDEX'
+  FROM stock_indexes i
+ WHERE i.exchange_id = s.exchange_id AND i.index_name = s.symbol;
@@ -0,0 +1,19 @@
+-- Listings are closed instead of deleted when a stock leaves an index, and
+-- keep the period they were in effect for, so that the members of an index
+-- can be looked up as of any time(e.g., for backtests). Current listings
+-- have no valid_to. When the existing listings started isn't known, they're
+-- taken to have always been in effect.
+ALTER TABLE index_listings ADD COLUMN valid_from timestamp without time zone NOT NULL DEFAULT '-infinity',
+                           ADD COLUMN valid_to timestamp without time zone;
+ALTER TABLE index_listings ALTER COLUMN valid_from SET DEFAULT localtimestamp;
+
+-- A stock may leave an index and join it again later, but is only listed
+-- once at a time.
+DROP INDEX index_listings_index_stock_idx;
+CREATE UNIQUE INDEX index_listings_current_idx ON index_listings (index_id, stock_id) WHERE valid_to IS NULL;
+
+-- Members of an index as of a time are the listings whose period contains
+-- it, btree_gist lets the index id go in the same gist index.
+CREATE EXTENSION IF NOT EXISTS btree_gist;
+
+CREATE INDEX index_listings_period_idx ON index_listings USING gist (index_id, tsrange(valid_from, valid_to));
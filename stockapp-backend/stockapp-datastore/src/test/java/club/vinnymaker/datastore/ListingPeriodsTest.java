@@ -0,0 +1,175 @@
+package club.vinnymaker.datastore;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+
+import club.vinnymaker.data.MarketData;
+import club.vinnymaker.data.MarketDataType;
+import junit.framework.TestCase;
+
+/**
+ * Index rebalances against a PostgreSQL database: the listings are reconciled with a statement H2 can't run, so this
+ * test is left out of the default build and run by the postgres-tests profile(see scripts/run-postgres-tests), which
+ * points the datastore at a scratch database. Each test creates an exchange of its own.
+ *
+ * @author evinay
+ *
+ */
+public class ListingPeriodsTest extends TestCase {
+	
+	private static final String INSERT_EXCHANGE_QRY = "INSERT INTO exchanges (code, title) VALUES (:code, :code) "
+			+ "RETURNING exchange_id";
+	private static final String INSERT_INDEX_QRY = "INSERT INTO stock_indexes (exchange_id, index_name) "
+			+ "VALUES (:exchangeId, :name)";
+	private static final String COUNT_STOCKS_QRY = "SELECT count(*) FROM stocks WHERE exchange_id = :exchangeId "
+			+ "AND symbol = :symbol";
+	private static final String MOVE_LISTING_QRY = "UPDATE index_listings SET valid_from = :validFrom "
+			+ "WHERE stock_id = (SELECT stock_id FROM stocks WHERE exchange_id = :exchangeId AND symbol = :symbol)";
+	private static final String INDEX = "TEST INDEX";
+	private static final String OTHER_INDEX = "OTHER TEST INDEX";
+	
+	private String exCode;
+	private int exchangeId;
+	
+	@Override
+	protected void setUp() {
+		exCode = "T" + Long.toString(System.nanoTime(), Character.MAX_RADIX);
+		inTransaction((session) -> {
+			exchangeId = ((Number) session.createNativeQuery(INSERT_EXCHANGE_QRY)
+					.setParameter("code", exCode)
+					.getSingleResult()).intValue();
+			for (String name : Arrays.asList(INDEX, OTHER_INDEX)) {
+				session.createNativeQuery(INSERT_INDEX_QRY)
+						.setParameter("exchangeId", exchangeId)
+						.setParameter("name", name)
+						.executeUpdate();
+			}
+		});
+	}
+	
+	public void testSymbolLeavesAndRejoins() {
+		StockDataManager manager = StockDataManager.getInstance();
+		assertEquals(1, update(INDEX, at(1), "A", "B"));
+		assertEquals(1, update(INDEX, at(2), "A"));
+		assertEquals(1, update(INDEX, at(3), "A", "B"));
+		
+		assertEquals(1, countStocks("B"));
+		assertEquals(symbols(INDEX, "A", "B"), symbolsOf(manager.getAllMembersData(exCode, INDEX)));
+		assertEquals(symbols(INDEX, "A", "B"), symbolsOf(manager.getMembersAsOf(exCode, INDEX, mid(1, 2))));
+		assertEquals(symbols(INDEX, "A"), symbolsOf(manager.getMembersAsOf(exCode, INDEX, mid(2, 3))));
+		assertEquals(symbols(INDEX, "A", "B"), symbolsOf(manager.getMembersAsOf(exCode, INDEX, at(4))));
+	}
+	
+	public void testSymbolMovesToAnotherIndex() {
+		assertEquals(1, update(INDEX, at(1), "A", "B"));
+		assertEquals(1, update(INDEX, at(2), "A"));
+		assertEquals(1, update(OTHER_INDEX, at(2), "B"));
+		
+		assertEquals(1, countStocks("B"));
+		assertEquals(symbols(OTHER_INDEX, "B"),
+				symbolsOf(StockDataManager.getInstance().getAllMembersData(exCode, OTHER_INDEX)));
+	}
+	
+	public void testSymbolRepeatedInSnapshot() {
+		assertEquals(1, update(INDEX, at(1), "A", "A", "B"));
+		
+		assertEquals(1, countStocks("A"));
+		assertEquals(symbols(INDEX, "A", "B"), 
+				symbolsOf(StockDataManager.getInstance().getAllMembersData(exCode, INDEX)));
+	}
+	
+	public void testChangeTimedBeforeListing() {
+		StockDataManager manager = StockDataManager.getInstance();
+		assertEquals(1, update(INDEX, at(1), "A", "B"));
+		// Listed by hand, later than the snapshots that follow.
+		inTransaction((session) -> {
+			session.createNativeQuery(MOVE_LISTING_QRY)
+					.setParameter("validFrom", at(5))
+					.setParameter("exchangeId", exchangeId)
+					.setParameter("symbol", "B")
+					.executeUpdate();
+		});
+		
+		assertEquals(1, update(INDEX, at(2), "A"));
+		assertEquals(1, update(INDEX, at(3), "A", "B"));
+		
+		assertEquals(symbols(INDEX, "A"), symbolsOf(manager.getMembersAsOf(exCode, INDEX, at(4))));
+		assertEquals(symbols(INDEX, "A", "B"), symbolsOf(manager.getMembersAsOf(exCode, INDEX, at(6))));
+	}
+	
+	public void testUnknownIndexAsOf() {
+		assertNull(StockDataManager.getInstance().getMembersAsOf(exCode, "NO SUCH INDEX", at(1)));
+	}
+	
+	// Times an hour apart.
+	private static Date at(int hour) {
+		return new Date(1500000000000L + hour * 3600000L);
+	}
+	
+	private static Date mid(int fromHour, int toHour) {
+		return new Date((at(fromHour).getTime() + at(toHour).getTime()) / 2);
+	}
+	
+	private int update(String indexName, Date time, String... symbols) {
+		List<MarketData> items = new ArrayList<>();
+		items.add(item(indexName, MarketDataType.INDEX, time));
+		for (String symbol : symbols) {
+			items.add(item(symbol, MarketDataType.STOCK, time));
+		}
+		return StockDataManager.getInstance().updateIndexesStocks(exCode, Collections.singletonList(items));
+	}
+	
+	private MarketData item(String symbol, MarketDataType type, Date time) {
+		MarketData item = new MarketData(symbol);
+		item.setType(type);
+		item.setExchangeId(exchangeId);
+		item.setLastUpdatedAt(time);
+		return item;
+	}
+	
+	private static Set<String> symbols(String... symbols) {
+		return new HashSet<>(Arrays.asList(symbols));
+	}
+	
+	private static Set<String> symbolsOf(Collection<MarketData> items) {
+		assertNotNull(items);
+		Set<String> ret = new HashSet<>();
+		for (MarketData item : items) {
+			ret.add(item.getSymbol());
+		}
+		return ret;
+	}
+	
+	private int countStocks(String symbol) {
+		int[] count = new int[1];
+		inTransaction((session) -> {
+			count[0] = ((BigInteger) session.createNativeQuery(COUNT_STOCKS_QRY)
+					.setParameter("exchangeId", exchangeId)
+					.setParameter("symbol", symbol)
+					.getSingleResult()).intValue();
+		});
+		return count[0];
+	}
+	
+	private interface Work {
+		void run(Session session);
+	}
+	
+	private static void inTransaction(Work work) {
+		try (Session session = DataStoreManager.getInstance().getFactory().openSession()) {
+			Transaction tx = session.beginTransaction();
+			work.run(session);
+			tx.commit();
+		}
+	}
+}
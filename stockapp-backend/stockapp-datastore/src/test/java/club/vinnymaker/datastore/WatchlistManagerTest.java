@@ -0,0 +1,149 @@
+package club.vinnymaker.datastore;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+
+import club.vinnymaker.data.MarketData;
+import club.vinnymaker.datastore.WatchlistManager.AddResult;
+import junit.framework.TestCase;
+
+import static club.vinnymaker.datastore.WatchlistManager.MAX_WATCHLIST_ITEMS;
+
+/**
+ * Concurrent adds to a watchlist against a PostgreSQL database, run by the postgres-tests profile like
+ * ListingPeriodsTest. Each test creates a user and an exchange of its own.
+ *
+ * @author evinay
+ *
+ */
+public class WatchlistManagerTest extends TestCase {
+	
+	private static final String INSERT_USER_QRY = "INSERT INTO users (username, password_hash, password_salt, "
+			+ "date_created) VALUES (:name, '', '', now()) RETURNING user_id";
+	private static final String INSERT_EXCHANGE_QRY = "INSERT INTO exchanges (code, title) VALUES (:code, :code) "
+			+ "RETURNING exchange_id";
+	private static final String INSERT_STOCKS_QRY = "INSERT INTO stocks (exchange_id, symbol, last_update_time) "
+			+ "SELECT :exchangeId, 'S' || i, now() FROM generate_series(1, :n) i RETURNING stock_id";
+	private static final String COUNT_ITEMS_QRY = "SELECT count(*) FROM watchlist_items WHERE user_id = :userId";
+	
+	private static final int THREADS = 8;
+	
+	private long userId;
+	private List<MarketData> stocks;
+	
+	@Override
+	@SuppressWarnings("rawtypes")
+	protected void setUp() {
+		String name = "T" + Long.toString(System.nanoTime(), Character.MAX_RADIX);
+		stocks = new ArrayList<>();
+		inTransaction((session) -> {
+			userId = ((Number) session.createNativeQuery(INSERT_USER_QRY)
+					.setParameter("name", name)
+					.getSingleResult()).longValue();
+			int exchangeId = ((Number) session.createNativeQuery(INSERT_EXCHANGE_QRY)
+					.setParameter("code", name)
+					.getSingleResult()).intValue();
+			List ids = session.createNativeQuery(INSERT_STOCKS_QRY)
+					.setParameter("exchangeId", exchangeId)
+					.setParameter("n", MAX_WATCHLIST_ITEMS + THREADS)
+					.list();
+			for (Object id : ids) {
+				MarketData item = new MarketData("S" + id);
+				item.setId((Integer) id);
+				stocks.add(item);
+			}
+		});
+	}
+	
+	public void testConcurrentAddsOfTheSameItem() throws Exception {
+		List<AddResult> results = concurrently((i) -> stocks.get(0));
+		for (AddResult result : results) {
+			assertEquals(AddResult.ADDED, result);
+		}
+		assertEquals(1, countItems());
+	}
+	
+	public void testConcurrentAddsStopAtTheLimit() throws Exception {
+		WatchlistManager manager = WatchlistManager.getInstance();
+		for (int i = 0; i < MAX_WATCHLIST_ITEMS - 1; i++) {
+			assertEquals(AddResult.ADDED, manager.addItem(userId, stocks.get(i)));
+		}
+		
+		List<AddResult> results = concurrently((i) -> stocks.get(MAX_WATCHLIST_ITEMS - 1 + i));
+		int added = 0;
+		for (AddResult result : results) {
+			if (result == AddResult.ADDED) {
+				added++;
+			} else {
+				assertEquals(AddResult.FULL, result);
+			}
+		}
+		assertEquals(1, added);
+		assertEquals(MAX_WATCHLIST_ITEMS, countItems());
+		
+		// Adding what's already on a full list is still fine.
+		manager.invalidate(userId);
+		assertEquals(AddResult.ADDED, manager.addItem(userId, stocks.get(0)));
+	}
+	
+	private interface ItemAt {
+		MarketData get(int i);
+	}
+	
+	// Has a thread of its own add the ith item, all of them at once.
+	private List<AddResult> concurrently(ItemAt items) throws Exception {
+		ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+		CountDownLatch start = new CountDownLatch(1);
+		try {
+			List<Future<AddResult>> futures = new ArrayList<>();
+			for (int i = 0; i < THREADS; i++) {
+				MarketData item = items.get(i);
+				Callable<AddResult> add = () -> {
+					start.await();
+					return WatchlistManager.getInstance().addItem(userId, item);
+				};
+				futures.add(pool.submit(add));
+			}
+			start.countDown();
+			
+			List<AddResult> results = new ArrayList<>();
+			for (Future<AddResult> f : futures) {
+				results.add(f.get());
+			}
+			return results;
+		} finally {
+			pool.shutdown();
+		}
+	}
+	
+	private int countItems() {
+		int[] count = new int[1];
+		inTransaction((session) -> {
+			count[0] = ((BigInteger) session.createNativeQuery(COUNT_ITEMS_QRY)
+					.setParameter("userId", userId)
+					.getSingleResult()).intValue();
+		});
+		return count[0];
+	}
+	
+	private interface Work {
+		void run(Session session);
+	}
+	
+	private static void inTransaction(Work work) {
+		try (Session session = DataStoreManager.getInstance().getFactory().openSession()) {
+			Transaction tx = session.beginTransaction();
+			work.run(session);
+			tx.commit();
+		}
+	}
+}
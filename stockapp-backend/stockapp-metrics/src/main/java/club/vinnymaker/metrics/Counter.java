@@ -0,0 +1,36 @@
+package club.vinnymaker.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * A monotonically increasing count, e.g., of requests served. Increments are striped over cells(LongAdder), so
+ * threads counting the same thing at once don't contend on a single field.
+ *
+ * @author evinay
+ *
+ */
+public class Counter implements DoubleSupplier {
+	
+	private final LongAdder count = new LongAdder();
+	
+	Counter() {
+	}
+	
+	public void inc() {
+		count.increment();
+	}
+	
+	public void add(long n) {
+		count.add(n);
+	}
+	
+	public long get() {
+		return count.sum();
+	}
+	
+	@Override
+	public double getAsDouble() {
+		return count.sum();
+	}
+}
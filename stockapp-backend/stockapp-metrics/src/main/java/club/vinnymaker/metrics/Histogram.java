@@ -0,0 +1,147 @@
+package club.vinnymaker.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A latency histogram with log-linear buckets, like HdrHistogram's. Durations are recorded in microseconds, each
+ * power of 2 range of values is split into SUB_BUCKETS equal buckets. So a bucket is never wider than 1/8th of the
+ * values in it, from microseconds to hours, in a fixed 272 counters. Recording a value is a couple of shifts and
+ * an atomic increment, without locks or allocation.
+ *
+ * Buckets include their upper bounds and exclude their lower ones, like Prometheus' le buckets, so a value equal to
+ * an exported bound is counted under it.
+ *
+ * @author evinay
+ *
+ */
+public class Histogram {
+	
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	
+	// Values up to 2^36 us(about 19 hours) are told apart, larger ones all go in the last bucket.
+	private static final int MAX_EXPONENT = 35;
+	private static final int NUM_BUCKETS = SUB_BUCKETS + (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+	
+	private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+	private final LongAdder sumMicros = new LongAdder();
+	
+	Histogram() {
+	}
+	
+	/**
+	 * Index of the bucket holding the given value. The buckets are laid out over the value less one, so that they
+	 * include their upper bounds. Values up to SUB_BUCKETS have buckets of their own, above that the top
+	 * SUB_BUCKET_BITS bits after the leading one pick the bucket within the power of 2.
+	 */
+	static int bucketOf(long micros) {
+		long v = micros - 1;
+		if (v < SUB_BUCKETS) {
+			return v < 0 ? 0 : (int) v;
+		}
+		
+		int exponent = 63 - Long.numberOfLeadingZeros(v);
+		if (exponent > MAX_EXPONENT) {
+			return NUM_BUCKETS - 1;
+		}
+		int shift = exponent - SUB_BUCKET_BITS;
+		return SUB_BUCKETS + shift * SUB_BUCKETS + (int) (v >>> shift) - SUB_BUCKETS;
+	}
+	
+	/**
+	 * @return Largest value that goes in the given bucket.
+	 */
+	static long upperBoundOf(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket + 1;
+		}
+		int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+		int sub = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+		return (long) (SUB_BUCKETS + sub + 1) << shift;
+	}
+	
+	public void recordMicros(long micros) {
+		counts.incrementAndGet(bucketOf(micros));
+		sumMicros.add(micros);
+	}
+	
+	public void recordNanos(long nanos) {
+		recordMicros(TimeUnit.NANOSECONDS.toMicros(nanos));
+	}
+	
+	/**
+	 * Records the time elapsed since the given start time, as returned by System.nanoTime().
+	 */
+	public void recordSince(long startNanos) {
+		recordNanos(System.nanoTime() - startNanos);
+	}
+	
+	public long getCount() {
+		long n = 0;
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			n += counts.get(i);
+		}
+		return n;
+	}
+	
+	public long getSumMicros() {
+		return sumMicros.sum();
+	}
+	
+	/**
+	 * Returns the value at a quantile of all the values recorded so far, e.g., 0.99 for the p99. Accurate to the
+	 * width of a bucket, the bucket's upper bound is returned.
+	 *
+	 * @param quantile Between 0 and 1.
+	 *
+	 * @return Value in microseconds, 0 if nothing has been recorded.
+	 */
+	public long getValueAtQuantile(double quantile) {
+		long[] snapshot = new long[NUM_BUCKETS];
+		long total = 0;
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+		
+		long rank = Math.max(1, (long) Math.ceil(quantile * total));
+		long seen = 0;
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return upperBoundOf(i);
+			}
+		}
+		return upperBoundOf(NUM_BUCKETS - 1);
+	}
+	
+	/**
+	 * Counts values up to each of the given bounds, bounds included, for exporting. Bounds should fall on bucket
+	 * edges, powers of 2 always do.
+	 *
+	 * @param boundsMicros Increasing upper bounds, in microseconds.
+	 *
+	 * @return Cumulative counts, one per bound and then the total count.
+	 */
+	long[] cumulativeCounts(long[] boundsMicros) {
+		long[] ret = new long[boundsMicros.length + 1];
+		int b = 0;
+		long seen = 0;
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			// Buckets up to the bound, whose values are all at most the bound, have been counted.
+			while (b < boundsMicros.length && upperBoundOf(i) > boundsMicros[b]) {
+				ret[b++] = seen;
+			}
+			seen += counts.get(i);
+		}
+		while (b < ret.length) {
+			ret[b++] = seen;
+		}
+		return ret;
+	}
+}
@@ -0,0 +1,97 @@
+package club.vinnymaker.metrics;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryUsage;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+/**
+ * Gauges and counters of the JVM itself: heap and non heap memory, threads, garbage collections and their pauses,
+ * and bytes allocated.
+ *
+ * The JVM has no allocation counter, so allocation is measured at each young collection as the growth of the young
+ * generation's eden since the previous collection emptied it. That's exact over time, but only moves at GCs.
+ *
+ * @author evinay
+ *
+ */
+public class JvmMetrics {
+	
+	private static final AtomicBoolean registered = new AtomicBoolean();
+	private static final AtomicLong allocatedBytes = new AtomicLong();
+	
+	// Eden usage right after the last collection, by pool name.
+	private static final Map<String, Long> edenAfterLastGc = new ConcurrentHashMap<>();
+	
+	private JvmMetrics() {
+	}
+	
+	/**
+	 * Registers the JVM's metrics with the registry. Only the first call does anything.
+	 */
+	public static void register(MetricsRegistry registry) {
+		if (!registered.compareAndSet(false, true)) {
+			return;
+		}
+		
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		registry.gauge("jvm_memory_bytes_used", "Memory in use", () -> memory.getHeapMemoryUsage().getUsed(),
+				"area", "heap");
+		registry.gauge("jvm_memory_bytes_used", "Memory in use", () -> memory.getNonHeapMemoryUsage().getUsed(),
+				"area", "nonheap");
+		registry.gauge("jvm_memory_bytes_committed", "Memory committed by the OS",
+				() -> memory.getHeapMemoryUsage().getCommitted(), "area", "heap");
+		registry.gauge("jvm_memory_bytes_max", "Largest the heap may grow to",
+				() -> memory.getHeapMemoryUsage().getMax(), "area", "heap");
+		registry.gauge("jvm_threads_live", "Live threads", () -> ManagementFactory.getThreadMXBean().getThreadCount());
+		registry.counter("jvm_allocated_bytes_total", "Bytes allocated in the young generation, updated at GCs",
+				allocatedBytes::get);
+		
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			String name = gc.getName();
+			registry.counter("jvm_gc_collections_total", "Garbage collections", gc::getCollectionCount, "gc", name);
+			registry.counter("jvm_gc_collection_seconds_total", "Time spent in garbage collections",
+					() -> gc.getCollectionTime() / 1000.0, "gc", name);
+			
+			if (gc instanceof NotificationEmitter) {
+				Histogram pauses = registry.histogram("jvm_gc_pause_seconds", "Durations of garbage collections",
+						"gc", name);
+				((NotificationEmitter) gc).addNotificationListener((notification, handback) -> {
+					if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION
+							.equals(notification.getType())) {
+						return;
+					}
+					GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo
+							.from((CompositeData) notification.getUserData());
+					pauses.recordMicros(info.getGcInfo().getDuration() * 1000);
+					countAllocation(info.getGcInfo().getMemoryUsageBeforeGc(),
+							info.getGcInfo().getMemoryUsageAfterGc());
+				}, null, null);
+			}
+		}
+	}
+	
+	private static void countAllocation(Map<String, MemoryUsage> before, Map<String, MemoryUsage> after) {
+		for (Map.Entry<String, MemoryUsage> e : before.entrySet()) {
+			String pool = e.getKey();
+			if (!pool.contains("Eden")) {
+				continue;
+			}
+			
+			long used = e.getValue().getUsed();
+			Long last = edenAfterLastGc.get(pool);
+			allocatedBytes.addAndGet(Math.max(0, used - (last == null ? 0 : last)));
+			MemoryUsage usageAfter = after.get(pool);
+			edenAfterLastGc.put(pool, usageAfter == null ? 0 : usageAfter.getUsed());
+		}
+	}
+}
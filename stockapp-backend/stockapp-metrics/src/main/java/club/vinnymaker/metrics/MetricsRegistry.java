@@ -0,0 +1,190 @@
+package club.vinnymaker.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.DoubleSupplier;
+
+/**
+ * MetricsRegistry holds all the metrics of a process and writes them out in the Prometheus text exposition format.
+ * A metric is identified by its name and its labels, given as name, value pairs. Asking for a metric that already
+ * exists returns the existing one, so metrics are usually looked up once and kept in a field.
+ *
+ * Durations are recorded in microseconds and exported in seconds, as Prometheus expects.
+ *
+ * @author evinay
+ *
+ */
+public class MetricsRegistry {
+	
+	public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+	
+	// Histogram buckets exported, powers of 2 from 64us to about 33s. They're bucket edges of every Histogram, so
+	// exported counts are exact.
+	private static final long[] EXPORTED_BOUNDS_MICROS = new long[20];
+	private static final String[] EXPORTED_BOUNDS = new String[EXPORTED_BOUNDS_MICROS.length];
+	
+	static {
+		for (int i = 0; i < EXPORTED_BOUNDS_MICROS.length; i++) {
+			EXPORTED_BOUNDS_MICROS[i] = 64L << i;
+			EXPORTED_BOUNDS[i] = toSeconds(EXPORTED_BOUNDS_MICROS[i]);
+		}
+	}
+	
+	private enum Type {
+		COUNTER,
+		GAUGE,
+		HISTOGRAM
+	}
+	
+	private static class Family {
+		private final Type type;
+		private final String help;
+		
+		// Metrics of this family by their labels, formatted as they're written out.
+		private final Map<String, Object> metrics = new ConcurrentSkipListMap<>();
+		
+		Family(Type type, String help) {
+			this.type = type;
+			this.help = help;
+		}
+	}
+	
+	private static final MetricsRegistry instance = new MetricsRegistry();
+	
+	private final Map<String, Family> families = new ConcurrentSkipListMap<>();
+	
+	private MetricsRegistry() {
+	}
+	
+	public static MetricsRegistry getInstance() {
+		return instance;
+	}
+	
+	/**
+	 * Returns the counter with the given name and labels, creating it if needed.
+	 *
+	 * @param name Metric name, by convention ending in _total.
+	 * @param help Description of the metric.
+	 * @param labels Label names and values, alternately.
+	 */
+	public Counter counter(String name, String help, String... labels) {
+		return (Counter) family(name, Type.COUNTER, help).metrics.computeIfAbsent(formatLabels(labels),
+				(k) -> new Counter());
+	}
+	
+	/**
+	 * Registers a counter whose value is kept elsewhere, e.g., GC counts of the JVM. Replaces any counter registered
+	 * before with the same name and labels.
+	 */
+	public void counter(String name, String help, DoubleSupplier value, String... labels) {
+		family(name, Type.COUNTER, help).metrics.put(formatLabels(labels), value);
+	}
+	
+	/**
+	 * Registers a gauge, a value that goes up and down, e.g., connections in use. It's read each time metrics are
+	 * written out. Replaces any gauge registered before with the same name and labels.
+	 */
+	public void gauge(String name, String help, DoubleSupplier value, String... labels) {
+		family(name, Type.GAUGE, help).metrics.put(formatLabels(labels), value);
+	}
+	
+	/**
+	 * Returns the latency histogram with the given name and labels, creating it if needed.
+	 *
+	 * @param name Metric name, by convention ending in _seconds.
+	 */
+	public Histogram histogram(String name, String help, String... labels) {
+		return (Histogram) family(name, Type.HISTOGRAM, help).metrics.computeIfAbsent(formatLabels(labels),
+				(k) -> new Histogram());
+	}
+	
+	private Family family(String name, Type type, String help) {
+		Family family = families.computeIfAbsent(name, (k) -> new Family(type, help));
+		if (family.type != type) {
+			throw new IllegalArgumentException("Metric " + name + " is a " + family.type.name().toLowerCase());
+		}
+		return family;
+	}
+	
+	private static String formatLabels(String[] labels) {
+		if (labels.length % 2 != 0) {
+			throw new IllegalArgumentException("Labels must be name, value pairs");
+		}
+		
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < labels.length; i += 2) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			sb.append(labels[i]).append("=\"");
+			String value = labels[i + 1];
+			for (int j = 0; j < value.length(); j++) {
+				char c = value.charAt(j);
+				if (c == '\\' || c == '"') {
+					sb.append('\\').append(c);
+				} else if (c == '\n') {
+					sb.append("\\n");
+				} else {
+					sb.append(c);
+				}
+			}
+			sb.append('"');
+		}
+		return sb.toString();
+	}
+	
+	private static String toSeconds(long micros) {
+		return BigDecimal.valueOf(micros, 6).stripTrailingZeros().toPlainString();
+	}
+	
+	private static String withLabels(String labels, String extra) {
+		if (labels.isEmpty()) {
+			return "{" + extra + "}";
+		}
+		return "{" + labels + "," + extra + "}";
+	}
+	
+	/**
+	 * Writes out all the metrics in the Prometheus text format.
+	 */
+	public void write(Writer out) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, Family> e : families.entrySet()) {
+			String name = e.getKey();
+			Family family = e.getValue();
+			sb.append("# HELP ").append(name).append(' ').append(family.help.replace("\n", " ")).append('\n');
+			sb.append("# TYPE ").append(name).append(' ').append(family.type.name().toLowerCase()).append('\n');
+			
+			for (Map.Entry<String, Object> m : family.metrics.entrySet()) {
+				String labels = m.getKey();
+				if (family.type != Type.HISTOGRAM) {
+					sb.append(name);
+					if (!labels.isEmpty()) {
+						sb.append('{').append(labels).append('}');
+					}
+					sb.append(' ').append(((DoubleSupplier) m.getValue()).getAsDouble()).append('\n');
+					continue;
+				}
+				
+				Histogram h = (Histogram) m.getValue();
+				long[] counts = h.cumulativeCounts(EXPORTED_BOUNDS_MICROS);
+				for (int i = 0; i < EXPORTED_BOUNDS.length; i++) {
+					sb.append(name).append("_bucket").append(withLabels(labels, "le=\"" + EXPORTED_BOUNDS[i] + "\""))
+							.append(' ').append(counts[i]).append('\n');
+				}
+				long count = counts[counts.length - 1];
+				sb.append(name).append("_bucket").append(withLabels(labels, "le=\"+Inf\"")).append(' ').append(count)
+						.append('\n');
+				String suffix = labels.isEmpty() ? "" : "{" + labels + "}";
+				sb.append(name).append("_sum").append(suffix).append(' ').append(toSeconds(h.getSumMicros()))
+						.append('\n');
+				sb.append(name).append("_count").append(suffix).append(' ').append(count).append('\n');
+			}
+		}
+		out.write(sb.toString());
+		out.flush();
+	}
+}
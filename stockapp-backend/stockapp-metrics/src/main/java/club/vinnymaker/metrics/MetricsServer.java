@@ -0,0 +1,104 @@
+package club.vinnymaker.metrics;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A tiny HTTP server exposing the metrics registry at /metrics, for processes that don't run in a servlet
+ * container(e.g., the updater). Scrapes are served one at a time on a daemon thread.
+ *
+ * Metrics tell a lot about the process, so they're only served to loopback clients and the addresses listed in the
+ * stockapp.metrics.allowedAddresses system property(comma separated, e.g., the Prometheus server's). The frontend's
+ * servlet checks its clients with isAllowed() too.
+ *
+ * @author evinay
+ *
+ */
+public class MetricsServer {
+	
+	public static final String PORT_PROPERTY = "stockapp.metrics.port";
+	public static final String ALLOWED_ADDRESSES_PROPERTY = "stockapp.metrics.allowedAddresses";
+	private static final String PATH = "/metrics";
+	
+	private static final Set<InetAddress> allowedAddresses = parseAddresses(
+			System.getProperty(ALLOWED_ADDRESSES_PROPERTY, ""));
+	
+	private final HttpServer server;
+	
+	private MetricsServer(HttpServer server) {
+		this.server = server;
+	}
+	
+	private static Set<InetAddress> parseAddresses(String addresses) {
+		Set<InetAddress> ret = new HashSet<>();
+		for (String address : addresses.split(",")) {
+			address = address.trim();
+			if (address.isEmpty()) {
+				continue;
+			}
+			try {
+				ret.add(InetAddress.getByName(address));
+			} catch (UnknownHostException e) {
+				System.err.println("Ignoring unknown metrics client address " + address);
+			}
+		}
+		return ret;
+	}
+	
+	/**
+	 * @return True if the client at the given address may read the metrics.
+	 */
+	public static boolean isAllowed(InetAddress client) {
+		return client != null && (client.isLoopbackAddress() || allowedAddresses.contains(client));
+	}
+	
+	/**
+	 * Starts serving metrics on the given port, on all interfaces.
+	 *
+	 * @throws IOException if the port can't be bound.
+	 */
+	public static MetricsServer start(int port, MetricsRegistry registry) throws IOException {
+		HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+		server.createContext(PATH, (exchange) -> {
+			try {
+				if (!isAllowed(exchange.getRemoteAddress().getAddress())) {
+					exchange.sendResponseHeaders(403, -1);
+					return;
+				}
+				if (!"GET".equals(exchange.getRequestMethod())) {
+					exchange.sendResponseHeaders(405, -1);
+					return;
+				}
+				exchange.getResponseHeaders().set("Content-Type", MetricsRegistry.CONTENT_TYPE);
+				// Chunked, the length isn't known until everything has been written.
+				exchange.sendResponseHeaders(200, 0);
+				try (Writer out = new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8)) {
+					registry.write(out);
+				}
+			} finally {
+				exchange.close();
+			}
+		});
+		server.setExecutor(Executors.newSingleThreadExecutor((r) -> {
+			Thread t = new Thread(r, "metrics-server");
+			t.setDaemon(true);
+			return t;
+		}));
+		server.start();
+		return new MetricsServer(server);
+	}
+	
+	public void stop() {
+		server.stop(0);
+	}
+}
@@ -0,0 +1,209 @@
+package club.vinnymaker.metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * A structured trace of a unit of work, e.g., an update cycle: how long each of its stages took, counts of things
+ * it handled, and any events worth noting. A trace may have child traces, e.g., one per index of a cycle.
+ *
+ * Traces are bound to the thread running them, so code deep down(e.g., the datastore) adds to whatever trace is
+ * running without having it passed in. All the static methods do nothing when there's no trace, code may call
+ * them unconditionally.
+ *
+ * <pre>
+ *   Trace trace = Trace.begin("cycle");
+ *   try (Trace.Stage s = Trace.stage("fetch")) {
+ *       ...
+ *   }
+ *   Trace.count("items", n);
+ *   trace.end();
+ * </pre>
+ *
+ * @author evinay
+ *
+ */
+public class Trace {
+	
+	private static final ThreadLocal<Trace> current = new ThreadLocal<>();
+	
+	// Closes a stage when no trace is running.
+	private static final Stage NO_STAGE = new Stage(null, null, 0);
+	
+	private final String name;
+	private final Trace parent;
+	private final long startNanos;
+	private long durationNanos = -1;
+	
+	// Total time in each stage and counts, by name, in the order first seen.
+	private final Map<String, Long> stageNanos = new LinkedHashMap<>();
+	private final Map<String, Long> counts = new LinkedHashMap<>();
+	private final Map<String, Object> attributes = new LinkedHashMap<>();
+	private final List<String> events = new ArrayList<>();
+	private final List<Trace> children = new ArrayList<>();
+	
+	/**
+	 * Times a stage of a trace, until it's closed.
+	 */
+	public static class Stage implements AutoCloseable {
+		private final Trace trace;
+		private final String name;
+		private final long startNanos;
+		
+		private Stage(Trace trace, String name, long startNanos) {
+			this.trace = trace;
+			this.name = name;
+			this.startNanos = startNanos;
+		}
+		
+		@Override
+		public void close() {
+			if (trace != null) {
+				trace.stageNanos.merge(name, System.nanoTime() - startNanos, Long::sum);
+			}
+		}
+	}
+	
+	private Trace(String name, Trace parent) {
+		this.name = name;
+		this.parent = parent;
+		this.startNanos = System.nanoTime();
+	}
+	
+	/**
+	 * Starts a trace on this thread. If a trace is already running, the new one is its child.
+	 */
+	public static Trace begin(String name) {
+		Trace parent = current.get();
+		Trace trace = new Trace(name, parent);
+		if (parent != null) {
+			parent.children.add(trace);
+		}
+		current.set(trace);
+		return trace;
+	}
+	
+	/**
+	 * @return The trace running on this thread, or null if there's none.
+	 */
+	public static Trace current() {
+		return current.get();
+	}
+	
+	/**
+	 * Starts timing a stage of the running trace. A stage run more than once adds up.
+	 */
+	public static Stage stage(String name) {
+		Trace trace = current.get();
+		return trace == null ? NO_STAGE : new Stage(trace, name, System.nanoTime());
+	}
+	
+	/**
+	 * Adds to a count of the running trace, e.g., items fetched.
+	 */
+	public static void count(String name, long n) {
+		Trace trace = current.get();
+		if (trace != null) {
+			trace.counts.merge(name, n, Long::sum);
+		}
+	}
+	
+	/**
+	 * Ends this trace, the parent trace if any is running on this thread again.
+	 *
+	 * @return Duration of the trace, in nanoseconds.
+	 */
+	public long end() {
+		durationNanos = System.nanoTime() - startNanos;
+		if (current.get() == this) {
+			if (parent == null) {
+				current.remove();
+			} else {
+				current.set(parent);
+			}
+		}
+		return durationNanos;
+	}
+	
+	public Trace set(String attribute, Object value) {
+		attributes.put(attribute, value);
+		return this;
+	}
+	
+	public void event(String event) {
+		events.add(event);
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	/**
+	 * @return Duration in nanoseconds, -1 if the trace hasn't ended.
+	 */
+	public long getDurationNanos() {
+		return durationNanos;
+	}
+	
+	public Map<String, Long> getStageNanos() {
+		return Collections.unmodifiableMap(stageNanos);
+	}
+	
+	public Map<String, Long> getCounts() {
+		return Collections.unmodifiableMap(counts);
+	}
+	
+	public Object getAttribute(String attribute) {
+		return attributes.get(attribute);
+	}
+	
+	public List<Trace> getChildren() {
+		return Collections.unmodifiableList(children);
+	}
+	
+	/**
+	 * @return The trace and its children as json, durations in milliseconds.
+	 */
+	public JSONObject toJson() {
+		JSONObject obj = new JSONObject();
+		obj.put("name", name);
+		for (Map.Entry<String, Object> e : attributes.entrySet()) {
+			obj.put(e.getKey(), e.getValue());
+		}
+		obj.put("durationMs", millis(durationNanos));
+		
+		JSONObject stages = new JSONObject();
+		for (Map.Entry<String, Long> e : stageNanos.entrySet()) {
+			stages.put(e.getKey(), millis(e.getValue()));
+		}
+		obj.put("stagesMs", stages);
+		obj.put("counts", counts);
+		if (!events.isEmpty()) {
+			obj.put("events", events);
+		}
+		if (!children.isEmpty()) {
+			JSONArray arr = new JSONArray();
+			for (Trace child : children) {
+				arr.put(child.toJson());
+			}
+			obj.put("children", arr);
+		}
+		return obj;
+	}
+	
+	private static double millis(long nanos) {
+		return nanos < 0 ? -1 : nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+	}
+	
+	@Override
+	public String toString() {
+		return toJson().toString();
+	}
+}